@@ -0,0 +1,242 @@
+package com.githubanalytics.benchmarks;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// A generated repository with the shapes the analyzer meets in real ones: plain, generic and overloaded methods,
+// lambdas, anonymous classes and calls between methods. Every class has a test class next to it whose @Test
+// methods call half of its methods, named after them (testMethod4 for method4) as both code-test matchers expect.
+// The sources are compiled with debug information into classes/, so both extractors and the joins have work.
+// Generation is deterministic: the same size always gives the same files.
+public class SyntheticCorpus implements AutoCloseable {
+    public enum Size {
+        SMALL(10),
+        MEDIUM(100),
+        LARGE(500);
+
+        private final int classes;
+
+        Size(int classes) {
+            this.classes = classes;
+        }
+
+        public int getClasses() {
+            return classes;
+        }
+    }
+
+    public static final int METHODS_PER_CLASS = 20;
+    private static final int CLASSES_PER_PACKAGE = 50;
+
+    private final Path root;
+    private final Path sources;
+    private final Path classes;
+    private final List<Path> testFiles = new ArrayList<>();
+
+    private SyntheticCorpus(Path root) {
+        this.root = root;
+        this.sources = root.resolve("src");
+        this.classes = root.resolve("classes");
+    }
+
+    public static SyntheticCorpus create(Size size) throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus(Files.createTempDirectory("analyzer-benchmark-" + size.name().toLowerCase()));
+        corpus.generate(size.getClasses());
+        corpus.compile();
+        return corpus;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public Path getSources() {
+        return sources;
+    }
+
+    public Path getClasses() {
+        return classes;
+    }
+
+    public List<Path> getTestFiles() {
+        return testFiles;
+    }
+
+    private void generate(int classCount) throws IOException {
+        // The tests compile without JUnit on the class path.
+        write(sources.resolve("org/junit/Test.java"), "package org.junit;\n\n"
+                + "import java.lang.annotation.*;\n\n"
+                + "@Retention(RetentionPolicy.RUNTIME)\n"
+                + "@Target(ElementType.METHOD)\n"
+                + "public @interface Test {\n}\n");
+
+        for (int k = 0; k < classCount; k++) {
+            String packageName = "bench.p" + (k / CLASSES_PER_PACKAGE);
+            Path packageDir = sources.resolve(packageName.replace('.', '/'));
+            write(packageDir.resolve("Class" + k + ".java"), codeClass(packageName, k));
+            Path testFile = packageDir.resolve("Class" + k + "Test.java");
+            write(testFile, testClass(packageName, k));
+            testFiles.add(testFile);
+        }
+    }
+
+    private static String codeClass(String packageName, int k) {
+        String className = "Class" + k;
+        StringBuilder code = new StringBuilder();
+        code.append("package ").append(packageName).append(";\n\n")
+                .append("import java.util.*;\n\n")
+                .append("public class ").append(className).append(" implements Comparable<").append(className).append("> {\n")
+                .append("    private final List<Integer> values = new ArrayList<>();\n\n");
+        for (int j = 0; j < METHODS_PER_CLASS; j++) {
+            String name = "method" + j;
+            switch (j % 5) {
+                case 0:
+                    code.append("    public int ").append(name).append("(int x) {\n")
+                            .append("        int result = 0;\n")
+                            .append("        for (int i = 0; i < x; i++) {\n")
+                            .append("            result += i * ").append(j + 1).append(";\n")
+                            .append("        }\n")
+                            .append("        return result;\n")
+                            .append("    }\n\n");
+                    break;
+                case 1:
+                    code.append("    public <T extends Comparable<T>> T ").append(name).append("(List<T> items) {\n")
+                            .append("        T best = null;\n")
+                            .append("        for (T item : items) {\n")
+                            .append("            if (best == null || item.compareTo(best) > 0) {\n")
+                            .append("                best = item;\n")
+                            .append("            }\n")
+                            .append("        }\n")
+                            .append("        return best;\n")
+                            .append("    }\n\n");
+                    break;
+                case 2:
+                    code.append("    public List<String> ").append(name).append("(List<Integer> items) {\n")
+                            .append("        List<String> out = new ArrayList<>();\n")
+                            .append("        items.forEach(item -> out.add(String.valueOf(item + ").append(j).append(")));\n")
+                            .append("        values.addAll(items);\n")
+                            .append("        return out;\n")
+                            .append("    }\n\n");
+                    break;
+                case 3:
+                    code.append("    public Comparator<String> ").append(name).append("() {\n")
+                            .append("        return new Comparator<String>() {\n")
+                            .append("            @Override\n")
+                            .append("            public int compare(String a, String b) {\n")
+                            .append("                return a.length() - b.length() + ").append(j).append(";\n")
+                            .append("            }\n")
+                            .append("        };\n")
+                            .append("    }\n\n");
+                    break;
+                default:
+                    code.append("    public int ").append(name).append("(int x, int y) {\n")
+                            .append("        return method").append(j - 4).append("(x) + y;\n")
+                            .append("    }\n\n");
+            }
+        }
+        code.append("    @Override\n")
+                .append("    public int compareTo(").append(className).append(" other) {\n")
+                .append("        return Integer.compare(values.size(), other.values.size());\n")
+                .append("    }\n")
+                .append("}\n");
+        return code.toString();
+    }
+
+    private static String testClass(String packageName, int k) {
+        String className = "Class" + k;
+        StringBuilder code = new StringBuilder();
+        code.append("package ").append(packageName).append(";\n\n")
+                .append("import org.junit.Test;\n\n")
+                .append("import java.util.Arrays;\n\n")
+                .append("public class ").append(className).append("Test {\n");
+        for (int j = 0; j < METHODS_PER_CLASS; j += 2) {
+            String arguments;
+            switch (j % 5) {
+                case 0:
+                    arguments = "3";
+                    break;
+                case 1:
+                    arguments = "Arrays.asList(1, 2, 3)";
+                    break;
+                case 2:
+                    arguments = "Arrays.asList(1, 2)";
+                    break;
+                case 3:
+                    arguments = "";
+                    break;
+                default:
+                    arguments = "1, 2";
+            }
+            code.append("    @Test\n")
+                    .append("    public void testMethod").append(j).append("() {\n")
+                    .append("        ").append(className).append(" subject = new ").append(className).append("();\n")
+                    .append("        subject.method").append(j).append("(").append(arguments).append(");\n")
+                    .append("        check(subject);\n")
+                    .append("    }\n\n");
+        }
+        code.append("    private void check(").append(className).append(" subject) {\n")
+                .append("        if (subject.compareTo(subject) != 0) {\n")
+                .append("            throw new AssertionError();\n")
+                .append("        }\n")
+                .append("    }\n")
+                .append("}\n");
+        return code.toString();
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void compile() throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Benchmarks need a JDK, no Java compiler found");
+        }
+        Files.createDirectories(classes);
+        List<File> javaFiles = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(sources)) {
+            paths.filter(path -> path.toString().endsWith(".java")).forEach(path -> javaFiles.add(path.toFile()));
+        }
+
+        List<String> options = new ArrayList<>(Arrays.asList("-g", "-nowarn", "-d", classes.toString()));
+        // Class files the analyzer's ASM version reads, whatever JDK runs the benchmarks.
+        if (System.getProperty("java.specification.version").startsWith("1.")) {
+            options.addAll(Arrays.asList("-source", "8", "-target", "8"));
+        } else {
+            options.addAll(Arrays.asList("--release", "8"));
+        }
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            boolean compiled = compiler.getTask(null, fileManager, null, options, null,
+                    fileManager.getJavaFileObjectsFromFiles(javaFiles)).call();
+            if (!compiled) {
+                throw new IllegalStateException("Synthetic corpus does not compile: " + root);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
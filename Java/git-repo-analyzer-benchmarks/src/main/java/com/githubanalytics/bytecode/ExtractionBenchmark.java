@@ -0,0 +1,74 @@
+package com.githubanalytics.bytecode;
+
+import com.githubanalytics.benchmarks.SyntheticCorpus;
+import com.githubanalytics.output.JsonStreamWriter;
+import com.githubanalytics.source.SourceFileTable;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Both extractors over a whole corpus (every processJavaFile / processClassFile of it, one operation), and the JSON
+// export of what they found. The extractors run single-threaded and without a cache, so a score is parsing cost.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExtractionBenchmark {
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public SyntheticCorpus.Size corpusSize;
+
+    private SyntheticCorpus corpus;
+    private SourceCodeMethodExtractor sourceCodeMethodExtractor;
+    private BytecodeMethodExtractor bytecodeMethodExtractor;
+    private List<MethodRecord> methods;
+    private Path exportFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = SyntheticCorpus.create(corpusSize);
+        sourceCodeMethodExtractor = new SourceCodeMethodExtractor(1,
+                Collections.singletonList(corpus.getSources().toString()));
+        bytecodeMethodExtractor = new BytecodeMethodExtractor();
+
+        methods = new ArrayList<>();
+        sourceCodeMethodExtractor.analyzeDirectoryForMethods(corpus.getSources().toString(), methods::add);
+        exportFile = Files.createTempFile("analyzer-benchmark-export", ".json");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(exportFile);
+        corpus.close();
+    }
+
+    @Benchmark
+    public void extractSourceCodeMethods(Blackhole blackhole) {
+        // A fresh table per operation, so the registered files do not pile up over the run.
+        sourceCodeMethodExtractor.setSourceFiles(new SourceFileTable());
+        sourceCodeMethodExtractor.analyzeDirectoryForMethods(corpus.getSources().toString(), blackhole::consume);
+    }
+
+    @Benchmark
+    public void extractBytecodeMethods(Blackhole blackhole) {
+        bytecodeMethodExtractor.analyzeDirectoryForMethods(corpus.getClasses().toString(), blackhole::consume);
+    }
+
+    @Benchmark
+    public long exportMethodsToJson() throws IOException {
+        try (JsonStreamWriter writer = JsonStreamWriter.array(exportFile, false)) {
+            for (MethodRecord method : methods) {
+                writer.write(method);
+            }
+        }
+        return Files.size(exportFile);
+    }
+}
@@ -0,0 +1,110 @@
+package com.githubanalytics.bytecode;
+
+import com.githubanalytics.benchmarks.SyntheticCorpus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// The joins of SourceCodeToBytecodeMapper and the two ways CodeTestMatcher pairs code with tests, over methods
+// extracted once per trial. Both sides are extracted with their locations so that LineNumberJoiner has lines
+// to work with; the signature joins do not look at them.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JoinBenchmark {
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public SyntheticCorpus.Size corpusSize;
+
+    private SyntheticCorpus corpus;
+    private List<MethodRecord> scMethods;
+    private List<MethodRecord> bcMethods;
+    private List<MethodRecord> sourceMethods;
+    private List<MethodRecord> testMethods;
+    private CallGraph callGraph;
+    private PrintStream standardOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = SyntheticCorpus.create(corpusSize);
+        NamePool namePool = new NamePool();
+
+        SourceCodeMethodExtractor sourceCodeMethodExtractor = new SourceCodeMethodExtractor(1,
+                Collections.singletonList(corpus.getSources().toString()));
+        sourceCodeMethodExtractor.setNamePool(namePool);
+        sourceCodeMethodExtractor.setRecordLocations(true);
+        sourceCodeMethodExtractor.analyzeDirectoryForMethods(corpus.getSources().toString());
+        scMethods = sourceCodeMethodExtractor.getMethods();
+
+        CallGraph.Builder callGraphBuilder = new CallGraph.Builder(namePool);
+        BytecodeMethodExtractor bytecodeMethodExtractor = new BytecodeMethodExtractor();
+        bytecodeMethodExtractor.setNamePool(namePool);
+        bytecodeMethodExtractor.setRecordLocations(true);
+        bytecodeMethodExtractor.setCallGraph(callGraphBuilder);
+        bytecodeMethodExtractor.analyzeDirectoryForMethods(corpus.getClasses().toString());
+        bcMethods = bytecodeMethodExtractor.getMethods();
+        callGraph = callGraphBuilder.build();
+
+        sourceMethods = scMethods.stream().filter(m -> !CodeTestMatcher.isTestMethod(m)).collect(Collectors.toList());
+        testMethods = scMethods.stream().filter(CodeTestMatcher::isTestMethod).collect(Collectors.toList());
+
+        // The joins and matchers report their counts on every call.
+        standardOut = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setOut(standardOut);
+        corpus.close();
+    }
+
+    @Benchmark
+    public List<MethodRecord> innerJoin() {
+        return SourceCodeToBytecodeMapper.inner_join(scMethods, bcMethods);
+    }
+
+    @Benchmark
+    public List<MethodRecord> leftJoin() {
+        return SourceCodeToBytecodeMapper.left_join(scMethods, bcMethods);
+    }
+
+    @Benchmark
+    public List<MethodRecord> rightJoin() {
+        return SourceCodeToBytecodeMapper.right_join(scMethods, bcMethods);
+    }
+
+    @Benchmark
+    public MethodJoiner.JoinResult joinByLines() {
+        return LineNumberJoiner.join(scMethods, bcMethods);
+    }
+
+    @Benchmark
+    public List<CodeTestMatcher.CodeTestPair> matchByCalledNames() {
+        return CodeTestMatcher.matchMethods(sourceMethods, testMethods);
+    }
+
+    @Benchmark
+    public List<CodeTestMatcher.CodeTestPair> matchByCallGraph(CallGraphDepth depth) {
+        return CodeTestMatcher.matchByCallGraph(sourceMethods, testMethods, callGraph, depth.maxDepth, 1);
+    }
+
+    // Only matchByCallGraph depends on the depth, the other benchmarks do not run once per value.
+    @State(Scope.Benchmark)
+    public static class CallGraphDepth {
+        @Param({"1", "2"})
+        public int maxDepth;
+    }
+}
@@ -0,0 +1,91 @@
+package com.githubanalytics.sourcecode_parsers;
+
+import com.githubanalytics.benchmarks.SyntheticCorpus;
+import com.github.javaparser.ast.CompilationUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Test retrieval from source: locating the methods under test in every test file (RepoCodeTestRetriever, with the
+// files parsed once per trial), and the name-based CodeTestMatcher from parsing to pairs, with either RepoParser
+// engine. Each benchmark has its own state, so it only runs for the parameters it uses.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TestRetrievalBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RetrieverState {
+        @Param({"SMALL", "MEDIUM", "LARGE"})
+        public SyntheticCorpus.Size corpusSize;
+
+        @Param({"false", "true"})
+        public boolean crossFileResolution;
+
+        private SyntheticCorpus corpus;
+        private RepoCodeTestRetriever retriever;
+        private final List<Path> testFiles = new ArrayList<>();
+        private final List<CompilationUnit> testCompilationUnits = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            corpus = SyntheticCorpus.create(corpusSize);
+            retriever = new RepoCodeTestRetriever(corpus.getSources().toString());
+            retriever.setCrossFileResolution(crossFileResolution);
+            retriever.buildRepositoryIndex();
+            for (Path testFile : corpus.getTestFiles()) {
+                CompilationUnit compilationUnit = retriever.parseCompilationUnit(testFile);
+                if (compilationUnit != null) {
+                    testFiles.add(testFile);
+                    testCompilationUnits.add(compilationUnit);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            corpus.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MatcherState {
+        @Param({"SMALL", "MEDIUM", "LARGE"})
+        public SyntheticCorpus.Size corpusSize;
+
+        @Param({"JAVAPARSER", "SCANNER"})
+        public RepoParser.Engine engine;
+
+        private SyntheticCorpus corpus;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            corpus = SyntheticCorpus.create(corpusSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            corpus.close();
+        }
+    }
+
+    @Benchmark
+    public void locateMethodsUnderTest(RetrieverState state, Blackhole blackhole) {
+        for (int i = 0; i < state.testCompilationUnits.size(); i++) {
+            blackhole.consume(state.retriever.createFileTestDetails(state.testCompilationUnits.get(i), state.testFiles.get(i)));
+        }
+    }
+
+    @Benchmark
+    public void matchCodeToTests(MatcherState state, Blackhole blackhole) throws IOException {
+        // A new matcher each time, nothing is served from RepoParser's result cache.
+        new CodeTestMatcher(state.corpus.getSources(), null, state.engine).matchCodeToTests(blackhole::consume);
+    }
+}
@@ -0,0 +1,73 @@
+package com.githubanalytics;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Append-only record of finished repositories, so an interrupted batch run can pick up where it stopped.
+// Each line is "done<TAB>repo" or "failed<TAB>repo<TAB>message". Failed repositories are retried on resume.
+public class BatchCheckpoint implements Closeable {
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+
+    private final Set<String> completed = new HashSet<>();
+    private final FileChannel channel;
+    private final BufferedWriter writer;
+
+    public BatchCheckpoint(Path checkpointFile) throws IOException {
+        if (Files.exists(checkpointFile)) {
+            List<String> lines = Files.readAllLines(checkpointFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] fields = line.split("\t", 3);
+                // A torn last line from a crash simply does not count.
+                if (fields.length >= 2 && fields[0].equals(DONE)) {
+                    completed.add(fields[1]);
+                }
+            }
+        }
+
+        this.channel = FileChannel.open(checkpointFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 4096));
+    }
+
+    public synchronized boolean isCompleted(String repoName) {
+        return completed.contains(repoName);
+    }
+
+    public synchronized int completedCount() {
+        return completed.size();
+    }
+
+    public synchronized void markDone(String repoName) throws IOException {
+        completed.add(repoName);
+        append(DONE + "\t" + repoName);
+    }
+
+    public synchronized void markFailed(String repoName, String message) throws IOException {
+        String singleLine = String.valueOf(message).replace('\n', ' ').replace('\r', ' ').replace('\t', ' ');
+        append(FAILED + "\t" + repoName + "\t" + singleLine);
+    }
+
+    private void append(String line) throws IOException {
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+        // Survive a machine crash as well as a killed process.
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
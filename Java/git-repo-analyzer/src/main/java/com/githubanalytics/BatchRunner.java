@@ -0,0 +1,314 @@
+package com.githubanalytics;
+
+import com.githubanalytics.cache.ExtractionCache;
+import com.githubanalytics.dataset.DatasetFormat;
+import com.githubanalytics.dataset.DatasetWriter;
+import com.githubanalytics.metrics.MetricsReport;
+import com.githubanalytics.sourcecode_parsers.CodeTestMatcher;
+import com.githubanalytics.sourcecode_parsers.RepoCodeTestRetriever;
+import com.githubanalytics.sourcecode_parsers.RepoParser;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+// Runs one analysis job over many cloned repositories (e.g. Data/github-cloned-repos, as laid out by
+// git_bunk_cloner.py). Repositories are scheduled largest-first on a work-stealing pool and every finished
+// repository is checkpointed, so a rerun with the same output directory only processes what is left.
+public class BatchRunner {
+    public enum Job {
+        // Test methods and the methods they exercise, as produced by Main.
+        TESTS,
+        // Name-based (code, test) pairs.
+        PAIRS
+    }
+
+    private final Job job;
+    private final int threads;
+    private final ExtractionCache cache;
+    private final RepoParser.Engine engine;
+    private boolean prettyPrintSource;
+    // Pairs as a sharded dataset directory per repository instead of a JSON file, when set.
+    private DatasetFormat datasetFormat;
+    private long shardBytes = DatasetWriter.DEFAULT_SHARD_BYTES;
+
+    public BatchRunner(Job job, int threads) {
+        this(job, threads, null);
+    }
+
+    public BatchRunner(Job job, int threads, ExtractionCache cache) {
+        this(job, threads, cache, RepoParser.Engine.JAVAPARSER);
+    }
+
+    public BatchRunner(Job job, int threads, ExtractionCache cache, RepoParser.Engine engine) {
+        this.job = job;
+        this.threads = Math.max(1, threads);
+        this.cache = cache;
+        this.engine = engine;
+    }
+
+    // Method code as JavaParser prints it instead of as written in the file.
+    public void setPrettyPrintSource(boolean prettyPrintSource) {
+        this.prettyPrintSource = prettyPrintSource;
+    }
+
+    public void setDataset(DatasetFormat datasetFormat, long shardBytes) {
+        this.datasetFormat = datasetFormat;
+        this.shardBytes = shardBytes;
+    }
+
+    public void run(List<Path> repos, Path outputDir) throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+
+        // One checkpoint per job, so different jobs can share an output directory.
+        Path checkpointFile = outputDir.resolve("batch-checkpoint-" + job.name().toLowerCase(Locale.ROOT) + ".txt");
+        Map<Path, String> taskNames = taskNames(repos);
+        try (BatchCheckpoint checkpoint = new BatchCheckpoint(checkpointFile)) {
+            List<RepoTask> pending = new ArrayList<>();
+            for (Map.Entry<Path, String> repo : taskNames.entrySet()) {
+                String repoName = repo.getValue();
+                if (!checkpoint.isCompleted(repoName)) {
+                    pending.add(new RepoTask(repo.getKey(), repoName, sizeOf(repo.getKey())));
+                }
+            }
+
+            // Largest first, so the long tail is made of small repositories instead of one huge straggler.
+            pending.sort(Comparator.comparingLong((RepoTask task) -> task.size).reversed());
+            System.out.println("Repositories: " + repos.size() + ", already done: " + checkpoint.completedCount()
+                    + ", pending: " + pending.size());
+
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            AtomicInteger finished = new AtomicInteger();
+            try {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (RepoTask task : pending) {
+                    tasks.add(pool.submit(() -> {
+                        long start = System.nanoTime();
+                        try {
+                            runJob(task, outputDir);
+                            checkpoint.markDone(task.name);
+                            System.out.println("[" + finished.incrementAndGet() + "/" + pending.size() + "] " + task.name
+                                    + " done in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s");
+                        } catch (Exception | StackOverflowError e) {
+                            System.err.println("[" + finished.incrementAndGet() + "/" + pending.size() + "] " + task.name
+                                    + " failed: " + e);
+                            try {
+                                checkpoint.markFailed(task.name, e.toString());
+                            } catch (IOException checkpointError) {
+                                throw new UncheckedIOException(checkpointError);
+                            }
+                        }
+                    }));
+                }
+
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+
+                if (cache != null) {
+                    cache.printStatistics();
+                }
+                MetricsReport.writeTo(outputDir);
+            } finally {
+                pool.shutdownNow();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        }
+    }
+
+    private void runJob(RepoTask task, Path outputDir) throws IOException {
+        Path output = outputDir.resolve(task.name + ".json");
+        // Write next to the final file and move it into place, an interrupted repository leaves no partial output.
+        Path partial = outputDir.resolve(task.name + ".json.partial");
+
+        switch (job) {
+            case TESTS:
+                RepoCodeTestRetriever retriever = new RepoCodeTestRetriever(task.repo.toString());
+                retriever.setPrettyPrintMethods(prettyPrintSource);
+                retriever.saveTestMethodsToJSON(partial, false);
+                break;
+            case PAIRS:
+                CodeTestMatcher matcher = new CodeTestMatcher(task.repo, cache, engine);
+                matcher.setPrettyPrintDeclarations(prettyPrintSource);
+                if (datasetFormat != null) {
+                    // The same move into place, for a directory.
+                    Path dataset = outputDir.resolve(task.name);
+                    Path partialDataset = outputDir.resolve(task.name + ".partial");
+                    deleteRecursively(partialDataset);
+                    matcher.streamCodeTestPairsToDataset(partialDataset, datasetFormat, shardBytes);
+                    deleteRecursively(dataset);
+                    Files.move(partialDataset, dataset, StandardCopyOption.ATOMIC_MOVE);
+                    return;
+                }
+                matcher.streamCodeTestPairsToFile(partial, false);
+                break;
+            default:
+                throw new IllegalStateException("Unknown job: " + job);
+        }
+
+        Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path child : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(child);
+            }
+        }
+    }
+
+    // The name of every repository's checkpoint entry and output: its directory name, or as many of its last path
+    // components as tell it apart from the others with the same name (a/gson and b/gson become a__gson and
+    // b__gson). The same repository listed twice is rejected, its runs would overwrite each other.
+    static Map<Path, String> taskNames(List<Path> repos) {
+        List<Path> paths = new ArrayList<>();
+        Set<Path> seen = new HashSet<>();
+        for (Path repo : repos) {
+            Path path = repo.toAbsolutePath().normalize();
+            if (!seen.add(path)) {
+                throw new IllegalArgumentException("Repository listed more than once: " + repo);
+            }
+            paths.add(path);
+        }
+
+        int[] components = new int[paths.size()];
+        Arrays.fill(components, 1);
+        String[] names = new String[paths.size()];
+        while (true) {
+            Map<String, List<Integer>> byName = new HashMap<>();
+            for (int i = 0; i < paths.size(); i++) {
+                Path path = paths.get(i);
+                names[i] = path.subpath(path.getNameCount() - components[i], path.getNameCount()).toString()
+                        .replace(path.getFileSystem().getSeparator(), "__");
+                byName.computeIfAbsent(names[i], k -> new ArrayList<>()).add(i);
+            }
+            boolean extended = false;
+            for (List<Integer> sameName : byName.values()) {
+                if (sameName.size() > 1) {
+                    for (int i : sameName) {
+                        if (components[i] < paths.get(i).getNameCount()) {
+                            components[i]++;
+                            extended = true;
+                        }
+                    }
+                }
+            }
+            if (!extended) {
+                break;
+            }
+        }
+
+        Map<Path, String> taskNames = new LinkedHashMap<>();
+        Set<String> taken = new HashSet<>();
+        for (int i = 0; i < paths.size(); i++) {
+            if (!taken.add(names[i])) {
+                throw new IllegalArgumentException("Repositories cannot be told apart by name: " + names[i]);
+            }
+            taskNames.put(repos.get(i), names[i]);
+        }
+        return taskNames;
+    }
+
+    // Total size of the Java sources, used as a proxy for how long a repository takes.
+    private static long sizeOf(Path repo) {
+        try (Stream<Path> paths = Files.walk(repo)) {
+            return paths.filter(path -> path.toString().endsWith(".java"))
+                    .mapToLong(path -> path.toFile().length())
+                    .sum();
+        } catch (IOException | UncheckedIOException e) {
+            return 0;
+        }
+    }
+
+    // A directory of repositories, or a text file listing one repository path per line ('#' starts a comment).
+    static List<Path> listRepos(Path reposSource) throws IOException {
+        List<Path> repos = new ArrayList<>();
+        if (Files.isDirectory(reposSource)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(reposSource)) {
+                for (Path child : children) {
+                    if (Files.isDirectory(child)) {
+                        repos.add(child);
+                    }
+                }
+            }
+        } else {
+            for (String line : Files.readAllLines(reposSource, StandardCharsets.UTF_8)) {
+                String trimmed = line.trim();
+                if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    repos.add(Paths.get(trimmed));
+                }
+            }
+        }
+        Collections.sort(repos);
+        return repos;
+    }
+
+    private static class RepoTask {
+        private final Path repo;
+        private final String name;
+        private final long size;
+
+        RepoTask(Path repo, String name, long size) {
+            this.repo = repo;
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        Job job = Job.TESTS;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String cacheDir = null;
+        long cacheSizeMb = 1024;
+        RepoParser.Engine engine = RepoParser.Engine.JAVAPARSER;
+        boolean prettyPrintSource = false;
+        DatasetFormat datasetFormat = null;
+        long shardMb = DatasetWriter.DEFAULT_SHARD_BYTES >> 20;
+        for (String arg : args) {
+            if (arg.startsWith("--job=")) {
+                job = Job.valueOf(arg.substring("--job=".length()).toUpperCase(Locale.ROOT));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--cache-dir=")) {
+                cacheDir = arg.substring("--cache-dir=".length());
+            } else if (arg.startsWith("--cache-size-mb=")) {
+                cacheSizeMb = Long.parseLong(arg.substring("--cache-size-mb=".length()));
+            } else if (arg.startsWith("--engine=")) {
+                engine = RepoParser.Engine.valueOf(arg.substring("--engine=".length()).toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--pretty-print-source")) {
+                prettyPrintSource = true;
+            } else if (arg.startsWith("--dataset-format=")) {
+                datasetFormat = DatasetFormat.parse(arg.substring("--dataset-format=".length()));
+            } else if (arg.startsWith("--shard-mb=")) {
+                shardMb = Long.parseLong(arg.substring("--shard-mb=".length()));
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (positional.size() != 2) {
+            System.err.println("Usage: java BatchRunner <repos directory | repo list file> <output directory> "
+                    + "[--job=tests|pairs] [--threads=N] [--cache-dir=DIR] [--cache-size-mb=N] [--engine=javaparser|scanner] "
+                    + "[--pretty-print-source] [--dataset-format=jsonl|jsonl-gzip|binary] [--shard-mb=N]");
+            System.exit(1);
+        }
+
+        // Only the pairs job goes through RepoParser, which is where the cache and the engine apply.
+        ExtractionCache cache = cacheDir == null ? null : new ExtractionCache(Paths.get(cacheDir), cacheSizeMb * 1024 * 1024);
+
+        List<Path> repos = listRepos(Paths.get(positional.get(0)));
+        BatchRunner runner = new BatchRunner(job, threads, cache, engine);
+        runner.setPrettyPrintSource(prettyPrintSource);
+        runner.setDataset(datasetFormat, shardMb << 20);
+        runner.run(repos, Paths.get(positional.get(1)));
+    }
+}
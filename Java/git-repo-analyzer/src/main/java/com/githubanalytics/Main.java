@@ -4,6 +4,7 @@ import com.github.javaparser.*;
 import com.github.javaparser.symbolsolver.JavaSymbolSolver;
 import com.github.javaparser.symbolsolver.model.resolution.TypeSolver;
 import com.github.javaparser.symbolsolver.resolution.typesolvers.*;
+import com.githubanalytics.metrics.MetricsReport;
 import com.githubanalytics.sourcecode_parsers.RepoCodeTestRetriever;
 
 import java.io.File;
@@ -40,6 +41,7 @@ public class Main {
             RepoCodeTestRetriever retriever = new RepoCodeTestRetriever(repoPath);
             Path outputFilePath = outputBaseDir.resolve(new File(repoPath).getName() + ".json");
             retriever.saveTestMethodsToJSON(outputFilePath);
+            MetricsReport.writeTo(outputBaseDir);
         } catch (Exception e) {
             System.err.println("Error processing file: " + repoPath);
             e.printStackTrace();
@@ -0,0 +1,32 @@
+package com.githubanalytics.blob;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// A blob of a BlobStore held by its reference. The content is read from the store on every call, nothing is kept.
+public class BlobRef {
+    private final BlobStore store;
+    private final String reference;
+
+    public BlobRef(BlobStore store, String reference) {
+        this.store = store;
+        this.reference = reference;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    public String text() {
+        try {
+            return store.getText(reference);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return reference;
+    }
+}
@@ -0,0 +1,240 @@
+package com.githubanalytics.blob;
+
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Content-addressed store for method bodies and bytecode. A blob is named by the SHA-256 of its bytes, so the same
+// body met again (an overload's twin, a fork, a vendored copy, the same method on both sides of a join) is written
+// once and every record that has it holds the same short reference.
+//
+// Blobs go to a single append-only file, blobs.bin: "GHAB" and a version byte, then every blob as its 32-byte hash,
+// a 4-byte length and its bytes. Nothing is ever rewritten, so the file can be memory-mapped by readers and reused
+// by later runs: opening a store reads the hashes back and checks every blob against its hash, and the file is cut off
+// at the first blob an interrupted run did not finish or that does not match. One run at a time: an open store holds
+// an exclusive lock on the file, a second one fails to open instead of appending over the first one's blobs.
+public class BlobStore implements Closeable {
+    public static final String FILE_NAME = "blobs.bin";
+    private static final byte[] MAGIC = "GHAB".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = 32;
+    private static final int ENTRY_HEADER_BYTES = HASH_BYTES + 4;
+    // Appends are buffered up to this many bytes.
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private static final Counter STORED = Metrics.counter("analyzer_blob_puts_total", "Blobs put in the blob store, by result.", "result", "stored");
+    private static final Counter DEDUPLICATED = Metrics.counter("analyzer_blob_puts_total", "Blobs put in the blob store, by result.", "result", "deduplicated");
+    private static final Counter STORED_BYTES = Metrics.counter("analyzer_blob_bytes_total", "Bytes of blobs written to the blob store.");
+
+    private final Path file;
+    private final FileChannel channel;
+    private final FileLock lock;
+    // Hash (hex) to the offset of the blob's bytes and their length.
+    private final Map<String, long[]> index = new HashMap<>();
+    private final ByteBuffer pending = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    // Where the pending bytes go, everything before is on disk.
+    private long flushedSize;
+
+    private long puts;
+    private long duplicates;
+    private long duplicateBytes;
+
+    public BlobStore(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.file = directory.resolve(FILE_NAME);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.lock = lock(channel);
+            if (lock == null) {
+                throw new IOException("Blob store " + file + " is in use by another run");
+            }
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1);
+                header.put(MAGIC).put((byte) VERSION).flip();
+                writeFully(header, 0);
+                flushedSize = header.capacity();
+            } else {
+                flushedSize = readIndex();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Null when another process, or another store of this one, holds the file.
+    private static FileLock lock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    // Reads the hashes of an existing file, returns the end of its last complete blob whose bytes match its hash.
+    private long readIndex() throws IOException {
+        ByteBuffer header = read(0, MAGIC.length + 1);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || header.get() != VERSION) {
+            throw new IOException("Not a blob store: " + file);
+        }
+        long size = channel.size();
+        long position = MAGIC.length + 1;
+        while (position + ENTRY_HEADER_BYTES <= size) {
+            ByteBuffer entryHeader = read(position, ENTRY_HEADER_BYTES);
+            byte[] hash = new byte[HASH_BYTES];
+            entryHeader.get(hash);
+            int length = entryHeader.getInt();
+            if (length < 0 || position + ENTRY_HEADER_BYTES + length > size) {
+                break;
+            }
+            // A crash can leave a length written before the bytes it counts, only the hash tells.
+            if (!Arrays.equals(hash, sha256(read(position + ENTRY_HEADER_BYTES, length).array()))) {
+                break;
+            }
+            index.put(toHex(hash), new long[]{position + ENTRY_HEADER_BYTES, length});
+            position += ENTRY_HEADER_BYTES + length;
+        }
+        if (position < size) {
+            System.err.println("Blob store " + file + " ends in an incomplete or damaged blob, cut off at " + position);
+            channel.truncate(position);
+        }
+        return position;
+    }
+
+    // Reference (hex SHA-256) of the content, stored unless it already is.
+    public String put(byte[] content) throws IOException {
+        // Hashed outside the lock, parser threads put concurrently.
+        byte[] hash = sha256(content);
+        return put(hash, content);
+    }
+
+    private synchronized String put(byte[] hash, byte[] content) throws IOException {
+        puts++;
+        String reference = toHex(hash);
+        if (index.containsKey(reference)) {
+            duplicates++;
+            duplicateBytes += content.length;
+            DEDUPLICATED.increment();
+            return reference;
+        }
+        if (pending.remaining() < ENTRY_HEADER_BYTES + content.length) {
+            flush();
+        }
+        long offset = flushedSize + pending.position() + ENTRY_HEADER_BYTES;
+        if (ENTRY_HEADER_BYTES + content.length > pending.capacity()) {
+            // Larger than the buffer, written straight through.
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_BYTES + content.length);
+            entry.put(hash).putInt(content.length).put(content).flip();
+            writeFully(entry, flushedSize);
+            flushedSize += entry.capacity();
+        } else {
+            pending.put(hash).putInt(content.length).put(content);
+        }
+        index.put(reference, new long[]{offset, content.length});
+        STORED.increment();
+        STORED_BYTES.add(content.length);
+        return reference;
+    }
+
+    public String put(String text) throws IOException {
+        return put(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public synchronized boolean contains(String reference) {
+        return index.containsKey(reference);
+    }
+
+    public byte[] get(String reference) throws IOException {
+        long[] location;
+        synchronized (this) {
+            location = index.get(reference);
+            if (location == null) {
+                throw new IllegalArgumentException("No blob " + reference + " in " + file);
+            }
+            if (location[0] + location[1] > flushedSize) {
+                flush();
+            }
+        }
+        // Positional reads of what is on disk need no lock.
+        return read(location[0], (int) location[1]).array();
+    }
+
+    public String getText(String reference) throws IOException {
+        return new String(get(reference), StandardCharsets.UTF_8);
+    }
+
+    public synchronized void flush() throws IOException {
+        pending.flip();
+        int length = pending.remaining();
+        writeFully(pending, flushedSize);
+        flushedSize += length;
+        pending.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Blob store " + file + " ends early");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+
+    public synchronized void printStatistics() {
+        System.out.println("Blob store " + file + ": " + index.size() + " blobs, " + (flushedSize + pending.position())
+                + " bytes; " + duplicates + " of " + puts + " puts were duplicates (" + duplicateBytes + " bytes not written)");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            // Closing the channel releases the lock.
+            channel.close();
+        }
+    }
+}
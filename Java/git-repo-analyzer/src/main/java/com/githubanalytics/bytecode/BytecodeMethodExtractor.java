@@ -2,55 +2,316 @@ package com.githubanalytics.bytecode;
 
 import org.objectweb.asm.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import com.githubanalytics.blob.BlobStore;
+import com.githubanalytics.cache.ExtractionCache;
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.MetricsReport;
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+import com.githubanalytics.output.JsonStreamWriter;
+import com.githubanalytics.source.SourceLocation;
 
 public class BytecodeMethodExtractor {
-    private final List<Map<String, Object>> methods = new ArrayList<>();
+    private static final String CACHE_CONFIGURATION = "bytecode-methods-v2|asm9";
+
+    private static final Counter CLASSES = Metrics.counter("analyzer_files_total", "Files (classes for bytecode) processed.", "component", "bytecode");
+    private static final Counter CLASS_ERRORS = Metrics.counter("analyzer_file_errors_total", "Files that could not be read or parsed.", "component", "bytecode");
+    private static final Counter METHODS = Metrics.counter("analyzer_methods_total", "Method records extracted.", "component", "bytecode");
+
+    private final List<MethodRecord> methods = new ArrayList<>();
+    private final int workers;
+    private ExtractionCache cache;
+    // Class, type and member names shared by all records and instruction streams.
+    private NamePool namePool = new NamePool();
+    // Line numbers, local variable names and try/catch types from the debug attributes are only read when asked for.
+    private boolean includeDebugInfo;
+    // Store "bytecode" as readable text instead of the encoded instruction stream.
+    private boolean renderText;
+    // Also receives every class that is read, cached ones included.
+    private CallGraph.Builder callGraph;
+    // Give each record the lines of the source it was compiled from, see LineNumberJoiner.
+    private boolean recordLocations;
+    // Also read the .jar and .zip files met while walking a directory. Off by default: a repository's build output
+    // and wrapper jars repeat or add to its classes. An archive passed in explicitly is always read.
+    private boolean openArchivesInDirectories;
+    // Method content goes to the store and records only hold references, when set.
+    private BlobStore blobStore;
+    private boolean exportBlobReferences;
+
+    public BytecodeMethodExtractor() {
+        this(1);
+    }
+
+    public BytecodeMethodExtractor(int workers) {
+        this.workers = Math.max(1, workers);
+    }
 
     private class CustomClassVisitor extends ClassVisitor {
         private final String className;
+        private final List<MethodRecord> classMethods;
+        private String sourceFile;
+        // With recordLocations: locations by name + descriptor, and bridges waiting for the location of the method
+        // they call (position in classMethods and the target's name + descriptor).
+        private final Map<String, SourceLocation> locations = new HashMap<>();
+        private final Map<Integer, String> bridgeTargets = new HashMap<>();
 
-        CustomClassVisitor(String className) {
-            super(Opcodes.ASM9);
+        CustomClassVisitor(String className, List<MethodRecord> classMethods) {
+            // Calls reach the call graph through the visitor chain.
+            super(Opcodes.ASM9, callGraph == null ? null : callGraph.visitor());
             this.className = className;
+            this.classMethods = classMethods;
+        }
+
+        @Override
+        public void visitSource(String source, String debug) {
+            sourceFile = source;
+            super.visitSource(source, debug);
         }
 
         @Override
         public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-            Map<String, Object> methodMap = new HashMap<>();
-            methodMap.put("methodIdentifier", new MethodIdentifier(
+            MethodIdentifier methodIdentifier = new MethodIdentifier(
                     className, name, convertTypesToStringList(Type.getArgumentTypes(descriptor)),
-                    Type.getReturnType(descriptor).getClassName()
-            ));
-            methods.add(methodMap);
-            return new CustomMethodVisitor(methodMap, super.visitMethod(access, name, descriptor, signature, exceptions));
+                    Type.getReturnType(descriptor).getClassName(), namePool
+            );
+            return new CustomMethodVisitor(methodIdentifier, this, access, name + descriptor,
+                    super.visitMethod(access, name, descriptor, signature, exceptions));
+        }
+
+        void add(MethodRecord record, CustomMethodVisitor method) {
+            if (recordLocations) {
+                if (method.bridgeTarget != null) {
+                    bridgeTargets.put(classMethods.size(), method.bridgeTarget);
+                } else if (method.firstLine > 0) {
+                    SourceLocation location = new SourceLocation(sourceFileKey(), method.firstLine, method.lastLine,
+                            (method.access & Opcodes.ACC_SYNTHETIC) != 0);
+                    locations.put(method.nameAndDescriptor, location);
+                    record = record.withLocation(location);
+                }
+            }
+            // Methods are visited one after the other, so the class keeps declaration order.
+            classMethods.add(record);
+        }
+
+        @Override
+        public void visitEnd() {
+            // A bridge's own line is the class declaration's, it takes the lines of the method it forwards to.
+            bridgeTargets.forEach((position, target) -> {
+                SourceLocation targetLocation = locations.get(target);
+                if (targetLocation != null) {
+                    classMethods.set(position, classMethods.get(position).withLocation(new SourceLocation(
+                            targetLocation.getFile(), targetLocation.getFirstLine(), targetLocation.getLastLine(), true)));
+                }
+            });
+            super.visitEnd();
+        }
+
+        // Package path and SourceFile attribute, or the outermost class's name when the attribute is missing.
+        private String sourceFileKey() {
+            int packageEnd = className.lastIndexOf('.');
+            String packageName = packageEnd < 0 ? "" : className.substring(0, packageEnd);
+            String fileName = sourceFile;
+            if (fileName == null) {
+                String simpleName = className.substring(packageEnd + 1);
+                fileName = (simpleName.indexOf('$') > 0 ? simpleName.substring(0, simpleName.indexOf('$')) : simpleName) + ".java";
+            }
+            return namePool.intern(SourceLocation.fileKey(packageName, fileName));
         }
     }
 
-    public List<Map<String, Object>> getMethods() {
+    public List<MethodRecord> getMethods() {
         return this.methods;
     }
 
+    public void setCache(ExtractionCache cache) {
+        this.cache = cache;
+    }
+
+    // exportBlobReferences makes the JSON exports write blob references instead of inlining the content.
+    public void setBlobStore(BlobStore blobStore, boolean exportBlobReferences) {
+        this.blobStore = blobStore;
+        this.exportBlobReferences = exportBlobReferences;
+    }
+
+    private List<MethodRecord> withBlobs(List<MethodRecord> records) {
+        return blobStore == null ? records : MethodRecord.withBlobs(records, blobStore);
+    }
+
+    private JsonStreamWriter exportWriter(String filename, boolean prettyPrint) throws IOException {
+        JsonStreamWriter writer = JsonStreamWriter.array(filename, prettyPrint);
+        if (blobStore != null && exportBlobReferences) {
+            writer.setGson(MethodRecord.referencingBlobs(blobStore));
+        }
+        return writer;
+    }
+
+    public void setOpenArchivesInDirectories(boolean openArchivesInDirectories) {
+        this.openArchivesInDirectories = openArchivesInDirectories;
+    }
+
+    // Share names with another extractor, e.g. the source side of a join.
+    public void setNamePool(NamePool namePool) {
+        this.namePool = namePool;
+    }
+
+    public NamePool getNamePool() {
+        return namePool;
+    }
+
+    public void setIncludeDebugInfo(boolean includeDebugInfo) {
+        this.includeDebugInfo = includeDebugInfo;
+    }
+
+    public void setRenderText(boolean renderText) {
+        this.renderText = renderText;
+    }
+
+    public void setCallGraph(CallGraph.Builder callGraph) {
+        this.callGraph = callGraph;
+    }
+
+    // Needs the classes' debug attributes, so line numbers also end up in the instruction streams.
+    public void setRecordLocations(boolean recordLocations) {
+        this.recordLocations = recordLocations;
+    }
+
+    // Captures every instruction with its operands, see InstructionStream for the encoding.
     private class CustomMethodVisitor extends MethodVisitor {
-        private final Map<String, Object> methodMap;
-        private final StringBuilder bytecode = new StringBuilder();
+        private final MethodIdentifier methodIdentifier;
+        private final CustomClassVisitor owner;
+        private final int access;
+        private final String nameAndDescriptor;
+        private final InstructionStream.Encoder bytecode = new InstructionStream.Encoder(namePool);
+        // Line number range, 0 when the method has none.
+        private int firstLine;
+        private int lastLine;
+        // For a bridge, the name + descriptor of the method of the same class it calls.
+        private String bridgeTarget;
 
-        public CustomMethodVisitor(Map<String, Object> methodMap, MethodVisitor mv) {
+        public CustomMethodVisitor(MethodIdentifier methodIdentifier, CustomClassVisitor owner, int access,
+                                   String nameAndDescriptor, MethodVisitor mv) {
             super(Opcodes.ASM9, mv);
-            this.methodMap = methodMap;
+            this.methodIdentifier = methodIdentifier;
+            this.owner = owner;
+            this.access = access;
+            this.nameAndDescriptor = nameAndDescriptor;
         }
 
         @Override
         public void visitInsn(int opcode) {
-            bytecode.append(opcode).append("\n");
+            bytecode.insn(opcode);
             super.visitInsn(opcode);
         }
 
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            bytecode.intInsn(opcode, operand);
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            bytecode.varInsn(opcode, var);
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            bytecode.typeInsn(opcode, type);
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            bytecode.fieldInsn(opcode, owner, name, descriptor);
+            super.visitFieldInsn(opcode, owner, name, descriptor);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            if ((access & Opcodes.ACC_BRIDGE) != 0 && owner.replace('/', '.').equals(this.owner.className)) {
+                bridgeTarget = name + descriptor;
+            }
+            bytecode.methodInsn(opcode, owner, name, descriptor, isInterface);
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+            bytecode.invokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            bytecode.jumpInsn(opcode, label);
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            bytecode.label(label);
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            bytecode.ldcInsn(value);
+            super.visitLdcInsn(value);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            bytecode.iincInsn(var, increment);
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            bytecode.tableSwitchInsn(min, max, dflt, labels);
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            bytecode.lookupSwitchInsn(dflt, keys, labels);
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            bytecode.multiANewArrayInsn(descriptor, numDimensions);
+            super.visitMultiANewArrayInsn(descriptor, numDimensions);
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            bytecode.tryCatchBlock(start, end, handler, type);
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            if (firstLine == 0 || line < firstLine) {
+                firstLine = line;
+            }
+            lastLine = Math.max(lastLine, line);
+            bytecode.lineNumber(line, start);
+            super.visitLineNumber(line, start);
+        }
+
         @Override
         public void visitEnd() {
-            methodMap.put("bytecode", bytecode.toString());
+            owner.add(MethodRecord.ofBytecode(methodIdentifier, bytecode.build(), renderText), this);
             super.visitEnd();
         }
     }
@@ -64,46 +325,256 @@ public class BytecodeMethodExtractor {
     }
 
     public void analyzeDirectoryForMethods(String rootDir) {
-        processDirectory(new File(rootDir));
+        analyzeDirectoryForMethods(rootDir, methods::add);
+    }
+
+    // Hands every extracted method to the sink as soon as it is complete, instead of collecting it.
+    public void analyzeDirectoryForMethods(String rootDir, Consumer<MethodRecord> sink) {
+        try (ClassBatch batch = new ClassBatch(sink)) {
+            processDirectory(new File(rootDir), batch);
+        }
+    }
+
+    // A directory of class files (and archives, see setOpenArchivesInDirectories), or a single archive.
+    public void analyzeForMethods(String path, Consumer<MethodRecord> sink) {
+        if (new File(path).isFile() && isArchive(path)) {
+            analyzeArchiveForMethods(path, sink);
+        } else {
+            analyzeDirectoryForMethods(path, sink);
+        }
+    }
+
+    // Reads class files straight out of a .jar or .zip, including jars nested inside it.
+    public void analyzeArchiveForMethods(String archive) {
+        analyzeArchiveForMethods(archive, methods::add);
+    }
+
+    public void analyzeArchiveForMethods(String archive, Consumer<MethodRecord> sink) {
+        try (ClassBatch batch = new ClassBatch(sink)) {
+            processArchive(new File(archive), batch);
+        }
     }
 
-    private void processDirectory(File dir) {
+    private void processDirectory(File dir, ClassBatch batch) {
         if (dir.exists() && dir.isDirectory()) {
             File[] files = dir.listFiles();
             if (files != null) {
                 for (File file : files) {
                     if (file.isDirectory()) {
-                        processDirectory(file);
+                        processDirectory(file, batch);
                     } else if (file.getName().endsWith(".class")) {
-                        processClassFile(file);
+                        processClassFile(file, batch);
+                    } else if (openArchivesInDirectories && isArchive(file.getName())) {
+                        processArchive(file, batch);
                     }
                 }
             }
         }
     }
 
-    private void processClassFile(File file) {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            ClassReader classReader = new ClassReader(fis);
-            String className = classReader.getClassName().replace('/', '.');
-            classReader.accept(new CustomClassVisitor(className), 0);
+    private void processClassFile(File file, ClassBatch batch) {
+        try {
+            StageTimer readTimer = Stage.BYTECODE_READ.start();
+            byte[] content = Files.readAllBytes(file.toPath());
+            readTimer.stop();
+            batch.submit(file.getPath(), content);
+        } catch (IOException e) {
+            CLASS_ERRORS.increment();
+            e.printStackTrace();
+        }
+    }
+
+    private void processArchive(File archive, ClassBatch batch) {
+        // ZipFile reads the central directory once, entries are then inflated straight into byte arrays.
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (isWanted(entry)) {
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        processArchiveEntry(archive.getPath() + "!/" + entry.getName(), entry, in, batch);
+                    }
+                }
+            }
         } catch (IOException e) {
+            System.err.println("Error reading archive: " + archive);
             e.printStackTrace();
         }
     }
 
+    private void processNestedArchive(String location, InputStream in, ClassBatch batch) throws IOException {
+        // Nested archives have no central directory of their own on disk, so they are read as a stream.
+        ZipInputStream zipIn = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zipIn.getNextEntry()) != null) {
+            if (isWanted(entry)) {
+                processArchiveEntry(location + "!/" + entry.getName(), entry, zipIn, batch);
+            }
+        }
+    }
+
+    private void processArchiveEntry(String location, ZipEntry entry, InputStream in, ClassBatch batch) throws IOException {
+        if (entry.getName().endsWith(".class")) {
+            StageTimer readTimer = Stage.BYTECODE_READ.start();
+            byte[] content = readFully(in, entry.getSize());
+            readTimer.stop();
+            batch.submit(location, content);
+        } else {
+            processNestedArchive(location, new ByteArrayInputStream(readFully(in, entry.getSize())), batch);
+        }
+    }
+
+    private static boolean isWanted(ZipEntry entry) {
+        String name = entry.getName();
+        // Multi-release copies would show up as duplicates of the base classes.
+        return !entry.isDirectory()
+                && !name.startsWith("META-INF/versions/")
+                && (name.endsWith(".class") || isArchive(name));
+    }
+
+    private static boolean isArchive(String name) {
+        return name.endsWith(".jar") || name.endsWith(".zip");
+    }
+
+    private static byte[] readFully(InputStream in, long sizeHint) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint > 0 && sizeHint < Integer.MAX_VALUE ? (int) sizeHint : 8192);
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    // Parses class files on the worker pool while keeping the output in submission order. Only a bounded
+    // window of classes is in flight, so reading an archive never runs far ahead of the parsers.
+    private class ClassBatch implements AutoCloseable {
+        private final Consumer<MethodRecord> sink;
+        private final ExecutorService executor;
+        private final Deque<String> locations = new ArrayDeque<>();
+        private final Deque<Future<List<MethodRecord>>> results = new ArrayDeque<>();
+
+        ClassBatch(Consumer<MethodRecord> sink) {
+            this.sink = sink;
+            this.executor = workers > 1 ? Executors.newFixedThreadPool(workers) : null;
+        }
+
+        void submit(String location, byte[] content) {
+            if (executor == null) {
+                try {
+                    processClassBytes(location, content).forEach(sink);
+                } catch (RuntimeException e) {
+                    CLASS_ERRORS.increment();
+                    System.err.println("Error processing class: " + location + ": " + e);
+                }
+                return;
+            }
+
+            locations.add(location);
+            results.add(executor.submit(() -> processClassBytes(location, content)));
+            while (results.size() > workers * 16) {
+                drainOne();
+            }
+        }
+
+        private void drainOne() {
+            String location = locations.poll();
+            try {
+                results.poll().get().forEach(sink);
+            } catch (ExecutionException e) {
+                CLASS_ERRORS.increment();
+                System.err.println("Error processing class: " + location + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while processing " + location, e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (executor != null) {
+                try {
+                    while (!results.isEmpty()) {
+                        drainOne();
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    private List<MethodRecord> processClassBytes(String location, byte[] content) {
+        StageTimer classTimer = Stage.BYTECODE_FILE.start();
+        CLASSES.increment();
+        // Unchanged class files are served from the cache.
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.key("bytecode-methods", cacheConfiguration(), content);
+            String cached = cache.get(cacheKey);
+            if (cached != null) {
+                if (callGraph != null) {
+                    callGraph.addClass(content);
+                }
+                List<MethodRecord> cachedMethods = MethodRecordCodec.decode(cached, namePool, null, -1);
+                METHODS.add(cachedMethods.size());
+                classTimer.stop(location);
+                return withBlobs(cachedMethods);
+            }
+        }
+
+        List<MethodRecord> classMethods = new ArrayList<>();
+        // Stopped on failure too, a malformed class file is timed like any other.
+        try {
+            ClassReader classReader = new ClassReader(content);
+            String className = classReader.getClassName().replace('/', '.');
+            // Stack map frames are never looked at, debug attributes only when requested.
+            int parsingOptions = includeDebugInfo || recordLocations ? ClassReader.SKIP_FRAMES : ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+            StageTimer parseTimer = Stage.BYTECODE_PARSE.start();
+            classReader.accept(new CustomClassVisitor(className, classMethods), parsingOptions);
+            parseTimer.stop();
+        } finally {
+            classTimer.stop(location);
+        }
+
+        if (cache != null) {
+            cache.put(cacheKey, MethodRecordCodec.encode(classMethods, null));
+        }
+        METHODS.add(classMethods.size());
+        return withBlobs(classMethods);
+    }
+
+    private String cacheConfiguration() {
+        return CACHE_CONFIGURATION + "|debug=" + includeDebugInfo + "|text=" + renderText
+                + (recordLocations ? "|locations" : "");
+    }
+
     public void exportMethodsToJson(String filename) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        try (Writer writer = new FileWriter(filename)) {
-            gson.toJson(methods, writer);
+        exportMethodsToJson(filename, true);
+    }
+
+    public void exportMethodsToJson(String filename, boolean prettyPrint) {
+        try (JsonStreamWriter writer = exportWriter(filename, prettyPrint)) {
+            for (MethodRecord method : methods) {
+                writer.write(method);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // Extracts and writes in one go, methods are not retained so memory does not grow with the output.
+    public void streamMethodsToJson(String rootDir, String filename, boolean prettyPrint) {
+        try (JsonStreamWriter writer = exportWriter(filename, prettyPrint)) {
+            analyzeForMethods(rootDir, writer::writeUnchecked);
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void printAnalysisSummary() {
         long totalMethodCount = methods.size();
-        long uniqueMethodCount = methods.stream().map(m -> m.get("methodIdentifier")).distinct().count();
+        long uniqueMethodCount = methods.stream().map(MethodRecord::getMethodIdentifier).distinct().count();
         long duplicateMethodCount = totalMethodCount - uniqueMethodCount;
 
         System.out.println("Methods (total): " + totalMethodCount);
@@ -112,11 +583,11 @@ public class BytecodeMethodExtractor {
     }
 
     public void printDuplicateMethods() {
-        Set<Object> uniqueMethodIdentifiers = new HashSet<>();
-        List<Object> duplicateMethods = new ArrayList<>();
+        Set<MethodIdentifier> uniqueMethodIdentifiers = new HashSet<>();
+        List<MethodIdentifier> duplicateMethods = new ArrayList<>();
 
-        for (Map<String, Object> methodDetail : methods) {
-            Object methodIdentifier = methodDetail.get("methodIdentifier");
+        for (MethodRecord methodDetail : methods) {
+            MethodIdentifier methodIdentifier = methodDetail.getMethodIdentifier();
             if (!uniqueMethodIdentifiers.add(methodIdentifier)) {
                 duplicateMethods.add(methodIdentifier);
             }
@@ -126,22 +597,67 @@ public class BytecodeMethodExtractor {
             System.out.println("No duplicates found.");
         } else {
             System.out.println("Duplicate methods found:");
-            for (Object duplicate : duplicateMethods) {
+            for (MethodIdentifier duplicate : duplicateMethods) {
                 System.out.println(duplicate);
             }
         }
     }
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: java BytecodeMethodExtractor <root directory of class files> <output JSON file>");
+        List<String> positional = new ArrayList<>();
+        Set<String> flags = new HashSet<>();
+        String cacheDir = null;
+        long cacheSizeMb = 1024;
+        int workers = 1;
+        for (String arg : args) {
+            if (arg.startsWith("--workers=")) {
+                workers = Integer.parseInt(arg.substring("--workers=".length()));
+            } else if (arg.startsWith("--cache-dir=")) {
+                cacheDir = arg.substring("--cache-dir=".length());
+            } else if (arg.startsWith("--cache-size-mb=")) {
+                cacheSizeMb = Long.parseLong(arg.substring("--cache-size-mb=".length()));
+            } else if (arg.startsWith("--")) {
+                flags.add(arg);
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (positional.size() != 2) {
+            System.err.println("Usage: java BytecodeMethodExtractor <root directory of class files | jar | zip> <output JSON file> "
+                    + "[--workers=N] [--stream] [--compact] [--text] [--debug] [--open-archives] [--cache-dir=DIR] [--cache-size-mb=N]");
             System.exit(1);
         }
 
-        BytecodeMethodExtractor extractor = new BytecodeMethodExtractor();
-        extractor.analyzeDirectoryForMethods(args[0]);
-        extractor.exportMethodsToJson(args[1]);
-        extractor.printAnalysisSummary();
-        extractor.printDuplicateMethods();
+        boolean prettyPrint = !flags.contains("--compact");
+
+        BytecodeMethodExtractor extractor = new BytecodeMethodExtractor(workers);
+        extractor.setRenderText(flags.contains("--text"));
+        extractor.setIncludeDebugInfo(flags.contains("--debug"));
+        extractor.setOpenArchivesInDirectories(flags.contains("--open-archives"));
+        ExtractionCache cache = null;
+        if (cacheDir != null) {
+            try {
+                cache = new ExtractionCache(Paths.get(cacheDir), cacheSizeMb * 1024 * 1024);
+                extractor.setCache(cache);
+            } catch (IOException e) {
+                System.err.println("Cache disabled, cannot open " + cacheDir + ": " + e.getMessage());
+            }
+        }
+
+        if (flags.contains("--stream")) {
+            // Summaries need every method in memory, so they are skipped in streaming mode.
+            extractor.streamMethodsToJson(positional.get(0), positional.get(1), prettyPrint);
+        } else {
+            extractor.analyzeForMethods(positional.get(0), extractor.methods::add);
+            extractor.exportMethodsToJson(positional.get(1), prettyPrint);
+            extractor.printAnalysisSummary();
+            extractor.printDuplicateMethods();
+        }
+
+        if (cache != null) {
+            cache.printStatistics();
+        }
+        MetricsReport.writeNextTo(Paths.get(positional.get(1)));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,482 @@
+package com.githubanalytics.bytecode;
+
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+import org.objectweb.asm.*;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Calls between the methods of a repository, read from their bytecode. Every method declared by an analyzed class
+// gets a dense id (classes and methods in name order, so ids do not depend on the order classes were read in).
+// The callees of method i are targets[offsets[i]..offsets[i + 1]), sorted and without duplicates. Calls are
+// resolved the way the JVM links them: the owner named by the instruction, then its superclasses, then its
+// interfaces. A virtual or interface call also reaches the overriding methods of the owner's subtypes. Calls into
+// classes that were not analyzed (the JDK, dependencies) have no target and are only counted.
+public class CallGraph {
+    private final String[] owners;
+    private final String[] names;
+    private final String[] descriptors;
+    // Bridges and compiler-generated methods such as lambda bodies, traversals pass through them.
+    private final boolean[] synthetic;
+    private final int[] offsets;
+    private final int[] targets;
+    private final Map<String, Integer> ids;
+    private final long unresolvedCalls;
+    private final NamePool pool;
+
+    private CallGraph(String[] owners, String[] names, String[] descriptors, boolean[] synthetic, int[] offsets,
+                      int[] targets, Map<String, Integer> ids, long unresolvedCalls, NamePool pool) {
+        this.owners = owners;
+        this.names = names;
+        this.descriptors = descriptors;
+        this.synthetic = synthetic;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.ids = ids;
+        this.unresolvedCalls = unresolvedCalls;
+        this.pool = pool;
+    }
+
+    public int size() {
+        return owners.length;
+    }
+
+    public int getEdgeCount() {
+        return targets.length;
+    }
+
+    public long getUnresolvedCalls() {
+        return unresolvedCalls;
+    }
+
+    // Id of a declared method, -1 if there is none. The owner is an internal name, e.g. com/google/gson/Gson.
+    public int idOf(String owner, String name, String descriptor) {
+        Integer id = ids.get(key(owner, name, descriptor));
+        return id == null ? -1 : id;
+    }
+
+    public String getOwner(int id) {
+        return owners[id];
+    }
+
+    public String getName(int id) {
+        return names[id];
+    }
+
+    public String getDescriptor(int id) {
+        return descriptors[id];
+    }
+
+    public boolean isSynthetic(int id) {
+        return synthetic[id];
+    }
+
+    // Built the way BytecodeMethodExtractor builds its identifiers, so graph methods join with extracted ones.
+    public MethodIdentifier getMethodIdentifier(int id) {
+        List<String> parameterTypes = new ArrayList<>();
+        for (Type type : Type.getArgumentTypes(descriptors[id])) {
+            parameterTypes.add(type.getClassName());
+        }
+        return new MethodIdentifier(owners[id].replace('/', '.'), names[id], parameterTypes,
+                Type.getReturnType(descriptors[id]).getClassName(), pool);
+    }
+
+    public int[] getCallees(int id) {
+        return Arrays.copyOfRange(targets, offsets[id], offsets[id + 1]);
+    }
+
+    // Methods reachable from source in at most maxDepth calls, nearest first, without source itself. Synthetic
+    // methods are passed through without counting as a call and are not part of the result, so a lambda body's
+    // calls are as near as the calls of the method it was written in.
+    public int[] reachable(int source, int maxDepth) {
+        return new Traversal().run(source, maxDepth);
+    }
+
+    // One traversal per source, spread over workers threads. Result i belongs to sources[i].
+    public int[][] reachable(int[] sources, int maxDepth, int workers) {
+        int[][] results = new int[sources.length][];
+        int threads = Math.max(1, Math.min(workers, sources.length));
+        if (threads == 1) {
+            Traversal traversal = new Traversal();
+            for (int i = 0; i < sources.length; i++) {
+                results[i] = traversal.run(sources[i], maxDepth);
+            }
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int first = t;
+                futures.add(executor.submit(() -> {
+                    // Interleaved, so sources of one class (often neighbours) do not all land on one thread.
+                    Traversal traversal = new Traversal();
+                    for (int i = first; i < sources.length; i += threads) {
+                        results[i] = traversal.run(sources[i], maxDepth);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Call graph traversal failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during call graph traversal", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    public void printStatistics() {
+        System.out.println("Call graph: " + size() + " methods, " + getEdgeCount() + " calls, "
+                + unresolvedCalls + " calls outside the analyzed classes");
+    }
+
+    private static String key(String owner, String name, String descriptor) {
+        return owner + '.' + name + descriptor;
+    }
+
+    // Breadth-first, level by level. Scratch space is sized once per graph and reused across runs: a node is
+    // marked seen when its stamp equals the current run's, so nothing is cleared in between.
+    private class Traversal {
+        private final int[] stamps = new int[size()];
+        private final int[] queue = new int[size()];
+        private int run;
+
+        int[] run(int source, int maxDepth) {
+            if (++run == 0) {
+                Arrays.fill(stamps, 0);
+                run = 1;
+            }
+            stamps[source] = run;
+            queue[0] = source;
+            int head = 0;
+            int tail = 1;
+            for (int depth = 0; depth < maxDepth && head < tail; depth++) {
+                int levelEnd = tail;
+                for (; head < levelEnd; head++) {
+                    tail = visitCallees(queue[head], tail);
+                }
+                // Synthetic methods of the new level belong to it, and so do their callees.
+                for (int i = levelEnd; i < tail; i++) {
+                    if (synthetic[queue[i]]) {
+                        tail = visitCallees(queue[i], tail);
+                    }
+                }
+            }
+
+            int count = 0;
+            for (int i = 1; i < tail; i++) {
+                if (!synthetic[queue[i]]) {
+                    count++;
+                }
+            }
+            int[] result = new int[count];
+            count = 0;
+            for (int i = 1; i < tail; i++) {
+                if (!synthetic[queue[i]]) {
+                    result[count++] = queue[i];
+                }
+            }
+            return result;
+        }
+
+        private int visitCallees(int caller, int tail) {
+            for (int e = offsets[caller]; e < offsets[caller + 1]; e++) {
+                int callee = targets[e];
+                if (stamps[callee] != run) {
+                    stamps[callee] = run;
+                    queue[tail++] = callee;
+                }
+            }
+            return tail;
+        }
+    }
+
+    // Collects classes while they are read, safe to feed from several threads. Pass visitor() to a ClassReader,
+    // or chain it behind another ClassVisitor, as BytecodeMethodExtractor does.
+    public static class Builder {
+        private final NamePool pool;
+        private final Map<String, ClassNode> classes = new HashMap<>();
+        // Classes that also had to be read but were already known (duplicates on the class path), first one wins.
+        private long duplicateClasses;
+        // Calls to overriding methods are added for virtual and interface calls.
+        private boolean includeOverrides = true;
+
+        public Builder(NamePool pool) {
+            this.pool = pool;
+        }
+
+        public void setIncludeOverrides(boolean includeOverrides) {
+            this.includeOverrides = includeOverrides;
+        }
+
+        public ClassVisitor visitor() {
+            return new Visitor();
+        }
+
+        public void addClass(byte[] content) {
+            new ClassReader(content).accept(visitor(), ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        }
+
+        private synchronized void add(ClassNode node) {
+            if (classes.putIfAbsent(node.name, node) != null) {
+                duplicateClasses++;
+            }
+        }
+
+        public synchronized CallGraph build() {
+            StageTimer timer = Stage.CALL_GRAPH.start();
+            List<String> classNames = new ArrayList<>(classes.keySet());
+            Collections.sort(classNames);
+            List<String> owners = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            List<String> descriptors = new ArrayList<>();
+            List<MethodNode> methods = new ArrayList<>();
+            Map<String, Integer> ids = new HashMap<>();
+            for (String className : classNames) {
+                for (MethodNode method : classes.get(className).methods.values()) {
+                    ids.put(key(className, method.name, method.descriptor), methods.size());
+                    owners.add(className);
+                    names.add(method.name);
+                    descriptors.add(method.descriptor);
+                    methods.add(method);
+                }
+            }
+
+            Resolver resolver = new Resolver(ids);
+            int[] offsets = new int[methods.size() + 1];
+            int[] targets = new int[16];
+            int edgeCount = 0;
+            long unresolvedCalls = 0;
+            boolean[] synthetic = new boolean[methods.size()];
+            for (int id = 0; id < methods.size(); id++) {
+                MethodNode method = methods.get(id);
+                synthetic[id] = (method.access & (Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE)) != 0;
+                int start = edgeCount;
+                for (Call call : method.calls) {
+                    int[] resolved = resolver.resolve(call);
+                    if (resolved.length == 0) {
+                        unresolvedCalls++;
+                    }
+                    for (int target : resolved) {
+                        if (target != id) {
+                            if (edgeCount == targets.length) {
+                                targets = Arrays.copyOf(targets, edgeCount * 2);
+                            }
+                            targets[edgeCount++] = target;
+                        }
+                    }
+                }
+                // Sorted and unique per caller.
+                Arrays.sort(targets, start, edgeCount);
+                int unique = start;
+                for (int e = start; e < edgeCount; e++) {
+                    if (e == start || targets[e] != targets[unique - 1]) {
+                        targets[unique++] = targets[e];
+                    }
+                }
+                edgeCount = unique;
+                offsets[id + 1] = edgeCount;
+            }
+
+            CallGraph callGraph = new CallGraph(owners.toArray(new String[0]), names.toArray(new String[0]),
+                    descriptors.toArray(new String[0]), synthetic, offsets, Arrays.copyOf(targets, edgeCount), ids,
+                    unresolvedCalls, pool);
+            timer.stop();
+            return callGraph;
+        }
+
+        public synchronized long getDuplicateClasses() {
+            return duplicateClasses;
+        }
+
+        // Resolves call instructions to method ids, each distinct (owner, name, descriptor, kind) once.
+        private class Resolver {
+            private final Map<String, Integer> ids;
+            private final Map<String, List<String>> subtypes = new HashMap<>();
+            private final Map<String, int[]> resolved = new HashMap<>();
+
+            Resolver(Map<String, Integer> ids) {
+                this.ids = ids;
+                for (ClassNode node : classes.values()) {
+                    if (node.superName != null) {
+                        subtypes.computeIfAbsent(node.superName, k -> new ArrayList<>()).add(node.name);
+                    }
+                    for (String interfaceName : node.interfaces) {
+                        subtypes.computeIfAbsent(interfaceName, k -> new ArrayList<>()).add(node.name);
+                    }
+                }
+            }
+
+            int[] resolve(Call call) {
+                String cacheKey = call.virtual + key(call.owner, call.name, call.descriptor);
+                int[] targets = resolved.get(cacheKey);
+                if (targets == null) {
+                    targets = computeTargets(call);
+                    resolved.put(cacheKey, targets);
+                }
+                return targets;
+            }
+
+            private int[] computeTargets(Call call) {
+                String member = call.name + call.descriptor;
+                Set<Integer> targets = new LinkedHashSet<>();
+                Integer declared = lookUp(call.owner, member, new HashSet<>());
+                if (declared != null) {
+                    targets.add(declared);
+                }
+                // Overrides are only looked for below analyzed types, a call on java.lang.Object's toString()
+                // does not fan out to every toString() of the repository.
+                if (call.virtual && includeOverrides && classes.containsKey(call.owner)) {
+                    Deque<String> pending = new ArrayDeque<>(subtypes.getOrDefault(call.owner, Collections.emptyList()));
+                    Set<String> seen = new HashSet<>(pending);
+                    while (!pending.isEmpty()) {
+                        String subtype = pending.poll();
+                        MethodNode override = classes.get(subtype).methods.get(member);
+                        if (override != null && (override.access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) == 0) {
+                            targets.add(ids.get(subtype + '.' + member));
+                        }
+                        for (String next : subtypes.getOrDefault(subtype, Collections.emptyList())) {
+                            if (seen.add(next)) {
+                                pending.add(next);
+                            }
+                        }
+                    }
+                }
+                int[] result = new int[targets.size()];
+                int i = 0;
+                for (int target : targets) {
+                    result[i++] = target;
+                }
+                return result;
+            }
+
+            // The owner's own method, else the nearest superclass's, else one from its interfaces.
+            private Integer lookUp(String owner, String member, Set<String> visited) {
+                for (String type = owner; type != null && classes.containsKey(type); type = classes.get(type).superName) {
+                    Integer id = ids.get(type + '.' + member);
+                    if (id != null) {
+                        return id;
+                    }
+                }
+                for (String type = owner; type != null && classes.containsKey(type); type = classes.get(type).superName) {
+                    for (String interfaceName : classes.get(type).interfaces) {
+                        if (visited.add(interfaceName)) {
+                            Integer found = lookUp(interfaceName, member, visited);
+                            if (found != null) {
+                                return found;
+                            }
+                        }
+                    }
+                }
+                return null;
+            }
+        }
+
+        private class Visitor extends ClassVisitor {
+            private ClassNode node;
+
+            Visitor() {
+                super(Opcodes.ASM9);
+            }
+
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                node = new ClassNode(pool.intern(name), pool.intern(superName), intern(interfaces));
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                MethodNode method = new MethodNode(access, pool.intern(name), pool.intern(descriptor));
+                node.methods.put(method.name + method.descriptor, method);
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                        method.calls.add(new Call(pool.intern(owner), pool.intern(name), pool.intern(descriptor),
+                                opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKEINTERFACE));
+                    }
+
+                    @Override
+                    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+                                                       Object... bootstrapMethodArguments) {
+                        // Lambdas and method references: the implementation is a handle among the bootstrap
+                        // arguments (for LambdaMetafactory the second one).
+                        for (Object argument : bootstrapMethodArguments) {
+                            if (argument instanceof Handle) {
+                                Handle handle = (Handle) argument;
+                                if (handle.getTag() >= Opcodes.H_INVOKEVIRTUAL) {
+                                    method.calls.add(new Call(pool.intern(handle.getOwner()), pool.intern(handle.getName()),
+                                            pool.intern(handle.getDesc()),
+                                            handle.getTag() == Opcodes.H_INVOKEVIRTUAL || handle.getTag() == Opcodes.H_INVOKEINTERFACE));
+                                }
+                            }
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public void visitEnd() {
+                add(node);
+            }
+
+            private String[] intern(String[] interfaces) {
+                String[] pooled = new String[interfaces == null ? 0 : interfaces.length];
+                for (int i = 0; i < pooled.length; i++) {
+                    pooled[i] = pool.intern(interfaces[i]);
+                }
+                return pooled;
+            }
+        }
+    }
+
+    private static class ClassNode {
+        private final String name;
+        private final String superName;
+        private final String[] interfaces;
+        // By name + descriptor, in name order.
+        private final Map<String, MethodNode> methods = new TreeMap<>();
+
+        ClassNode(String name, String superName, String[] interfaces) {
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+    }
+
+    private static class MethodNode {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final List<Call> calls = new ArrayList<>();
+
+        MethodNode(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+    }
+
+    private static class Call {
+        private final String owner;
+        private final String name;
+        private final String descriptor;
+        private final boolean virtual;
+
+        Call(String owner, String name, String descriptor, boolean virtual) {
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.virtual = virtual;
+        }
+    }
+}
@@ -7,8 +7,14 @@ import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.expr.MethodCallExpr;
 import com.github.javaparser.ast.visitor.VoidVisitorAdapter;
 import com.github.javaparser.utils.Pair;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.githubanalytics.dataset.DatasetFormat;
+import com.githubanalytics.dataset.DatasetWriter;
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.MetricsReport;
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+import com.githubanalytics.output.JsonStreamWriter;
 
 import javax.swing.*;
 import java.beans.MethodDescriptor;
@@ -16,119 +22,316 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.Writer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 public class CodeTestMatcher {
+    private static final Counter PAIRS_BY_CALLED_NAMES = Metrics.counter("analyzer_code_test_pairs_total",
+            "Code-test pairs found, by matcher.", "matcher", "called_names");
+    private static final Counter PAIRS_BY_CALL_GRAPH = Metrics.counter("analyzer_code_test_pairs_total",
+            "Code-test pairs found, by matcher.", "matcher", "call_graph");
+    private static final Counter TEST_PARSE_ERRORS = Metrics.counter("analyzer_method_errors_total",
+            "Method bodies that could not be parsed.", "component", "code_test_matcher");
+
     public static void main(String[] args) {
+        // Without --call-graph, tests are paired with the methods their source code calls by name. With it, the
+        // bytecode under that path (classes of both the code and the tests) says which methods each test reaches.
+        String callGraphPath = null;
+        int maxDepth = 1;
+        int workers = 1;
+        // --dataset-format=jsonl|jsonl-gzip|binary writes the pairs as a sharded dataset (see DatasetWriter).
+        DatasetFormat datasetFormat = null;
+        long shardBytes = DatasetWriter.DEFAULT_SHARD_BYTES;
+        for (String arg : args) {
+            if (arg.startsWith("--call-graph=")) {
+                callGraphPath = arg.substring("--call-graph=".length());
+            } else if (arg.startsWith("--depth=")) {
+                maxDepth = Integer.parseInt(arg.substring("--depth=".length()));
+            } else if (arg.startsWith("--workers=")) {
+                workers = Integer.parseInt(arg.substring("--workers=".length()));
+            } else if (arg.startsWith("--dataset-format=")) {
+                datasetFormat = DatasetFormat.parse(arg.substring("--dataset-format=".length()));
+            } else if (arg.startsWith("--shard-mb=")) {
+                shardBytes = Long.parseLong(arg.substring("--shard-mb=".length())) << 20;
+            }
+        }
+
         // Parse repos for methods
         String sourceCodePath = "../Repos/gson";
         SourceCodeMethodExtractor sourceCodeMethodExtractor = new SourceCodeMethodExtractor();
         sourceCodeMethodExtractor.analyzeDirectoryForMethods(sourceCodePath);
 
         // Retrieve extracted methods
-        List<Map<String, Object>> extractedMethods = sourceCodeMethodExtractor.getMethods();
+        List<MethodRecord> extractedMethods = sourceCodeMethodExtractor.getMethods();
         System.out.println("Number of methods: " + extractedMethods.size());
 
         // Split to source methods and test methods
-        List<Map<String, Object>> sourceMethods = extractedMethods.stream()
+        List<MethodRecord> sourceMethods = extractedMethods.stream()
                 .filter(m -> !isTestMethod(m))
                 .collect(Collectors.toList());
         System.out.println("Number of source methods: " + sourceMethods.size());
 
-        List<Map<String, Object>> testMethods = extractedMethods.stream()
+        List<MethodRecord> testMethods = extractedMethods.stream()
                 .filter(CodeTestMatcher::isTestMethod)
                 .collect(Collectors.toList());
         System.out.println("Number of test methods: " + testMethods.size());
 
         // Match code method to test methods
-        List<Map<String, Object>> codeTestPairs = matchMethods(sourceMethods, testMethods);
+        List<CodeTestPair> codeTestPairs;
+        if (callGraphPath != null) {
+            CallGraph.Builder callGraphBuilder = new CallGraph.Builder(sourceCodeMethodExtractor.getNamePool());
+            BytecodeMethodExtractor bytecodeMethodExtractor = new BytecodeMethodExtractor(workers);
+            bytecodeMethodExtractor.setCallGraph(callGraphBuilder);
+            bytecodeMethodExtractor.analyzeForMethods(callGraphPath, method -> {
+            });
+            CallGraph callGraph = callGraphBuilder.build();
+            callGraph.printStatistics();
+            codeTestPairs = matchByCallGraph(sourceMethods, testMethods, callGraph, maxDepth, workers);
+        } else {
+            codeTestPairs = matchMethods(sourceMethods, testMethods);
+        }
 
         // Write to file.
-        writeListMapToJsonFile(codeTestPairs, "./data/gson__code_test_pairs.json");
+        if (datasetFormat != null) {
+            try {
+                DatasetWriter.writeAll(codeTestPairs, Paths.get("./data/gson__code_test_pairs"), "code-test-pairs",
+                        datasetFormat, shardBytes);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            writeListMapToJsonFile(codeTestPairs, "./data/gson__code_test_pairs.json");
+        }
+        MetricsReport.writeTo(Paths.get("./data"));
+
+    }
+
+    // A matched (code, test) pair, written as {"code": ..., "test": ...}.
+    public static class CodeTestPair {
+        private final MethodRecord code;
+        private final MethodRecord test;
+
+        public CodeTestPair(MethodRecord code, MethodRecord test) {
+            this.code = code;
+            this.test = test;
+        }
 
+        public MethodRecord getCode() {
+            return code;
+        }
+
+        public MethodRecord getTest() {
+            return test;
+        }
     }
 
-    private static boolean isTestMethod(Map<String, Object> methodMap) {
-        MethodIdentifier methodIdentifier = (MethodIdentifier) methodMap.get("methodIdentifier");
+    static boolean isTestMethod(MethodRecord method) {
+        MethodIdentifier methodIdentifier = method.getMethodIdentifier();
         String className = methodIdentifier.getClassName();
         String methodName = methodIdentifier.getMethodName();
         return className.contains("Test") && (methodName.contains("test") || methodName.contains("Test"));
     }
 
-    private static List<Map<String, Object>> matchMethods(List<Map<String, Object>> sourceMethods, List<Map<String, Object>> testMethods) {
-        int codeTestPairsNum = 0;
-        List<Map<String, Object>> results = new ArrayList<>();
-
-        // For each source method, find all test methods where it appears in.
-        for (Map<String, Object> sourceMethod : sourceMethods) {
-            MethodIdentifier sourceMethodIdentifier = (MethodIdentifier) sourceMethod.get("methodIdentifier");
-            String sourceMethodClass = sourceMethodIdentifier.getClassName();
-            String sourceMethodName = sourceMethodIdentifier.getMethodName();
-            List<String> sourceMethodParameterTypes = sourceMethodIdentifier.getParameterTypes();
-            String sourceMethodCode = (String) sourceMethod.get("sourceCode");
-
-            for (Map<String, Object> testMethod : testMethods) {
-                MethodIdentifier testMethodIdentifier = (MethodIdentifier) testMethod.get("methodIdentifier");
-                String testMethodClass = testMethodIdentifier.getClassName();
-                String testMethodName = testMethodIdentifier.getMethodName();
-                List<String> testMethodParameterTypes = testMethodIdentifier.getParameterTypes();
-                String testMethodCode = (String) testMethod.get("sourceCode");
-                if (testMethodClass.contains(sourceMethodClass) && testMethodCode.contains(sourceMethodName)) {
-                    // Further parse sourceCode to get the called external methods. This will be used for future
-                    // reconciliation.
-                    // There can be overrides, check which version is matched.
-                    // Count the number of params of the instance.
-                    List<Map<String, Object>> calledExternalMethods = new ArrayList<>();
-                    MethodDeclaration methodDeclaration = StaticJavaParser.parseMethodDeclaration(testMethodCode);
-                    methodDeclaration.accept(new VoidVisitorAdapter<Void>() {
-                        @Override
-                        public void visit(MethodCallExpr n, Void arg) {
-                            Map<String, Object> methodDetails = new HashMap<>();
-                            methodDetails.put("methodName", n.getNameAsString());
-                            methodDetails.put("numParams", n.getArguments().size());
-                            calledExternalMethods.add(methodDetails);
-                            super.visit(n, arg);
-                        }
-                    }, null);
-
-                    int paramsCount = -100;
-                    for (Map<String, Object> calledExternalMethod : calledExternalMethods) {
-                        if (calledExternalMethod.get("methodName").equals(sourceMethodName)) {
-                            paramsCount = (int) calledExternalMethod.get("numParams");
-                        }
-                    }
+    static List<CodeTestPair> matchMethods(List<MethodRecord> sourceMethods, List<MethodRecord> testMethods) {
+        StageTimer timer = Stage.MATCH_CALLED_NAMES.start();
+        // Index source methods by name and build one automaton over all names.
+        Map<String, List<Integer>> sourceMethodsByName = new HashMap<>();
+        for (int s = 0; s < sourceMethods.size(); s++) {
+            MethodIdentifier sourceMethodIdentifier = sourceMethods.get(s).getMethodIdentifier();
+            sourceMethodsByName
+                    .computeIfAbsent(sourceMethodIdentifier.getMethodName(), k -> new ArrayList<>())
+                    .add(s);
+        }
+        MethodNameAutomaton automaton = new MethodNameAutomaton(sourceMethodsByName.keySet());
+
+        // Candidate pairs, encoded as (source index << 32 | test index) so they can be emitted in source order.
+        List<Long> candidates = new ArrayList<>();
+
+        for (int t = 0; t < testMethods.size(); t++) {
+            MethodRecord testMethod = testMethods.get(t);
+            MethodIdentifier testMethodIdentifier = testMethod.getMethodIdentifier();
+            String testMethodClass = testMethodIdentifier.getClassName();
+            String testMethodCode = testMethod.getSourceCode();
+
+            // Scan the body once, tests that mention no source method name are never parsed.
+            int[] mentionedNames = automaton.findAll(testMethodCode);
+            if (mentionedNames.length == 0) {
+                continue;
+            }
+
+            // Only tests whose class contains the class of a mentioned source method can pair, the others are not
+            // worth parsing.
+            if (!mentionsMethodOfClass(mentionedNames, automaton, sourceMethodsByName, sourceMethods, testMethodClass)) {
+                continue;
+            }
+
+            // Parse once and keep the number of arguments of the last call to each method name.
+            // There can be overrides, the arity tells which version is matched.
+            Map<String, Integer> calledExternalMethods = new HashMap<>();
+            MethodDeclaration methodDeclaration;
+            try {
+                methodDeclaration = StaticJavaParser.parseMethodDeclaration(testMethodCode);
+            } catch (ParseProblemException e) {
+                System.err.println("Could not parse test method " + testMethodIdentifier);
+                TEST_PARSE_ERRORS.increment();
+                continue;
+            }
+            methodDeclaration.accept(new VoidVisitorAdapter<Void>() {
+                @Override
+                public void visit(MethodCallExpr n, Void arg) {
+                    calledExternalMethods.put(n.getNameAsString(), n.getArguments().size());
+                    super.visit(n, arg);
+                }
+            }, null);
+
+            for (int id : mentionedNames) {
+                String sourceMethodName = automaton.getPattern(id);
+                Integer paramsCount = calledExternalMethods.get(sourceMethodName);
+                if (paramsCount == null) {
+                    continue;
+                }
+
+                for (int s : sourceMethodsByName.get(sourceMethodName)) {
+                    MethodIdentifier sourceMethodIdentifier = sourceMethods.get(s).getMethodIdentifier();
 
                     // TODO: Use fully qualified types, instead of params count.
-                    if (paramsCount == sourceMethodParameterTypes.size()) {
-                        System.out.println("Source method " +
-                                sourceMethodClass + "." + sourceMethodName + ": " + sourceMethodParameterTypes +
-                                " is tested in: " + testMethodClass + "." + testMethodName
-                        );
-                        codeTestPairsNum += 1;
-
-                        // If there is a match add the pairs to results.
-                        Map<String, Object> codeTestPair = new HashMap<>();
-                        codeTestPair.put("code", sourceMethod);
-                        codeTestPair.put("test", testMethod);
-                        results.add(codeTestPair);
+                    if (testMethodClass.contains(sourceMethodIdentifier.getClassName())
+                            && paramsCount == sourceMethodIdentifier.getParameterTypes().size()) {
+                        candidates.add(((long) s << 32) | t);
                     }
                 }
             }
         }
 
-        System.out.println("Numbers of code-test pairs: " + codeTestPairsNum);
+        List<CodeTestPair> pairs = toPairs(candidates, sourceMethods, testMethods);
+        timer.stop();
+        PAIRS_BY_CALLED_NAMES.add(pairs.size());
+        return pairs;
+    }
+
+    private static boolean mentionsMethodOfClass(int[] mentionedNames, MethodNameAutomaton automaton,
+                                                 Map<String, List<Integer>> sourceMethodsByName,
+                                                 List<MethodRecord> sourceMethods, String testMethodClass) {
+        for (int id : mentionedNames) {
+            for (int s : sourceMethodsByName.get(automaton.getPattern(id))) {
+                if (testMethodClass.contains(sourceMethods.get(s).getMethodIdentifier().getClassName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Pairs each test with the source methods it reaches in at most maxDepth calls (1: the ones it calls itself).
+    // Records are found in the graph by class, name and parameter types. The return type is left out: source
+    // return types are often unresolved, and overloads never differ in it alone.
+    static List<CodeTestPair> matchByCallGraph(List<MethodRecord> sourceMethods, List<MethodRecord> testMethods,
+                                                       CallGraph callGraph, int maxDepth, int workers) {
+        StageTimer timer = Stage.MATCH_CALL_GRAPH.start();
+        MethodIdentifier[] graphMethods = new MethodIdentifier[callGraph.size()];
+        MethodJoiner.FingerprintIndex graphIndex = new MethodJoiner.FingerprintIndex(graphMethods.length);
+        for (int id = 0; id < graphMethods.length; id++) {
+            graphMethods[id] = callGraph.getMethodIdentifier(id);
+            graphIndex.add(graphMethods[id].getFingerprint(), id);
+        }
+
+        // Source methods by the graph method they were compiled to.
+        Map<Integer, List<Integer>> sourceMethodsByGraphId = new HashMap<>();
+        for (int s = 0; s < sourceMethods.size(); s++) {
+            MethodIdentifier sourceMethodIdentifier = sourceMethods.get(s).getMethodIdentifier();
+            for (int id = graphIndex.first(sourceMethodIdentifier.getFingerprint()); id != -1; id = graphIndex.next(id)) {
+                if (sameSignature(sourceMethodIdentifier, graphMethods[id])) {
+                    sourceMethodsByGraphId.computeIfAbsent(id, k -> new ArrayList<>()).add(s);
+                }
+            }
+        }
+
+        List<Integer> foundTests = new ArrayList<>();
+        List<Integer> testGraphIds = new ArrayList<>();
+        for (int t = 0; t < testMethods.size(); t++) {
+            MethodIdentifier testMethodIdentifier = testMethods.get(t).getMethodIdentifier();
+            for (int id = graphIndex.first(testMethodIdentifier.getFingerprint()); id != -1; id = graphIndex.next(id)) {
+                if (sameSignature(testMethodIdentifier, graphMethods[id])) {
+                    foundTests.add(t);
+                    testGraphIds.add(id);
+                    break;
+                }
+            }
+        }
+        System.out.println("Test methods not found in the bytecode: " + (testMethods.size() - foundTests.size()));
+
+        int[] sources = new int[testGraphIds.size()];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = testGraphIds.get(i);
+        }
+        int[][] reached = callGraph.reachable(sources, maxDepth, workers);
+
+        List<Long> candidates = new ArrayList<>();
+        for (int i = 0; i < reached.length; i++) {
+            int t = foundTests.get(i);
+            for (int id : reached[i]) {
+                for (int s : sourceMethodsByGraphId.getOrDefault(id, Collections.emptyList())) {
+                    candidates.add(((long) s << 32) | t);
+                }
+            }
+        }
+        List<CodeTestPair> pairs = toPairs(candidates, sourceMethods, testMethods);
+        timer.stop();
+        PAIRS_BY_CALL_GRAPH.add(pairs.size());
+        return pairs;
+    }
+
+    private static boolean sameSignature(MethodIdentifier a, MethodIdentifier b) {
+        if (a.getFingerprint() != b.getFingerprint()
+                || !a.getCanonicalClassName().equals(b.getCanonicalClassName())
+                || !a.getMethodName().equals(b.getMethodName())
+                || a.getParameterCount() != b.getParameterCount()) {
+            return false;
+        }
+        for (int i = 0; i < a.getParameterCount(); i++) {
+            if (!a.getSimpleParameterType(i).equals(b.getSimpleParameterType(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Candidates are (source index << 32 | test index), pairs come out in source order.
+    private static List<CodeTestPair> toPairs(List<Long> candidates, List<MethodRecord> sourceMethods,
+                                              List<MethodRecord> testMethods) {
+        Collections.sort(candidates);
+
+        List<CodeTestPair> results = new ArrayList<>();
+        for (long candidate : candidates) {
+            MethodRecord sourceMethod = sourceMethods.get((int) (candidate >>> 32));
+            MethodRecord testMethod = testMethods.get((int) candidate);
+            MethodIdentifier sourceMethodIdentifier = sourceMethod.getMethodIdentifier();
+            MethodIdentifier testMethodIdentifier = testMethod.getMethodIdentifier();
+            System.out.println("Source method " +
+                    sourceMethodIdentifier.getClassName() + "." + sourceMethodIdentifier.getMethodName() + ": " +
+                    sourceMethodIdentifier.getParameterTypes() +
+                    " is tested in: " + testMethodIdentifier.getClassName() + "." + testMethodIdentifier.getMethodName()
+            );
+
+            // If there is a match add the pairs to results.
+            results.add(new CodeTestPair(sourceMethod, testMethod));
+        }
+
+        System.out.println("Numbers of code-test pairs: " + results.size());
 
         return results;
     }
 
-    private static void writeListMapToJsonFile(List<Map<String, Object>> list, String filePath) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        try (Writer writer = new FileWriter(filePath)) {
-            gson.toJson(list, writer);
+    private static void writeListMapToJsonFile(List<CodeTestPair> list, String filePath) {
+        try (JsonStreamWriter writer = JsonStreamWriter.array(filePath, true)) {
+            for (CodeTestPair entry : list) {
+                writer.write(entry);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
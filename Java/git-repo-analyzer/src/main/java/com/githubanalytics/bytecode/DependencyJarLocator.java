@@ -0,0 +1,433 @@
+package com.githubanalytics.bytecode;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Finds the jars a repository depends on, as far as they are already in the local Maven repository or the
+// Gradle cache. Dependencies are read from pom.xml and build.gradle(.kts) files (plus gradle.properties and
+// gradle/libs.versions.toml for versions). Nothing is downloaded; a dependency that is not present locally is
+// simply left out. When a version cannot be determined, the highest version present locally is used.
+public class DependencyJarLocator {
+    private static final Pattern PROPERTY_REFERENCE = Pattern.compile("\\$\\{([^}]+)}");
+    // 'group:artifact:version', optionally with a classifier or an @extension.
+    private static final Pattern GRADLE_STRING_NOTATION = Pattern.compile(
+            "[\"']([\\w.\\-]+):([\\w.\\-]+):([^\"':@]+)(?::[\\w.\\-]+)?(?:@\\w+)?[\"']");
+    // group: 'g', name: 'a', version: 'v' (Groovy) or group = "g", name = "a", version = "v" (Kotlin).
+    private static final Pattern GRADLE_MAP_NOTATION = Pattern.compile(
+            "group\\s*[:=]\\s*[\"']([^\"']+)[\"']\\s*,\\s*name\\s*[:=]\\s*[\"']([^\"']+)[\"']"
+                    + "(?:\\s*,\\s*version\\s*[:=]\\s*[\"']([^\"']+)[\"'])?");
+    private static final Pattern GRADLE_VARIABLE = Pattern.compile("([\\w.]+)\\s*=\\s*[\"']([^\"'$]+)[\"']");
+    private static final Pattern GRADLE_VARIABLE_REFERENCE = Pattern.compile("\\$\\{?([\\w.]+)}?");
+    private static final Pattern TOML_MODULE = Pattern.compile(
+            "module\\s*=\\s*\"([^\":]+):([^\"]+)\"(?:.*?version(?:\\.ref)?\\s*=\\s*\"([^\"]+)\")?");
+    private static final Pattern TOML_COORDINATES = Pattern.compile("=\\s*\"([\\w.\\-]+):([\\w.\\-]+):([^\"]+)\"");
+
+    private final Path mavenRepository;
+    private final Path gradleCache;
+
+    public DependencyJarLocator() {
+        this(defaultMavenRepository(), defaultGradleCache());
+    }
+
+    public DependencyJarLocator(Path mavenRepository, Path gradleCache) {
+        this.mavenRepository = mavenRepository;
+        this.gradleCache = gradleCache;
+    }
+
+    private static Path defaultMavenRepository() {
+        String localRepository = System.getProperty("maven.repo.local");
+        if (localRepository != null) {
+            return Paths.get(localRepository);
+        }
+        return Paths.get(System.getProperty("user.home"), ".m2", "repository");
+    }
+
+    private static Path defaultGradleCache() {
+        String gradleUserHome = System.getenv("GRADLE_USER_HOME");
+        Path home = gradleUserHome != null ? Paths.get(gradleUserHome) : Paths.get(System.getProperty("user.home"), ".gradle");
+        return home.resolve("caches").resolve("modules-2").resolve("files-2.1");
+    }
+
+    public List<File> locate(File repoRoot) throws IOException {
+        List<Path> pomFiles = new ArrayList<>();
+        List<Path> gradleFiles = new ArrayList<>();
+        collectBuildFiles(repoRoot.toPath(), pomFiles, gradleFiles);
+
+        // Coordinates are kept in a set, modules of one build usually repeat the same dependencies.
+        Set<String> coordinates = new LinkedHashSet<>();
+        if (!pomFiles.isEmpty()) {
+            readMavenDependencies(pomFiles, coordinates);
+        }
+        if (!gradleFiles.isEmpty()) {
+            readGradleDependencies(gradleFiles, coordinates);
+        }
+
+        Set<File> jars = new TreeSet<>();
+        for (String coordinate : coordinates) {
+            String[] parts = coordinate.split(":", -1);
+            File jar = findJar(parts[0], parts[1], parts[2].isEmpty() ? null : parts[2]);
+            if (jar != null) {
+                jars.add(jar);
+            }
+        }
+        return new ArrayList<>(jars);
+    }
+
+    private static void collectBuildFiles(Path repoRoot, List<Path> pomFiles, List<Path> gradleFiles) throws IOException {
+        Files.walkFileTree(repoRoot, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String name = dir.getFileName() == null ? "" : dir.getFileName().toString();
+                // Build output and VCS metadata hold copies, not build definitions.
+                if (!dir.equals(repoRoot) && (name.startsWith(".") || name.equals("target") || name.equals("build")
+                        || name.equals("node_modules"))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                if (name.equals("pom.xml")) {
+                    pomFiles.add(file);
+                } else if (name.equals("build.gradle") || name.equals("build.gradle.kts") || name.equals("gradle.properties")
+                        || name.equals("libs.versions.toml")) {
+                    gradleFiles.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        // Root files first, so their properties win over those of modules.
+        Comparator<Path> byDepth = Comparator.comparingInt(Path::getNameCount);
+        pomFiles.sort(byDepth.thenComparing(Comparator.naturalOrder()));
+        gradleFiles.sort(byDepth.thenComparing(Comparator.naturalOrder()));
+    }
+
+    private void readMavenDependencies(List<Path> pomFiles, Set<String> coordinates) {
+        List<Document> documents = new ArrayList<>();
+        Map<String, String> properties = new HashMap<>();
+        Map<String, String> managedVersions = new HashMap<>();
+
+        for (Path pomFile : pomFiles) {
+            try {
+                Document document = newDocumentBuilder().parse(pomFile.toFile());
+                documents.add(document);
+                Element project = document.getDocumentElement();
+
+                Element propertiesElement = child(project, "properties");
+                if (propertiesElement != null) {
+                    for (Element property : children(propertiesElement)) {
+                        properties.putIfAbsent(property.getTagName(), property.getTextContent().trim());
+                    }
+                }
+                String version = text(project, "version");
+                Element parent = child(project, "parent");
+                if (version == null && parent != null) {
+                    version = text(parent, "version");
+                }
+                if (version != null) {
+                    properties.putIfAbsent("project.version", version);
+                }
+            } catch (Exception e) {
+                System.err.println("Skipping unreadable " + pomFile + ": " + e.getMessage());
+            }
+        }
+
+        for (Document document : documents) {
+            Element dependencyManagement = child(document.getDocumentElement(), "dependencyManagement");
+            if (dependencyManagement != null) {
+                for (Element dependency : dependencies(child(dependencyManagement, "dependencies"))) {
+                    String version = resolveProperties(text(dependency, "version"), properties);
+                    if (version != null) {
+                        managedVersions.putIfAbsent(text(dependency, "groupId") + ":" + text(dependency, "artifactId"), version);
+                    }
+                }
+            }
+        }
+
+        // Only project/dependencies: managed versions, plugin dependencies and exclusions are not dependencies.
+        for (Document document : documents) {
+            for (Element dependency : dependencies(child(document.getDocumentElement(), "dependencies"))) {
+                if ("pom".equals(text(dependency, "type"))) {
+                    continue;
+                }
+                String groupId = resolveProperties(text(dependency, "groupId"), properties);
+                String artifactId = resolveProperties(text(dependency, "artifactId"), properties);
+                if (groupId == null || artifactId == null) {
+                    continue;
+                }
+                String version = resolveProperties(text(dependency, "version"), properties);
+                if (version == null) {
+                    version = managedVersions.get(groupId + ":" + artifactId);
+                }
+                coordinates.add(groupId + ":" + artifactId + ":" + (isExactVersion(version) ? version : ""));
+            }
+        }
+    }
+
+    private void readGradleDependencies(List<Path> gradleFiles, Set<String> coordinates) throws IOException {
+        List<String> buildScripts = new ArrayList<>();
+        Map<String, String> variables = new HashMap<>();
+
+        for (Path gradleFile : gradleFiles) {
+            String content = new String(Files.readAllBytes(gradleFile), StandardCharsets.UTF_8);
+            String name = gradleFile.getFileName().toString();
+            if (name.equals("gradle.properties")) {
+                Properties properties = new Properties();
+                properties.load(new java.io.StringReader(content));
+                for (String key : properties.stringPropertyNames()) {
+                    variables.putIfAbsent(key, properties.getProperty(key).trim());
+                }
+            } else if (name.equals("libs.versions.toml")) {
+                readVersionCatalog(content, coordinates);
+            } else {
+                buildScripts.add(content);
+                // ext { guavaVersion = '31.1-jre' }, val guavaVersion = "31.1-jre", def guavaVersion = ...
+                Matcher variable = GRADLE_VARIABLE.matcher(content);
+                while (variable.find()) {
+                    String key = variable.group(1);
+                    variables.putIfAbsent(key.startsWith("ext.") ? key.substring(4) : key, variable.group(2));
+                }
+            }
+        }
+
+        for (String buildScript : buildScripts) {
+            Matcher stringNotation = GRADLE_STRING_NOTATION.matcher(buildScript);
+            while (stringNotation.find()) {
+                addGradleCoordinate(stringNotation.group(1), stringNotation.group(2), stringNotation.group(3), variables, coordinates);
+            }
+            Matcher mapNotation = GRADLE_MAP_NOTATION.matcher(buildScript);
+            while (mapNotation.find()) {
+                addGradleCoordinate(mapNotation.group(1), mapNotation.group(2), mapNotation.group(3), variables, coordinates);
+            }
+        }
+    }
+
+    private static void addGradleCoordinate(String group, String artifact, String version, Map<String, String> variables, Set<String> coordinates) {
+        if (version != null) {
+            Matcher reference = GRADLE_VARIABLE_REFERENCE.matcher(version);
+            StringBuffer resolved = new StringBuffer();
+            while (reference.find()) {
+                String value = variables.get(reference.group(1));
+                reference.appendReplacement(resolved, Matcher.quoteReplacement(value != null ? value : reference.group()));
+            }
+            reference.appendTail(resolved);
+            version = resolved.toString();
+        }
+        coordinates.add(group + ":" + artifact + ":" + (isExactVersion(version) ? version : ""));
+    }
+
+    // Only the [libraries] table is of interest, either "g:a:v" or { module = "g:a", version[.ref] = "..." }.
+    private static void readVersionCatalog(String content, Set<String> coordinates) {
+        Map<String, String> versions = new HashMap<>();
+        String section = "";
+        List<String> libraries = new ArrayList<>();
+        for (String line : content.split("\n")) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("[")) {
+                section = trimmed;
+            } else if (section.equals("[versions]")) {
+                Matcher variable = Pattern.compile("([\\w.\\-]+)\\s*=\\s*\"([^\"]+)\"").matcher(trimmed);
+                if (variable.find()) {
+                    versions.put(variable.group(1), variable.group(2));
+                }
+            } else if (section.equals("[libraries]")) {
+                libraries.add(trimmed);
+            }
+        }
+        for (String library : libraries) {
+            Matcher module = TOML_MODULE.matcher(library);
+            Matcher coordinatesMatcher = TOML_COORDINATES.matcher(library);
+            if (module.find()) {
+                String version = module.group(3);
+                if (version != null && library.contains("version.ref")) {
+                    version = versions.get(version);
+                }
+                coordinates.add(module.group(1) + ":" + module.group(2) + ":" + (isExactVersion(version) ? version : ""));
+            } else if (coordinatesMatcher.find()) {
+                coordinates.add(coordinatesMatcher.group(1) + ":" + coordinatesMatcher.group(2) + ":" + coordinatesMatcher.group(3));
+            }
+        }
+    }
+
+    private File findJar(String groupId, String artifactId, String version) {
+        Path mavenArtifact = mavenRepository.resolve(groupId.replace('.', File.separatorChar)).resolve(artifactId);
+        Path jar = findJar(mavenArtifact, artifactId, version, DependencyJarLocator::mavenJar);
+        if (jar == null) {
+            Path gradleArtifact = gradleCache.resolve(groupId).resolve(artifactId);
+            jar = findJar(gradleArtifact, artifactId, version, DependencyJarLocator::gradleJar);
+        }
+        return jar == null ? null : jar.toFile();
+    }
+
+    // The jar of the version, or of the highest version that has one when the version is not known. Artifact
+    // directories also hold metadata files and versions whose jar was never downloaded (only a pom, or a
+    // .lastUpdated marker of a failed download); neither is a version to use.
+    private static Path findJar(Path artifactDir, String artifactId, String version, JarLayout layout) {
+        if (version != null) {
+            return layout.jar(artifactDir, artifactId, version);
+        }
+        String[] versions = artifactDir.toFile().list();
+        if (versions == null) {
+            return null;
+        }
+        Arrays.sort(versions, Collections.reverseOrder(DependencyJarLocator::compareVersions));
+        for (String candidate : versions) {
+            Path jar = layout.jar(artifactDir, artifactId, candidate);
+            if (jar != null) {
+                return jar;
+            }
+        }
+        return null;
+    }
+
+    @FunctionalInterface
+    private interface JarLayout {
+        Path jar(Path artifactDir, String artifactId, String version);
+    }
+
+    // Maven layout: group/as/path/artifact/version/artifact-version.jar
+    private static Path mavenJar(Path artifactDir, String artifactId, String version) {
+        Path jar = artifactDir.resolve(version).resolve(artifactId + "-" + version + ".jar");
+        return Files.isRegularFile(jar) ? jar : null;
+    }
+
+    // Gradle layout: group/artifact/version/<sha1>/artifact-version.jar
+    private static Path gradleJar(Path artifactDir, String artifactId, String version) {
+        Path versionDir = artifactDir.resolve(version);
+        if (!Files.isDirectory(versionDir)) {
+            return null;
+        }
+        String jarName = artifactId + "-" + version + ".jar";
+        try (DirectoryStream<Path> hashes = Files.newDirectoryStream(versionDir)) {
+            for (Path hash : hashes) {
+                Path jar = hash.resolve(jarName);
+                if (Files.isRegularFile(jar)) {
+                    return jar;
+                }
+            }
+        } catch (IOException e) {
+            // Not in the Gradle cache.
+        }
+        return null;
+    }
+
+    // Numeric segments compare as numbers, so 1.10 > 1.9.
+    static int compareVersions(String left, String right) {
+        String[] leftParts = left.split("[.\\-]");
+        String[] rightParts = right.split("[.\\-]");
+        for (int i = 0; i < Math.min(leftParts.length, rightParts.length); i++) {
+            int comparison;
+            if (leftParts[i].matches("\\d+") && rightParts[i].matches("\\d+")) {
+                comparison = new java.math.BigInteger(leftParts[i]).compareTo(new java.math.BigInteger(rightParts[i]));
+            } else {
+                comparison = leftParts[i].compareTo(rightParts[i]);
+            }
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(leftParts.length, rightParts.length);
+    }
+
+    // Ranges, dynamic versions (Maven's LATEST and RELEASE, Gradle's 1.+ and latest.*) and unresolved placeholders
+    // fall back to whatever is present locally.
+    private static boolean isExactVersion(String version) {
+        return version != null && !version.isEmpty() && version.matches("[\\w.\\-]+") && !version.endsWith("+")
+                && !version.equals("LATEST") && !version.equals("RELEASE")
+                && !version.equals("latest.release") && !version.equals("latest.integration");
+    }
+
+    private static String resolveProperties(String value, Map<String, String> properties) {
+        if (value == null) {
+            return null;
+        }
+        // A few rounds, properties may refer to other properties.
+        for (int round = 0; round < 5 && value.contains("${"); round++) {
+            Matcher reference = PROPERTY_REFERENCE.matcher(value);
+            StringBuffer resolved = new StringBuffer();
+            while (reference.find()) {
+                String property = properties.get(reference.group(1));
+                reference.appendReplacement(resolved, Matcher.quoteReplacement(property != null ? property : reference.group()));
+            }
+            reference.appendTail(resolved);
+            value = resolved.toString();
+        }
+        return value;
+    }
+
+    private static DocumentBuilder newDocumentBuilder() throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        // No network access, not even for DTDs.
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        factory.setExpandEntityReferences(false);
+        return factory.newDocumentBuilder();
+    }
+
+    private static List<Element> dependencies(Element dependenciesElement) {
+        List<Element> dependencies = new ArrayList<>();
+        if (dependenciesElement != null) {
+            for (Element element : children(dependenciesElement)) {
+                if (element.getTagName().equals("dependency")) {
+                    dependencies.add(element);
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    private static List<Element> children(Element parent) {
+        List<Element> children = new ArrayList<>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (nodes.item(i) instanceof Element) {
+                children.add((Element) nodes.item(i));
+            }
+        }
+        return children;
+    }
+
+    private static Element child(Element parent, String tagName) {
+        for (Element child : children(parent)) {
+            if (child.getTagName().equals(tagName)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private static String text(Element parent, String tagName) {
+        Element child = child(parent, tagName);
+        return child == null ? null : child.getTextContent().trim();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java DependencyJarLocator <repository root>");
+            System.exit(1);
+        }
+        for (File jar : new DependencyJarLocator().locate(new File(args[0]))) {
+            System.out.println(jar);
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.githubanalytics.bytecode;
+
+import com.githubanalytics.blob.BlobStore;
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// The signature join of MethodJoiner for corpora that do not fit in the heap. Methods are added one by one as the
+// extractors produce them and kept as encoded records, sorted by their canonical signature (class, name and simple
+// parameter types, what equal identifiers always share). Whenever the records held pass a side's share of the
+// memory budget they are sorted and written to a run file. join() merges each side's runs back into one sorted
+// stream and walks both streams together one signature at a time, so only the methods of a single signature are
+// decoded at once. Within a signature the matching is MethodJoiner's: the first equal bytecode method in
+// extraction order is the match, every equal one counts as matched.
+//
+// The three results are sorted back into extraction order the same way before they are handed out, so they come
+// out exactly as MethodJoiner.join returns them. Records whose content is in a blob store are spilled with their
+// blob references only.
+public class ExternalMethodJoiner implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Bookkeeping of a held record beyond its bytes: the entry, its key and the list slot.
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private static final Counter SPILLED_RUNS = Metrics.counter("analyzer_join_spilled_runs_total", "Sorted runs written to disk by the external join.");
+    private static final Counter SPILLED_BYTES = Metrics.counter("analyzer_join_spilled_bytes_total", "Bytes of sorted runs written to disk by the external join.");
+
+    private final Path spillDir;
+    private final long memoryBudget;
+    private final NamePool pool;
+    private final BlobStore blobs;
+    private final SortedRuns scRuns;
+    private final SortedRuns bcRuns;
+
+    // spillDir is created (as a temporary directory inside directory) and deleted on close.
+    public ExternalMethodJoiner(Path directory, long memoryBudget, NamePool pool) throws IOException {
+        this(directory, memoryBudget, pool, null);
+    }
+
+    public ExternalMethodJoiner(Path directory, long memoryBudget, NamePool pool, BlobStore blobs) throws IOException {
+        Files.createDirectories(directory);
+        this.spillDir = Files.createTempDirectory(directory, "method-join-");
+        this.memoryBudget = Math.max(BUFFER_SIZE * 8L, memoryBudget);
+        this.pool = pool;
+        this.blobs = blobs;
+        this.scRuns = new SortedRuns("sc", this.memoryBudget / 2);
+        this.bcRuns = new SortedRuns("bc", this.memoryBudget / 2);
+    }
+
+    public static class JoinCounts {
+        private final long sourceMethods;
+        private final long bytecodeMethods;
+        private final long matched;
+        private final long scOnly;
+        private final long bcOnly;
+
+        JoinCounts(long sourceMethods, long bytecodeMethods, long matched, long scOnly, long bcOnly) {
+            this.sourceMethods = sourceMethods;
+            this.bytecodeMethods = bytecodeMethods;
+            this.matched = matched;
+            this.scOnly = scOnly;
+            this.bcOnly = bcOnly;
+        }
+
+        public long getSourceMethods() {
+            return sourceMethods;
+        }
+
+        public long getBytecodeMethods() {
+            return bytecodeMethods;
+        }
+
+        public long getMatched() {
+            return matched;
+        }
+
+        public long getScOnly() {
+            return scOnly;
+        }
+
+        public long getBcOnly() {
+            return bcOnly;
+        }
+    }
+
+    // For use as an extractor's sink. Source code held as a slice is read out of its file here.
+    public void addSource(MethodRecord record) {
+        scRuns.add(signatureKey(record), scRuns.size(), encode(record));
+    }
+
+    public void addBytecode(MethodRecord record) {
+        bcRuns.add(signatureKey(record), bcRuns.size(), encode(record));
+    }
+
+    // Hands out the matched (merged) records, the source-only and the bytecode-only ones, each in extraction order.
+    // Can be called once.
+    public JoinCounts join(Consumer<MethodRecord> matchedSink, Consumer<MethodRecord> scOnlySink,
+                           Consumer<MethodRecord> bcOnlySink) throws IOException {
+        StageTimer timer = Stage.JOIN_EXTERNAL.start();
+        long sourceMethods = scRuns.size();
+        long bytecodeMethods = bcRuns.size();
+        // The inputs give their memory back as they are consumed, the results take it over.
+        SortedRuns matched = new SortedRuns("matched", memoryBudget / 3);
+        SortedRuns scOnly = new SortedRuns("sc-only", memoryBudget / 3);
+        SortedRuns bcOnly = new SortedRuns("bc-only", memoryBudget / 3);
+
+        try (RunCursor sc = scRuns.sorted(); RunCursor bc = bcRuns.sorted()) {
+            List<Entry> scGroup = new ArrayList<>();
+            List<Entry> bcGroup = new ArrayList<>();
+            while (sc.peek() != null || bc.peek() != null) {
+                String key = sc.peek() == null ? bc.peek().key
+                        : bc.peek() == null ? sc.peek().key
+                        : min(sc.peek().key, bc.peek().key);
+                takeGroup(sc, key, scGroup);
+                takeGroup(bc, key, bcGroup);
+                joinGroup(scGroup, bcGroup, matched, scOnly, bcOnly);
+            }
+        }
+
+        JoinCounts counts = new JoinCounts(sourceMethods, bytecodeMethods, matched.size(), scOnly.size(), bcOnly.size());
+        timer.stop();
+        MethodJoiner.count("external", counts.matched, counts.scOnly, counts.bcOnly, 0);
+        drain(matched, matchedSink);
+        drain(scOnly, scOnlySink);
+        drain(bcOnly, bcOnlySink);
+        return counts;
+    }
+
+    private static String min(String a, String b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static void takeGroup(RunCursor cursor, String key, List<Entry> group) throws IOException {
+        group.clear();
+        while (cursor.peek() != null && cursor.peek().key.equals(key)) {
+            group.add(cursor.next());
+        }
+    }
+
+    // Entries of one signature from each side, in extraction order. Results are keyed by position alone.
+    private void joinGroup(List<Entry> scGroup, List<Entry> bcGroup, SortedRuns matched, SortedRuns scOnly,
+                           SortedRuns bcOnly) {
+        List<MethodRecord> bcMethods = new ArrayList<>(bcGroup.size());
+        for (Entry entry : bcGroup) {
+            bcMethods.add(decode(entry.record));
+        }
+        boolean[] bcMatched = new boolean[bcGroup.size()];
+        for (Entry scEntry : scGroup) {
+            MethodRecord scm = bcMethods.isEmpty() ? null : decode(scEntry.record);
+            MethodRecord bcmMatch = null;
+            for (int i = 0; i < bcMethods.size(); i++) {
+                if (scm.getMethodIdentifier().equals(bcMethods.get(i).getMethodIdentifier())) {
+                    bcMatched[i] = true;
+                    if (bcmMatch == null) {
+                        bcmMatch = bcMethods.get(i);
+                    }
+                }
+            }
+            if (bcmMatch == null) {
+                scOnly.add("", scEntry.sequence, scEntry.record);
+            } else {
+                matched.add("", scEntry.sequence, encode(MethodRecord.merge(scm, bcmMatch)));
+            }
+        }
+        for (int i = 0; i < bcGroup.size(); i++) {
+            if (!bcMatched[i]) {
+                bcOnly.add("", bcGroup.get(i).sequence, bcGroup.get(i).record);
+            }
+        }
+    }
+
+    private void drain(SortedRuns runs, Consumer<MethodRecord> sink) throws IOException {
+        try (RunCursor cursor = runs.sorted()) {
+            Entry entry;
+            while ((entry = cursor.next()) != null) {
+                sink.accept(decode(entry.record));
+            }
+        }
+    }
+
+    // Equal identifiers always have equal keys (see MethodIdentifier.equals), the return type is compared per group.
+    static String signatureKey(MethodRecord record) {
+        MethodIdentifier id = record.getMethodIdentifier();
+        StringBuilder key = new StringBuilder(id.getCanonicalClassName()).append('\0').append(id.getMethodName());
+        for (int i = 0; i < id.getParameterCount(); i++) {
+            key.append('\0').append(id.getSimpleParameterType(i));
+        }
+        return key.toString();
+    }
+
+    private byte[] encode(MethodRecord record) {
+        StringWriter json = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(json)) {
+            new MethodRecord.Adapter(null, blobs).write(writer, record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private MethodRecord decode(byte[] record) {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(record), StandardCharsets.UTF_8))) {
+            return new MethodRecord.Adapter(pool, blobs).read(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> paths = Files.walk(spillDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static class Entry {
+        private static final Comparator<Entry> ORDER = Comparator.<Entry, String>comparing(entry -> entry.key)
+                .thenComparingLong(entry -> entry.sequence);
+
+        private final String key;
+        private final long sequence;
+        private final byte[] record;
+
+        Entry(String key, long sequence, byte[] record) {
+            this.key = key;
+            this.sequence = sequence;
+            this.record = record;
+        }
+
+        long footprint() {
+            return record.length + 2L * key.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    // Entries sorted by key and sequence, in memory up to a budget and in run files on disk beyond it.
+    private class SortedRuns {
+        private final String name;
+        private final long budget;
+        private List<Entry> held = new ArrayList<>();
+        private long heldBytes;
+        private final List<Path> runs = new ArrayList<>();
+        private long size;
+
+        SortedRuns(String name, long budget) {
+            this.name = name;
+            this.budget = budget;
+        }
+
+        long size() {
+            return size;
+        }
+
+        void add(String key, long sequence, byte[] record) {
+            Entry entry = new Entry(key, sequence, record);
+            held.add(entry);
+            heldBytes += entry.footprint();
+            size++;
+            if (heldBytes > budget) {
+                try {
+                    spill();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void spill() throws IOException {
+            StageTimer timer = Stage.JOIN_SPILL.start();
+            held.sort(Entry.ORDER);
+            Path run = spillDir.resolve(name + "-" + runs.size() + ".run");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+                out.writeLong(held.size());
+                for (Entry entry : held) {
+                    write(out, entry);
+                }
+            }
+            runs.add(run);
+            SPILLED_RUNS.increment();
+            SPILLED_BYTES.add(Files.size(run));
+            held = new ArrayList<>();
+            heldBytes = 0;
+            timer.stop();
+        }
+
+        // All entries in order. Held entries are released as the cursor passes them.
+        RunCursor sorted() throws IOException {
+            if (runs.isEmpty()) {
+                held.sort(Entry.ORDER);
+                List<Entry> entries = held;
+                held = new ArrayList<>();
+                heldBytes = 0;
+                return new ListCursor(entries);
+            }
+            if (!held.isEmpty()) {
+                spill();
+            }
+            // Every open run holds a read buffer, a quarter of the budget goes to them. More runs than that are
+            // merged in several passes.
+            int fanIn = (int) Math.max(2, Math.min(256, budget / 4 / BUFFER_SIZE));
+            int pass = 0;
+            while (runs.size() > fanIn) {
+                List<Path> merged = new ArrayList<>();
+                for (int from = 0; from < runs.size(); from += fanIn) {
+                    List<Path> group = runs.subList(from, Math.min(runs.size(), from + fanIn));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                        continue;
+                    }
+                    Path run = spillDir.resolve(name + "-pass" + pass + "-" + merged.size() + ".run");
+                    long count = 0;
+                    for (Path path : group) {
+                        count += countOf(path);
+                    }
+                    try (RunCursor cursor = new MergeCursor(group);
+                         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+                        out.writeLong(count);
+                        Entry entry;
+                        while ((entry = cursor.next()) != null) {
+                            write(out, entry);
+                        }
+                    }
+                    for (Path path : group) {
+                        Files.delete(path);
+                    }
+                    merged.add(run);
+                }
+                runs.clear();
+                runs.addAll(merged);
+                pass++;
+            }
+            return new MergeCursor(new ArrayList<>(runs));
+        }
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.key);
+        out.writeLong(entry.sequence);
+        out.writeInt(entry.record.length);
+        out.write(entry.record);
+    }
+
+    private static long countOf(Path run) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(run))) {
+            return in.readLong();
+        }
+    }
+
+    private interface RunCursor extends Closeable {
+        // The next entry without taking it, null at the end.
+        Entry peek() throws IOException;
+
+        Entry next() throws IOException;
+    }
+
+    private static class ListCursor implements RunCursor {
+        private final List<Entry> entries;
+        private int position;
+
+        ListCursor(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public Entry peek() {
+            return position < entries.size() ? entries.get(position) : null;
+        }
+
+        @Override
+        public Entry next() {
+            Entry entry = peek();
+            if (entry != null) {
+                entries.set(position++, null);
+            }
+            return entry;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class RunReader implements Closeable {
+        private final DataInputStream in;
+        private long remaining;
+        private Entry head;
+
+        RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), BUFFER_SIZE));
+            this.remaining = in.readLong();
+            advance();
+        }
+
+        void advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                return;
+            }
+            remaining--;
+            String key = in.readUTF();
+            long sequence = in.readLong();
+            byte[] record = new byte[in.readInt()];
+            in.readFully(record);
+            head = new Entry(key, sequence, record);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // k-way merge of sorted runs: a heap of the runs ordered by their current entry.
+    private static class MergeCursor implements RunCursor {
+        private final List<RunReader> readers = new ArrayList<>();
+        private final PriorityQueue<RunReader> heap = new PriorityQueue<>(
+                Comparator.comparing((RunReader reader) -> reader.head, Entry.ORDER));
+
+        MergeCursor(List<Path> runs) throws IOException {
+            try {
+                for (Path run : runs) {
+                    RunReader reader = new RunReader(run);
+                    readers.add(reader);
+                    if (reader.head != null) {
+                        heap.add(reader);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public Entry peek() {
+            RunReader reader = heap.peek();
+            return reader == null ? null : reader.head;
+        }
+
+        @Override
+        public Entry next() throws IOException {
+            RunReader reader = heap.poll();
+            if (reader == null) {
+                return null;
+            }
+            Entry entry = reader.head;
+            reader.advance();
+            if (reader.head != null) {
+                heap.add(reader);
+            }
+            return entry;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,633 @@
+package com.githubanalytics.bytecode;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.objectweb.asm.*;
+
+import java.io.IOException;
+import java.util.*;
+
+// Full-fidelity capture of a method's instructions. Every instruction is stored as its opcode byte followed by
+// varint-encoded operands. Strings (owners, names, descriptors, string constants) are stored once per method in
+// a constant table and referenced by index. Labels are numbered in order of first appearance.
+@JsonAdapter(InstructionStream.Adapter.class)
+public class InstructionStream {
+    // Pseudo opcodes for the parts of a method body that are not instructions.
+    public static final int LABEL = 250;
+    public static final int LINE = 251;
+    public static final int TRY_CATCH = 252;
+
+    // Tags of constants loaded by LDC or passed to bootstrap methods.
+    private static final int CONSTANT_INT = 0;
+    private static final int CONSTANT_FLOAT = 1;
+    private static final int CONSTANT_LONG = 2;
+    private static final int CONSTANT_DOUBLE = 3;
+    private static final int CONSTANT_STRING = 4;
+    private static final int CONSTANT_TYPE = 5;
+    private static final int CONSTANT_HANDLE = 6;
+    private static final int CONSTANT_DYNAMIC = 7;
+
+    private static final String[] OPCODE_NAMES = {
+            "NOP", "ACONST_NULL", "ICONST_M1", "ICONST_0", "ICONST_1", "ICONST_2", "ICONST_3", "ICONST_4",
+            "ICONST_5", "LCONST_0", "LCONST_1", "FCONST_0", "FCONST_1", "FCONST_2", "DCONST_0", "DCONST_1",
+            "BIPUSH", "SIPUSH", "LDC", null, null, "ILOAD", "LLOAD", "FLOAD", "DLOAD", "ALOAD",
+            null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null,
+            null, null, null, null, "IALOAD", "LALOAD", "FALOAD", "DALOAD", "AALOAD", "BALOAD", "CALOAD", "SALOAD",
+            "ISTORE", "LSTORE", "FSTORE", "DSTORE", "ASTORE",
+            null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null,
+            null, null, null, null, "IASTORE", "LASTORE", "FASTORE", "DASTORE", "AASTORE", "BASTORE", "CASTORE",
+            "SASTORE", "POP", "POP2", "DUP", "DUP_X1", "DUP_X2", "DUP2", "DUP2_X1", "DUP2_X2", "SWAP",
+            "IADD", "LADD", "FADD", "DADD", "ISUB", "LSUB", "FSUB", "DSUB", "IMUL", "LMUL", "FMUL", "DMUL",
+            "IDIV", "LDIV", "FDIV", "DDIV", "IREM", "LREM", "FREM", "DREM", "INEG", "LNEG", "FNEG", "DNEG",
+            "ISHL", "LSHL", "ISHR", "LSHR", "IUSHR", "LUSHR", "IAND", "LAND", "IOR", "LOR", "IXOR", "LXOR",
+            "IINC", "I2L", "I2F", "I2D", "L2I", "L2F", "L2D", "F2I", "F2L", "F2D", "D2I", "D2L", "D2F",
+            "I2B", "I2C", "I2S", "LCMP", "FCMPL", "FCMPG", "DCMPL", "DCMPG", "IFEQ", "IFNE", "IFLT", "IFGE",
+            "IFGT", "IFLE", "IF_ICMPEQ", "IF_ICMPNE", "IF_ICMPLT", "IF_ICMPGE", "IF_ICMPGT", "IF_ICMPLE",
+            "IF_ACMPEQ", "IF_ACMPNE", "GOTO", "JSR", "RET", "TABLESWITCH", "LOOKUPSWITCH", "IRETURN",
+            "LRETURN", "FRETURN", "DRETURN", "ARETURN", "RETURN", "GETSTATIC", "PUTSTATIC", "GETFIELD",
+            "PUTFIELD", "INVOKEVIRTUAL", "INVOKESPECIAL", "INVOKESTATIC", "INVOKEINTERFACE", "INVOKEDYNAMIC",
+            "NEW", "NEWARRAY", "ANEWARRAY", "ARRAYLENGTH", "ATHROW", "CHECKCAST", "INSTANCEOF", "MONITORENTER",
+            "MONITOREXIT", null, "MULTIANEWARRAY", "IFNULL", "IFNONNULL"
+    };
+
+    private final byte[] code;
+    private final String[] constants;
+
+    public InstructionStream(byte[] code, String[] constants) {
+        this.code = code;
+        this.constants = constants;
+    }
+
+    public byte[] getCode() {
+        return code;
+    }
+
+    public String[] getConstants() {
+        return constants;
+    }
+
+    public Decoder decoder() {
+        return new Decoder();
+    }
+
+    public List<Instruction> decode() {
+        List<Instruction> instructions = new ArrayList<>();
+        Decoder decoder = decoder();
+        while (decoder.hasNext()) {
+            instructions.add(decoder.next());
+        }
+        return instructions;
+    }
+
+    // One line per instruction, e.g. "INVOKEVIRTUAL java/lang/String.length ()I".
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        Decoder decoder = decoder();
+        while (decoder.hasNext()) {
+            text.append(decoder.next()).append('\n');
+        }
+        return text.toString();
+    }
+
+    public static String opcodeName(int opcode) {
+        switch (opcode) {
+            case LABEL:
+                return "LABEL";
+            case LINE:
+                return "LINE";
+            case TRY_CATCH:
+                return "TRYCATCH";
+            default:
+                String name = opcode >= 0 && opcode < OPCODE_NAMES.length ? OPCODE_NAMES[opcode] : null;
+                return name != null ? name : "OPCODE_" + opcode;
+        }
+    }
+
+    public static class Instruction {
+        private final int opcode;
+        private final Object[] operands;
+
+        Instruction(int opcode, Object... operands) {
+            this.opcode = opcode;
+            this.operands = operands;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        // Labels come back as "L<n>", constants as Integer, Long, Float, Double, String, Type, Handle or
+        // ConstantDynamic, references as owner/name/descriptor strings.
+        public Object[] getOperands() {
+            return operands;
+        }
+
+        @Override
+        public String toString() {
+            if (opcode == LABEL) {
+                return operands[0] + ":";
+            }
+
+            StringBuilder text = new StringBuilder(opcodeName(opcode));
+            switch (opcode) {
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTSTATIC:
+                case Opcodes.GETFIELD:
+                case Opcodes.PUTFIELD:
+                    return text.append(' ').append(operands[0]).append('.').append(operands[1])
+                            .append(" : ").append(operands[2]).toString();
+                case Opcodes.INVOKEVIRTUAL:
+                case Opcodes.INVOKESPECIAL:
+                case Opcodes.INVOKESTATIC:
+                case Opcodes.INVOKEINTERFACE:
+                    text.append(' ').append(operands[0]).append('.').append(operands[1]).append(' ').append(operands[2]);
+                    return Boolean.TRUE.equals(operands[3]) ? text.append(" (itf)").toString() : text.toString();
+                case Opcodes.LDC:
+                    return operands[0] instanceof String
+                            ? text.append(" \"").append(operands[0]).append('"').toString()
+                            : text.append(' ').append(operands[0]).toString();
+                default:
+                    for (Object operand : operands) {
+                        text.append(' ').append(operand instanceof Object[] ? Arrays.toString((Object[]) operand) : operand);
+                    }
+                    return text.toString();
+            }
+        }
+    }
+
+    public class Decoder {
+        private int position;
+
+        public boolean hasNext() {
+            return position < code.length;
+        }
+
+        public Instruction next() {
+            int opcode = code[position++] & 0xff;
+            switch (opcode) {
+                case LABEL:
+                    return new Instruction(opcode, label());
+                case LINE:
+                    return new Instruction(opcode, readUnsigned(), label());
+                case TRY_CATCH:
+                    return new Instruction(opcode, label(), label(), label(), optionalConstant());
+                case Opcodes.BIPUSH:
+                case Opcodes.SIPUSH:
+                case Opcodes.NEWARRAY:
+                    return new Instruction(opcode, readSigned());
+                case Opcodes.ILOAD:
+                case Opcodes.LLOAD:
+                case Opcodes.FLOAD:
+                case Opcodes.DLOAD:
+                case Opcodes.ALOAD:
+                case Opcodes.ISTORE:
+                case Opcodes.LSTORE:
+                case Opcodes.FSTORE:
+                case Opcodes.DSTORE:
+                case Opcodes.ASTORE:
+                case Opcodes.RET:
+                    return new Instruction(opcode, readUnsigned());
+                case Opcodes.NEW:
+                case Opcodes.ANEWARRAY:
+                case Opcodes.CHECKCAST:
+                case Opcodes.INSTANCEOF:
+                    return new Instruction(opcode, constant());
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTSTATIC:
+                case Opcodes.GETFIELD:
+                case Opcodes.PUTFIELD:
+                    return new Instruction(opcode, constant(), constant(), constant());
+                case Opcodes.INVOKEVIRTUAL:
+                case Opcodes.INVOKESPECIAL:
+                case Opcodes.INVOKESTATIC:
+                case Opcodes.INVOKEINTERFACE:
+                    return new Instruction(opcode, constant(), constant(), constant(), code[position++] != 0);
+                case Opcodes.INVOKEDYNAMIC: {
+                    String name = constant();
+                    String descriptor = constant();
+                    Handle bootstrapMethod = handle();
+                    return new Instruction(opcode, name, descriptor, bootstrapMethod, taggedConstants());
+                }
+                case Opcodes.IFEQ:
+                case Opcodes.IFNE:
+                case Opcodes.IFLT:
+                case Opcodes.IFGE:
+                case Opcodes.IFGT:
+                case Opcodes.IFLE:
+                case Opcodes.IF_ICMPEQ:
+                case Opcodes.IF_ICMPNE:
+                case Opcodes.IF_ICMPLT:
+                case Opcodes.IF_ICMPGE:
+                case Opcodes.IF_ICMPGT:
+                case Opcodes.IF_ICMPLE:
+                case Opcodes.IF_ACMPEQ:
+                case Opcodes.IF_ACMPNE:
+                case Opcodes.GOTO:
+                case Opcodes.JSR:
+                case Opcodes.IFNULL:
+                case Opcodes.IFNONNULL:
+                    return new Instruction(opcode, label());
+                case Opcodes.LDC:
+                    return new Instruction(opcode, taggedConstant());
+                case Opcodes.IINC:
+                    return new Instruction(opcode, readUnsigned(), readSigned());
+                case Opcodes.TABLESWITCH: {
+                    int min = readSigned();
+                    int max = readSigned();
+                    String defaultLabel = label();
+                    return new Instruction(opcode, min, max, defaultLabel, labels(readUnsigned()));
+                }
+                case Opcodes.LOOKUPSWITCH: {
+                    String defaultLabel = label();
+                    int count = readUnsigned();
+                    Object[] keys = new Object[count];
+                    Object[] labels = new Object[count];
+                    for (int i = 0; i < count; i++) {
+                        keys[i] = readSigned();
+                        labels[i] = label();
+                    }
+                    return new Instruction(opcode, defaultLabel, keys, labels);
+                }
+                case Opcodes.MULTIANEWARRAY:
+                    return new Instruction(opcode, constant(), readUnsigned());
+                default:
+                    return new Instruction(opcode);
+            }
+        }
+
+        private String label() {
+            return "L" + readUnsigned();
+        }
+
+        private Object[] labels(int count) {
+            Object[] labels = new Object[count];
+            for (int i = 0; i < count; i++) {
+                labels[i] = label();
+            }
+            return labels;
+        }
+
+        private String constant() {
+            return constants[readUnsigned()];
+        }
+
+        private String optionalConstant() {
+            int index = readUnsigned();
+            return index == 0 ? null : constants[index - 1];
+        }
+
+        private Handle handle() {
+            int tag = readUnsigned();
+            String owner = constant();
+            String name = constant();
+            String descriptor = constant();
+            return new Handle(tag, owner, name, descriptor, code[position++] != 0);
+        }
+
+        private Object[] taggedConstants() {
+            Object[] values = new Object[readUnsigned()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = taggedConstant();
+            }
+            return values;
+        }
+
+        private Object taggedConstant() {
+            int tag = code[position++];
+            switch (tag) {
+                case CONSTANT_INT:
+                    return readSigned();
+                case CONSTANT_FLOAT:
+                    return Float.intBitsToFloat((int) readUnsignedLong());
+                case CONSTANT_LONG:
+                    return readSignedLong();
+                case CONSTANT_DOUBLE:
+                    return Double.longBitsToDouble(readUnsignedLong());
+                case CONSTANT_STRING:
+                    return constant();
+                case CONSTANT_TYPE:
+                    return Type.getType(constant());
+                case CONSTANT_HANDLE:
+                    return handle();
+                case CONSTANT_DYNAMIC: {
+                    String name = constant();
+                    String descriptor = constant();
+                    Handle bootstrapMethod = handle();
+                    return new ConstantDynamic(name, descriptor, bootstrapMethod, taggedConstants());
+                }
+                default:
+                    throw new IllegalStateException("Unknown constant tag " + tag + " at " + (position - 1));
+            }
+        }
+
+        private int readUnsigned() {
+            return (int) readUnsignedLong();
+        }
+
+        private int readSigned() {
+            int value = readUnsigned();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readSignedLong() {
+            long value = readUnsignedLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readUnsignedLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = code[position++];
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    // Builds a stream while a method is visited. Strings go through the shared pool so that equal owners,
+    // names and descriptors are one String instance across all methods.
+    public static class Encoder {
+        private final NamePool pool;
+        private final Map<String, Integer> constantIndex = new HashMap<>();
+        private final List<String> constants = new ArrayList<>();
+        private final Map<Label, Integer> labelIds = new HashMap<>();
+        private byte[] code = new byte[64];
+        private int length;
+
+        public Encoder(NamePool pool) {
+            this.pool = pool;
+        }
+
+        public void insn(int opcode) {
+            writeByte(opcode);
+        }
+
+        public void intInsn(int opcode, int operand) {
+            writeByte(opcode);
+            writeSigned(operand);
+        }
+
+        public void varInsn(int opcode, int var) {
+            writeByte(opcode);
+            writeUnsigned(var);
+        }
+
+        public void typeInsn(int opcode, String type) {
+            writeByte(opcode);
+            writeConstant(type);
+        }
+
+        public void fieldInsn(int opcode, String owner, String name, String descriptor) {
+            writeByte(opcode);
+            writeConstant(owner);
+            writeConstant(name);
+            writeConstant(descriptor);
+        }
+
+        public void methodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            writeByte(opcode);
+            writeConstant(owner);
+            writeConstant(name);
+            writeConstant(descriptor);
+            writeByte(isInterface ? 1 : 0);
+        }
+
+        public void invokeDynamicInsn(String name, String descriptor, Handle bootstrapMethod, Object... bootstrapArguments) {
+            writeByte(Opcodes.INVOKEDYNAMIC);
+            writeConstant(name);
+            writeConstant(descriptor);
+            writeHandle(bootstrapMethod);
+            writeTaggedConstants(bootstrapArguments);
+        }
+
+        public void jumpInsn(int opcode, Label label) {
+            writeByte(opcode);
+            writeLabel(label);
+        }
+
+        public void label(Label label) {
+            writeByte(LABEL);
+            writeLabel(label);
+        }
+
+        public void ldcInsn(Object value) {
+            writeByte(Opcodes.LDC);
+            writeTaggedConstant(value);
+        }
+
+        public void iincInsn(int var, int increment) {
+            writeByte(Opcodes.IINC);
+            writeUnsigned(var);
+            writeSigned(increment);
+        }
+
+        public void tableSwitchInsn(int min, int max, Label defaultLabel, Label... labels) {
+            writeByte(Opcodes.TABLESWITCH);
+            writeSigned(min);
+            writeSigned(max);
+            writeLabel(defaultLabel);
+            writeUnsigned(labels.length);
+            for (Label label : labels) {
+                writeLabel(label);
+            }
+        }
+
+        public void lookupSwitchInsn(Label defaultLabel, int[] keys, Label[] labels) {
+            writeByte(Opcodes.LOOKUPSWITCH);
+            writeLabel(defaultLabel);
+            writeUnsigned(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                writeSigned(keys[i]);
+                writeLabel(labels[i]);
+            }
+        }
+
+        public void multiANewArrayInsn(String descriptor, int dimensions) {
+            writeByte(Opcodes.MULTIANEWARRAY);
+            writeConstant(descriptor);
+            writeUnsigned(dimensions);
+        }
+
+        public void tryCatchBlock(Label start, Label end, Label handler, String type) {
+            writeByte(TRY_CATCH);
+            writeLabel(start);
+            writeLabel(end);
+            writeLabel(handler);
+            if (type == null) {
+                writeUnsigned(0);
+            } else {
+                writeUnsigned(indexOf(type) + 1);
+            }
+        }
+
+        public void lineNumber(int line, Label start) {
+            writeByte(LINE);
+            writeUnsigned(line);
+            writeLabel(start);
+        }
+
+        public InstructionStream build() {
+            return new InstructionStream(Arrays.copyOf(code, length), constants.toArray(new String[0]));
+        }
+
+        private void writeHandle(Handle handle) {
+            writeUnsigned(handle.getTag());
+            writeConstant(handle.getOwner());
+            writeConstant(handle.getName());
+            writeConstant(handle.getDesc());
+            writeByte(handle.isInterface() ? 1 : 0);
+        }
+
+        private void writeTaggedConstants(Object[] values) {
+            writeUnsigned(values.length);
+            for (Object value : values) {
+                writeTaggedConstant(value);
+            }
+        }
+
+        private void writeTaggedConstant(Object value) {
+            if (value instanceof Integer) {
+                writeByte(CONSTANT_INT);
+                writeSigned((Integer) value);
+            } else if (value instanceof Float) {
+                writeByte(CONSTANT_FLOAT);
+                writeUnsigned(Float.floatToRawIntBits((Float) value) & 0xffffffffL);
+            } else if (value instanceof Long) {
+                writeByte(CONSTANT_LONG);
+                long longValue = (Long) value;
+                writeUnsigned((longValue << 1) ^ (longValue >> 63));
+            } else if (value instanceof Double) {
+                writeByte(CONSTANT_DOUBLE);
+                writeUnsigned(Double.doubleToRawLongBits((Double) value));
+            } else if (value instanceof String) {
+                writeByte(CONSTANT_STRING);
+                writeConstant((String) value);
+            } else if (value instanceof Type) {
+                writeByte(CONSTANT_TYPE);
+                writeConstant(((Type) value).getDescriptor());
+            } else if (value instanceof Handle) {
+                writeByte(CONSTANT_HANDLE);
+                writeHandle((Handle) value);
+            } else if (value instanceof ConstantDynamic) {
+                ConstantDynamic constantDynamic = (ConstantDynamic) value;
+                writeByte(CONSTANT_DYNAMIC);
+                writeConstant(constantDynamic.getName());
+                writeConstant(constantDynamic.getDescriptor());
+                writeHandle(constantDynamic.getBootstrapMethod());
+                Object[] arguments = new Object[constantDynamic.getBootstrapMethodArgumentCount()];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = constantDynamic.getBootstrapMethodArgument(i);
+                }
+                writeTaggedConstants(arguments);
+            } else {
+                throw new IllegalArgumentException("Unsupported constant: " + value);
+            }
+        }
+
+        private void writeLabel(Label label) {
+            Integer id = labelIds.get(label);
+            if (id == null) {
+                id = labelIds.size();
+                labelIds.put(label, id);
+            }
+            writeUnsigned(id);
+        }
+
+        private void writeConstant(String value) {
+            writeUnsigned(indexOf(value));
+        }
+
+        private int indexOf(String value) {
+            Integer index = constantIndex.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(pool.intern(value));
+                constantIndex.put(value, index);
+            }
+            return index;
+        }
+
+        private void writeSigned(int value) {
+            writeUnsigned(((value << 1) ^ (value >> 31)) & 0xffffffffL);
+        }
+
+        private void writeUnsigned(long value) {
+            while ((value & ~0x7fL) != 0) {
+                writeByte((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        private void writeByte(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) value;
+        }
+    }
+
+    // JSON form: {"code": "<base64>", "constants": [...]}.
+    public static class Adapter extends TypeAdapter<InstructionStream> {
+        // Constants read back from JSON go through this pool, null reads them as they are.
+        private final NamePool pool;
+
+        public Adapter() {
+            this(null);
+        }
+
+        public Adapter(NamePool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void write(JsonWriter out, InstructionStream stream) throws IOException {
+            if (stream == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("code").value(Base64.getEncoder().encodeToString(stream.code));
+            out.name("constants").beginArray();
+            for (String constant : stream.constants) {
+                out.value(constant);
+            }
+            out.endArray();
+            out.endObject();
+        }
+
+        @Override
+        public InstructionStream read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            byte[] code = new byte[0];
+            List<String> constants = new ArrayList<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("code")) {
+                    code = Base64.getDecoder().decode(in.nextString());
+                } else if (name.equals("constants")) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        String constant = in.nextString();
+                        constants.add(pool == null ? constant : pool.intern(constant));
+                    }
+                    in.endArray();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new InstructionStream(code, constants.toArray(new String[0]));
+        }
+    }
+}
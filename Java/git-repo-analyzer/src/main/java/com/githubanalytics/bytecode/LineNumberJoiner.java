@@ -0,0 +1,181 @@
+package com.githubanalytics.bytecode;
+
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+import com.githubanalytics.source.SourceLocation;
+
+import java.util.*;
+
+// Joins source and bytecode methods by where they are instead of by signature, so type variables, erased
+// generics, inner classes and the like need no special cases. Both sides need their locations recorded
+// (setRecordLocations on the extractors). A bytecode method belongs to the innermost source method whose lines
+// contain all of its line numbers. It is that method's match when it has the same name and is not synthetic.
+// Anything else found inside a source method, lambda bodies and bridges above all, is attributed to it instead.
+// Methods without line numbers (abstract, native) and source methods left without a match fall back to the
+// signature comparison of MethodJoiner.
+public class LineNumberJoiner {
+
+    public static MethodJoiner.JoinResult join(List<MethodRecord> scMethods, List<MethodRecord> bcMethods) {
+        StageTimer timer = Stage.JOIN_LINES.start();
+        // One interval tree over the source methods of each file.
+        Map<String, List<Integer>> scMethodsByFile = new HashMap<>();
+        for (int s = 0; s < scMethods.size(); s++) {
+            SourceLocation location = scMethods.get(s).getLocation();
+            if (location != null) {
+                scMethodsByFile.computeIfAbsent(location.getFile(), k -> new ArrayList<>()).add(s);
+            }
+        }
+        Map<String, IntervalTree> trees = new HashMap<>();
+        scMethodsByFile.forEach((file, positions) -> trees.put(file, new IntervalTree(scMethods, positions)));
+
+        int[] bcMatch = new int[scMethods.size()];
+        Arrays.fill(bcMatch, -1);
+        boolean[] bcPlaced = new boolean[bcMethods.size()];
+        List<MethodRecord> attributed = new ArrayList<>();
+        for (int b = 0; b < bcMethods.size(); b++) {
+            MethodRecord bcm = bcMethods.get(b);
+            SourceLocation location = bcm.getLocation();
+            IntervalTree tree = location == null ? null : trees.get(location.getFile());
+            if (tree == null) {
+                continue;
+            }
+            String bcName = bcm.getMethodIdentifier().getMethodName();
+            int s = tree.innermost(location.getFirstLine(), location.getLastLine(), bcName);
+            if (s == -1) {
+                continue;
+            }
+            bcPlaced[b] = true;
+            if (!location.isSynthetic() && bcName.equals(scMethods.get(s).getMethodIdentifier().getMethodName())
+                    && bcMatch[s] == -1) {
+                bcMatch[s] = b;
+            } else {
+                attributed.add(MethodRecord.merge(scMethods.get(s), bcm));
+            }
+        }
+
+        // Signature fallback between what is left on both sides. As in MethodJoiner, the first equal bytecode
+        // method is the match, and every equal one counts as matched.
+        MethodJoiner.FingerprintIndex bcIndex = new MethodJoiner.FingerprintIndex(bcMethods.size());
+        for (int b = 0; b < bcMethods.size(); b++) {
+            if (!bcPlaced[b]) {
+                bcIndex.add(bcMethods.get(b).getMethodIdentifier().getFingerprint(), b);
+            }
+        }
+        boolean[] bcSignatureMatched = new boolean[bcMethods.size()];
+        for (int s = 0; s < scMethods.size(); s++) {
+            if (bcMatch[s] != -1) {
+                continue;
+            }
+            MethodIdentifier scmId = scMethods.get(s).getMethodIdentifier();
+            for (int b = bcIndex.first(scmId.getFingerprint()); b != -1; b = bcIndex.next(b)) {
+                if (scmId.equals(bcMethods.get(b).getMethodIdentifier())) {
+                    bcSignatureMatched[b] = true;
+                    if (bcMatch[s] == -1) {
+                        bcMatch[s] = b;
+                    }
+                }
+            }
+        }
+
+        List<MethodRecord> matched = new ArrayList<>();
+        List<MethodRecord> scOnly = new ArrayList<>();
+        for (int s = 0; s < scMethods.size(); s++) {
+            if (bcMatch[s] == -1) {
+                scOnly.add(scMethods.get(s));
+            } else {
+                matched.add(MethodRecord.merge(scMethods.get(s), bcMethods.get(bcMatch[s])));
+            }
+        }
+        List<MethodRecord> bcOnly = new ArrayList<>();
+        for (int b = 0; b < bcMethods.size(); b++) {
+            if (!bcPlaced[b] && !bcSignatureMatched[b]) {
+                bcOnly.add(bcMethods.get(b));
+            }
+        }
+        MethodJoiner.JoinResult result = new MethodJoiner.JoinResult(matched, scOnly, bcOnly, attributed);
+        timer.stop();
+        MethodJoiner.count("lines", result);
+        return result;
+    }
+
+    // Source methods of one file as line intervals, sorted by first line and laid out as an implicit balanced
+    // tree: the middle of each range is the subtree's root, and maxLast holds the largest last line below it.
+    // A query only descends where an interval can still reach the lines asked for, O(log n) plus the number of
+    // intervals that contain them (nesting depth, in practice).
+    static class IntervalTree {
+        private final List<MethodRecord> scMethods;
+        private final int[] positions;
+        private final int[] first;
+        private final int[] last;
+        private final int[] maxLast;
+
+        IntervalTree(List<MethodRecord> scMethods, List<Integer> filePositions) {
+            this.scMethods = scMethods;
+            Integer[] sorted = filePositions.toArray(new Integer[0]);
+            Arrays.sort(sorted, Comparator.comparingInt(s -> scMethods.get(s).getLocation().getFirstLine()));
+            int n = sorted.length;
+            this.positions = new int[n];
+            this.first = new int[n];
+            this.last = new int[n];
+            this.maxLast = new int[n];
+            for (int i = 0; i < n; i++) {
+                SourceLocation location = scMethods.get(sorted[i]).getLocation();
+                positions[i] = sorted[i];
+                first[i] = location.getFirstLine();
+                last[i] = location.getLastLine();
+            }
+            computeMaxLast(0, n);
+        }
+
+        private int computeMaxLast(int from, int to) {
+            if (from >= to) {
+                return Integer.MIN_VALUE;
+            }
+            int mid = (from + to) >>> 1;
+            maxLast[mid] = Math.max(last[mid], Math.max(computeMaxLast(from, mid), computeMaxLast(mid + 1, to)));
+            return maxLast[mid];
+        }
+
+        // Position of the shortest source method containing [firstLine, lastLine], -1 if none does. Among equally
+        // short ones (several methods on one line) one named name wins, otherwise the first.
+        int innermost(int firstLine, int lastLine, String name) {
+            int found = innermost(0, first.length, firstLine, lastLine, name, -1);
+            return found == -1 ? -1 : positions[found];
+        }
+
+        private int innermost(int from, int to, int firstLine, int lastLine, String name, int best) {
+            if (from >= to) {
+                return best;
+            }
+            int mid = (from + to) >>> 1;
+            if (maxLast[mid] < lastLine) {
+                return best;
+            }
+            best = innermost(from, mid, firstLine, lastLine, name, best);
+            if (first[mid] > firstLine) {
+                // Everything to the right starts later still.
+                return best;
+            }
+            if (last[mid] >= lastLine && isBetter(mid, best, name)) {
+                best = mid;
+            }
+            return innermost(mid + 1, to, firstLine, lastLine, name, best);
+        }
+
+        private boolean isBetter(int candidate, int best, String name) {
+            if (best == -1) {
+                return true;
+            }
+            int candidateLength = last[candidate] - first[candidate];
+            int bestLength = last[best] - first[best];
+            if (candidateLength != bestLength) {
+                return candidateLength < bestLength;
+            }
+            return !nameOf(best).equals(name) && nameOf(candidate).equals(name);
+        }
+
+        private String nameOf(int index) {
+            return scMethods.get(positions[index]).getMethodIdentifier().getMethodName();
+        }
+    }
+}
@@ -1,23 +1,68 @@
 package com.githubanalytics.bytecode;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 
 public class MethodIdentifier {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     private final String className;
     private final String methodName;
     private final List<String> parameterTypes;
     private final String returnType;
 
+    // Canonical form, computed once. Transient so the JSON output keeps its shape.
+    private final transient String canonicalClassName;
+    private final transient String canonicalReturnType;
+    private final transient String[] simpleParameterTypes;
+    private final transient long fingerprint;
+
     public MethodIdentifier(
             String className,
             String methodName,
             List<String> parameterTypes,
             String returnType) {
-        this.className = className;
-        this.methodName = methodName;
-        this.parameterTypes = parameterTypes;
-        this.returnType = returnType;
+        this(className, methodName, parameterTypes, returnType, null);
+    }
+
+    // With a pool, every name (raw and canonical) is shared with the other identifiers built through it.
+    public MethodIdentifier(
+            String className,
+            String methodName,
+            List<String> parameterTypes,
+            String returnType,
+            NamePool pool) {
+        this.className = intern(pool, className);
+        this.methodName = intern(pool, methodName);
+        this.returnType = intern(pool, returnType);
+
+        if (pool == null) {
+            this.parameterTypes = parameterTypes;
+        } else {
+            String[] pooledParameterTypes = new String[parameterTypes.size()];
+            for (int i = 0; i < pooledParameterTypes.length; i++) {
+                pooledParameterTypes[i] = pool.intern(parameterTypes.get(i));
+            }
+            this.parameterTypes = Arrays.asList(pooledParameterTypes);
+        }
+
+        this.canonicalClassName = intern(pool, className.replace('$', '.'));
+        this.canonicalReturnType = intern(pool, returnType.replace('$', '.'));
+
+        // TODO: Use fully qualified names here.
+        this.simpleParameterTypes = new String[parameterTypes.size()];
+        for (int i = 0; i < simpleParameterTypes.length; i++) {
+            String type = parameterTypes.get(i).replace('$', '.');
+            simpleParameterTypes[i] = intern(pool, type.substring(type.lastIndexOf('.') + 1));
+        }
+
+        this.fingerprint = computeFingerprint();
+    }
+
+    private static String intern(NamePool pool, String name) {
+        return pool == null ? name : pool.intern(name);
     }
 
     public String getClassName() {
@@ -36,9 +81,51 @@ public class MethodIdentifier {
         return returnType;
     }
 
+    public String getCanonicalClassName() {
+        return canonicalClassName;
+    }
+
+    public String getCanonicalReturnType() {
+        return canonicalReturnType;
+    }
+
+    public String getSimpleParameterType(int index) {
+        return simpleParameterTypes[index];
+    }
+
+    public int getParameterCount() {
+        return simpleParameterTypes.length;
+    }
+
+    // 64-bit FNV-1a over the canonical class name, method name and simple parameter types. Equal identifiers
+    // always share a fingerprint. The return type is left out, so the fingerprint also keys signature-only lookups.
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    private long computeFingerprint() {
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, canonicalClassName);
+        hash = mix(hash, methodName);
+        for (String simpleParameterType : simpleParameterTypes) {
+            hash = mix(hash, simpleParameterType);
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // Separator, so that ("ab", "c") and ("a", "bc") do not collide.
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
     @Override
     public int hashCode() {
-        return Objects.hash(className, methodName, parameterTypes, returnType);
+        return (int) (fingerprint ^ (fingerprint >>> 32));
     }
 
     @Override
@@ -48,58 +135,23 @@ public class MethodIdentifier {
 
         MethodIdentifier that = (MethodIdentifier) o;
 
-        boolean classNameMatch = Objects.equals(
-                this.className.replace('$', '.'),
-                that.className.replace('$', '.')
-        );
-
-        boolean methodNameMatch = Objects.equals(
-                this.methodName,
-                that.methodName
-        );
+        if (this.fingerprint != that.fingerprint) return false;
 
-        boolean returnTypeMatch = Objects.equals(
-                this.returnType.replace("$", "."),
-                that.returnType.replace("$", ".")
-        );
+        boolean signatureMatch = Objects.equals(this.canonicalClassName, that.canonicalClassName) &&
+                Objects.equals(this.methodName, that.methodName) &&
+                Arrays.equals(this.simpleParameterTypes, that.simpleParameterTypes);
 
-        // TODO: Use fully qualified names here.
-        boolean parameterTypesMatch = true;
-        if (classNameMatch && methodNameMatch && returnTypeMatch && this.parameterTypes.size() == that.parameterTypes.size()) {
-            int s = this.parameterTypes.size();
-            for (int i = 0; i < s; ++i) {
-                String[] ta1 = this.parameterTypes.get(i).replace("$", ".").split("\\.");
-                String[] ta2 = that.parameterTypes.get(i).replace("$", ".").split("\\.");
-                String thisSimplifiedType = ta1[ta1.length - 1];
-                String thatSimplifiedType = ta2[ta2.length - 1];
-                if (!Objects.equals(thisSimplifiedType, thatSimplifiedType)) {
-                    parameterTypesMatch = false;
-                }
-
-                // TODO: Handle edge cases here. Compile a white list.
-                // if (Objects.equals(thisSimplifiedType, "T") && Objects.equals(thatSimplifiedType, "Object")) parameterTypesMatch = true;
-                // if (Objects.equals(thatSimplifiedType, "T") && Objects.equals(thisSimplifiedType, "Object")) parameterTypesMatch = true;
-            }
-        } else {
-            parameterTypesMatch = false;
-        }
+        if (!signatureMatch) return false;
 
         // EDGE CASES
-        // Edge case 1
-        if (classNameMatch && methodNameMatch && parameterTypesMatch)
-            // At this point, benefit of the doubt can be given.
-            if (Objects.equals(this.returnType, "java.lang.Object") ||
-                    Objects.equals(that.returnType, "java.lang.Object")) {
-                returnTypeMatch = true;
-            }
+        // Edge case 1: an erased java.lang.Object return type is not matched to a specific one. Doing so would make
+        // equals() non-transitive (A:Object equals both B:String and B:Integer), which hash joins and sets rely on.
 
+        // TODO: Handle edge cases here. Compile a white list.
         // Edge case <n>:
         // ...
 
-        return classNameMatch &&
-                methodNameMatch &&
-                returnTypeMatch &&
-                parameterTypesMatch;
+        return Objects.equals(this.canonicalReturnType, that.canonicalReturnType);
     }
 
     @Override
@@ -107,4 +159,4 @@ public class MethodIdentifier {
         String params = String.join(", ", parameterTypes);
         return className + "." + methodName + "(" + params + "): " + returnType;
     }
-}
\ No newline at end of file
+}
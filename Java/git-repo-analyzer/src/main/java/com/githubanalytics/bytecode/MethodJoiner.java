@@ -0,0 +1,157 @@
+package com.githubanalytics.bytecode;
+
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+
+import java.util.*;
+
+public class MethodJoiner {
+
+    public static class JoinResult {
+        private final List<MethodRecord> matched;
+        private final List<MethodRecord> scOnly;
+        private final List<MethodRecord> bcOnly;
+        // Bytecode methods without a source method of their own, merged with the one they were compiled from.
+        private final List<MethodRecord> attributed;
+
+        JoinResult(List<MethodRecord> matched, List<MethodRecord> scOnly, List<MethodRecord> bcOnly) {
+            this(matched, scOnly, bcOnly, Collections.emptyList());
+        }
+
+        JoinResult(List<MethodRecord> matched, List<MethodRecord> scOnly, List<MethodRecord> bcOnly,
+                   List<MethodRecord> attributed) {
+            this.matched = matched;
+            this.scOnly = scOnly;
+            this.bcOnly = bcOnly;
+            this.attributed = attributed;
+        }
+
+        public List<MethodRecord> getMatched() {
+            return matched;
+        }
+
+        public List<MethodRecord> getScOnly() {
+            return scOnly;
+        }
+
+        public List<MethodRecord> getBcOnly() {
+            return bcOnly;
+        }
+
+        // Always empty for the signature join, see LineNumberJoiner.
+        public List<MethodRecord> getAttributed() {
+            return attributed;
+        }
+    }
+
+    public static JoinResult join(List<MethodRecord> scMethods, List<MethodRecord> bcMethods) {
+        StageTimer timer = Stage.JOIN_SIGNATURES.start();
+        // Index bytecode methods by fingerprint. Chains keep list order, so the first equal entry is the one
+        // the nested loops would have picked.
+        FingerprintIndex bcIndex = new FingerprintIndex(bcMethods.size());
+        for (int i = 0; i < bcMethods.size(); i++) {
+            MethodIdentifier bcmId = bcMethods.get(i).getMethodIdentifier();
+            bcIndex.add(bcmId.getFingerprint(), i);
+        }
+
+        List<MethodRecord> matched = new ArrayList<>();
+        List<MethodRecord> scOnly = new ArrayList<>();
+        boolean[] bcMatched = new boolean[bcMethods.size()];
+
+        for (MethodRecord scm : scMethods) {
+            MethodIdentifier scmId = scm.getMethodIdentifier();
+            MethodRecord bcmMatch = null;
+
+            // The fingerprint leaves the return type out, equals() has the final say inside a chain.
+            for (int i = bcIndex.first(scmId.getFingerprint()); i != -1; i = bcIndex.next(i)) {
+                MethodRecord bcm = bcMethods.get(i);
+                if (scmId.equals(bcm.getMethodIdentifier())) {
+                    bcMatched[i] = true;
+                    if (bcmMatch == null) {
+                        bcmMatch = bcm;
+                    }
+                }
+            }
+
+            if (bcmMatch == null) {
+                scOnly.add(scm);
+            } else {
+                // Create a new entry.
+                matched.add(MethodRecord.merge(scm, bcmMatch));
+            }
+        }
+
+        List<MethodRecord> bcOnly = new ArrayList<>();
+        for (int i = 0; i < bcMethods.size(); i++) {
+            if (!bcMatched[i]) {
+                bcOnly.add(bcMethods.get(i));
+            }
+        }
+
+        JoinResult result = new JoinResult(matched, scOnly, bcOnly);
+        timer.stop();
+        count("signatures", result);
+        return result;
+    }
+
+    // Run-wide counts of what a join (signatures or lines) did with the methods.
+    static void count(String joiner, JoinResult result) {
+        count(joiner, result.matched.size(), result.scOnly.size(), result.bcOnly.size(), result.attributed.size());
+    }
+
+    static void count(String joiner, long matched, long scOnly, long bcOnly, long attributed) {
+        String help = "Methods through a source-bytecode join, by result.";
+        Metrics.counter("analyzer_joined_methods_total", help, "joiner", joiner, "result", "matched").add(matched);
+        Metrics.counter("analyzer_joined_methods_total", help, "joiner", joiner, "result", "source_only").add(scOnly);
+        Metrics.counter("analyzer_joined_methods_total", help, "joiner", joiner, "result", "bytecode_only").add(bcOnly);
+        Metrics.counter("analyzer_joined_methods_total", help, "joiner", joiner, "result", "attributed").add(attributed);
+    }
+
+    // Open-addressing table from fingerprint to the first entry of a chain of list positions.
+    static class FingerprintIndex {
+        private final long[] keys;
+        private final int[] heads;
+        private final int[] tails;
+        private final int[] next;
+        private final int mask;
+
+        FingerprintIndex(int size) {
+            int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+            this.keys = new long[capacity];
+            this.heads = new int[capacity];
+            this.tails = new int[capacity];
+            this.next = new int[size];
+            this.mask = capacity - 1;
+            Arrays.fill(heads, -1);
+        }
+
+        void add(long fingerprint, int position) {
+            int slot = slot(fingerprint);
+            next[position] = -1;
+            if (heads[slot] == -1) {
+                keys[slot] = fingerprint;
+                heads[slot] = position;
+            } else {
+                next[tails[slot]] = position;
+            }
+            tails[slot] = position;
+        }
+
+        int first(long fingerprint) {
+            return heads[slot(fingerprint)];
+        }
+
+        int next(int position) {
+            return next[position];
+        }
+
+        private int slot(long fingerprint) {
+            int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+            while (heads[slot] != -1 && keys[slot] != fingerprint) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
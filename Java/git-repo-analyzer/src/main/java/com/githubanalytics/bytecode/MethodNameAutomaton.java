@@ -0,0 +1,153 @@
+package com.githubanalytics.bytecode;
+
+import java.util.*;
+
+// Aho-Corasick automaton over a set of method names. A single scan of a text reports every name that occurs in it.
+public class MethodNameAutomaton {
+    private final List<String> patterns = new ArrayList<>();
+
+    // Trie nodes, stored column-wise. Children are kept sorted by label for binary search.
+    private char[][] childLabels = new char[16][];
+    private int[][] childTargets = new int[16][];
+    private int[] childCounts = new int[16];
+    private int nodes;
+    private int[] failure;
+    private int[] outputLink;
+    private int[] patternAt;
+
+    public MethodNameAutomaton(Collection<String> names) {
+        List<Integer> terminal = new ArrayList<>();
+        addNode(terminal);
+
+        Set<String> seen = new HashSet<>();
+        for (String name : names) {
+            if (name == null || name.isEmpty() || !seen.add(name)) {
+                continue;
+            }
+
+            int node = 0;
+            for (int i = 0; i < name.length(); i++) {
+                int child = child(node, name.charAt(i));
+                if (child == -1) {
+                    child = addNode(terminal);
+                    addChild(node, name.charAt(i), child);
+                }
+                node = child;
+            }
+            terminal.set(node, patterns.size());
+            patterns.add(name);
+        }
+
+        build(terminal);
+    }
+
+    public int size() {
+        return patterns.size();
+    }
+
+    public String getPattern(int id) {
+        return patterns.get(id);
+    }
+
+    // Returns the ids of all patterns occurring in the text, in order of their first occurrence.
+    public int[] findAll(CharSequence text) {
+        boolean[] found = new boolean[patterns.size()];
+        int[] result = new int[patterns.size()];
+        int count = 0;
+
+        int node = 0;
+        for (int i = 0; i < text.length(); i++) {
+            node = step(node, text.charAt(i));
+            for (int out = patternAt[node] >= 0 ? node : outputLink[node]; out > 0; out = outputLink[out]) {
+                int id = patternAt[out];
+                if (!found[id]) {
+                    found[id] = true;
+                    result[count++] = id;
+                }
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    private int step(int node, char c) {
+        while (true) {
+            int child = child(node, c);
+            if (child != -1) {
+                return child;
+            }
+            if (node == 0) {
+                return 0;
+            }
+            node = failure[node];
+        }
+    }
+
+    private void build(List<Integer> terminal) {
+        failure = new int[nodes];
+        outputLink = new int[nodes];
+        patternAt = new int[nodes];
+        for (int i = 0; i < nodes; i++) {
+            patternAt[i] = terminal.get(i);
+        }
+
+        // Breadth-first, so failure links of shallower nodes are ready when needed.
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (int i = 0; i < childCounts[0]; i++) {
+            queue.add(childTargets[0][i]);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int i = 0; i < childCounts[node]; i++) {
+                char label = childLabels[node][i];
+                int child = childTargets[node][i];
+
+                int fallback = failure[node];
+                while (fallback != 0 && child(fallback, label) == -1) {
+                    fallback = failure[fallback];
+                }
+                int target = child(fallback, label);
+                failure[child] = target == -1 || target == child ? 0 : target;
+                outputLink[child] = patternAt[failure[child]] >= 0 ? failure[child] : outputLink[failure[child]];
+
+                queue.add(child);
+            }
+        }
+    }
+
+    private int addNode(List<Integer> terminal) {
+        if (nodes == childCounts.length) {
+            childLabels = Arrays.copyOf(childLabels, nodes * 2);
+            childTargets = Arrays.copyOf(childTargets, nodes * 2);
+            childCounts = Arrays.copyOf(childCounts, nodes * 2);
+        }
+        childLabels[nodes] = new char[0];
+        childTargets[nodes] = new int[0];
+        terminal.add(-1);
+        return nodes++;
+    }
+
+    private void addChild(int node, char label, int child) {
+        int count = childCounts[node];
+        char[] labels = childLabels[node];
+        int[] targets = childTargets[node];
+        if (count == labels.length) {
+            labels = Arrays.copyOf(labels, Math.max(2, count * 2));
+            targets = Arrays.copyOf(targets, labels.length);
+            childLabels[node] = labels;
+            childTargets[node] = targets;
+        }
+
+        int position = -(Arrays.binarySearch(labels, 0, count, label) + 1);
+        System.arraycopy(labels, position, labels, position + 1, count - position);
+        System.arraycopy(targets, position, targets, position + 1, count - position);
+        labels[position] = label;
+        targets[position] = child;
+        childCounts[node] = count + 1;
+    }
+
+    private int child(int node, char label) {
+        int position = Arrays.binarySearch(childLabels[node], 0, childCounts[node], label);
+        return position >= 0 ? childTargets[node][position] : -1;
+    }
+}
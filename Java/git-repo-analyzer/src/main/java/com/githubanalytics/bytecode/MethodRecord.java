@@ -0,0 +1,417 @@
+package com.githubanalytics.bytecode;
+
+import com.githubanalytics.blob.BlobRef;
+import com.githubanalytics.blob.BlobStore;
+import com.githubanalytics.source.SourceFileTable;
+import com.githubanalytics.source.SourceLocation;
+import com.githubanalytics.source.SourceSlice;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// One extracted method: its identifier plus the source code, the bytecode, or both after a join.
+// The JSON form is the same object the extractors used to write for their maps:
+// {"bytecode": ..., "sourceCode": "...", "methodIdentifier": {...}, "location": {...}}, with absent parts left out.
+// Source code is usually held as a slice of its file and only turned into text when asked for or written. With a
+// blob store (withBlobs) the source code and the bytecode are held as blob references instead, and exports either
+// inline them or write the references: "sourceCodeBlob" and "bytecodeBlob".
+@JsonAdapter(MethodRecord.Adapter.class)
+public class MethodRecord {
+    private final MethodIdentifier methodIdentifier;
+    private final String sourceCode;
+    // Where the source code is, when it is not kept as text.
+    private final SourceSlice sourceSlice;
+    private final InstructionStream bytecode;
+    // Text rendering written instead of the encoded stream, see BytecodeMethodExtractor.setRenderText.
+    private final String bytecodeText;
+    // Only recorded when the extractor is asked to, see LineNumberJoiner.
+    private final SourceLocation location;
+    // The source code as a blob. The bytecode blob holds the JSON value written for "bytecode": the encoded
+    // stream's object, or the text rendering as a string.
+    private final BlobRef sourceBlob;
+    private final BlobRef bytecodeBlob;
+
+    public MethodRecord(MethodIdentifier methodIdentifier, String sourceCode, InstructionStream bytecode, String bytecodeText) {
+        this(methodIdentifier, sourceCode, null, bytecode, bytecodeText, null, null, null);
+    }
+
+    private MethodRecord(MethodIdentifier methodIdentifier, String sourceCode, SourceSlice sourceSlice,
+                         InstructionStream bytecode, String bytecodeText, SourceLocation location,
+                         BlobRef sourceBlob, BlobRef bytecodeBlob) {
+        this.methodIdentifier = methodIdentifier;
+        this.sourceCode = sourceCode;
+        this.sourceSlice = sourceSlice;
+        this.bytecode = bytecode;
+        this.bytecodeText = bytecodeText;
+        this.location = location;
+        this.sourceBlob = sourceBlob;
+        this.bytecodeBlob = bytecodeBlob;
+    }
+
+    public static MethodRecord ofSource(MethodIdentifier methodIdentifier, String sourceCode) {
+        return new MethodRecord(methodIdentifier, sourceCode, null, null);
+    }
+
+    public static MethodRecord ofSource(MethodIdentifier methodIdentifier, SourceSlice sourceSlice) {
+        return new MethodRecord(methodIdentifier, null, sourceSlice, null, null, null, null, null);
+    }
+
+    public static MethodRecord ofBytecode(MethodIdentifier methodIdentifier, InstructionStream bytecode, boolean renderText) {
+        return renderText
+                ? new MethodRecord(methodIdentifier, null, null, bytecode.toText())
+                : new MethodRecord(methodIdentifier, null, bytecode, null);
+    }
+
+    // Identifier and bytecode from the bytecode side, source code from the source side. The location is the
+    // source's, where there is one.
+    public static MethodRecord merge(MethodRecord source, MethodRecord bytecode) {
+        return new MethodRecord(bytecode.methodIdentifier, source.sourceCode, source.sourceSlice, bytecode.bytecode,
+                bytecode.bytecodeText, source.location != null ? source.location : bytecode.location,
+                source.sourceBlob, bytecode.bytecodeBlob);
+    }
+
+    public MethodRecord withLocation(SourceLocation location) {
+        return new MethodRecord(methodIdentifier, sourceCode, sourceSlice, bytecode, bytecodeText, location,
+                sourceBlob, bytecodeBlob);
+    }
+
+    // The same record with its source code and bytecode put in the store and held by reference only.
+    public MethodRecord withBlobs(BlobStore store) {
+        try {
+            BlobRef source = sourceBlob;
+            String code = sourceCode != null ? sourceCode : sourceSlice != null ? sourceSlice.text() : null;
+            if (source == null && code != null) {
+                source = new BlobRef(store, store.put(code));
+            }
+            BlobRef compiled = bytecodeBlob;
+            if (compiled == null && (bytecode != null || bytecodeText != null)) {
+                String payload = bytecodeText != null
+                        ? new Gson().toJson(bytecodeText)
+                        : new InstructionStream.Adapter().toJson(bytecode);
+                compiled = new BlobRef(store, store.put(payload));
+            }
+            return new MethodRecord(methodIdentifier, null, null, null, null, location, source, compiled);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public MethodIdentifier getMethodIdentifier() {
+        return methodIdentifier;
+    }
+
+    public String getSourceCode() {
+        if (sourceCode != null) {
+            return sourceCode;
+        }
+        if (sourceSlice != null) {
+            return sourceSlice.text();
+        }
+        return sourceBlob != null ? sourceBlob.text() : null;
+    }
+
+    // Null when the source code is kept as text, or there is none.
+    public SourceSlice getSourceSlice() {
+        return sourceSlice;
+    }
+
+    // Null when only the text rendering was kept.
+    public InstructionStream getBytecode() {
+        if (bytecode == null && bytecodeBlob != null) {
+            Object stored = readBytecodeBlob(bytecodeBlob);
+            return stored instanceof InstructionStream ? (InstructionStream) stored : null;
+        }
+        return bytecode;
+    }
+
+    public String getBytecodeText() {
+        if (bytecodeText != null) {
+            return bytecodeText;
+        }
+        if (bytecode == null && bytecodeBlob != null) {
+            Object stored = readBytecodeBlob(bytecodeBlob);
+            return stored instanceof InstructionStream ? ((InstructionStream) stored).toText() : (String) stored;
+        }
+        return bytecode != null ? bytecode.toText() : null;
+    }
+
+    // The stream, or the text rendering.
+    private static Object readBytecodeBlob(BlobRef blob) {
+        try (JsonReader in = new JsonReader(new StringReader(blob.text()))) {
+            return in.peek() == JsonToken.STRING ? in.nextString() : new InstructionStream.Adapter().read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Null unless the record was put in a blob store.
+    public BlobRef getSourceBlob() {
+        return sourceBlob;
+    }
+
+    public BlobRef getBytecodeBlob() {
+        return bytecodeBlob;
+    }
+
+    // Null unless locations were recorded, and for methods without line numbers (abstract or native ones).
+    public SourceLocation getLocation() {
+        return location;
+    }
+
+    public boolean hasBytecode() {
+        return bytecode != null || bytecodeText != null || bytecodeBlob != null;
+    }
+
+    // Every record of a file or class with its content in the store, for the extractors.
+    static List<MethodRecord> withBlobs(List<MethodRecord> records, BlobStore store) {
+        List<MethodRecord> stored = new ArrayList<>(records.size());
+        for (MethodRecord record : records) {
+            stored.add(record.withBlobs(store));
+        }
+        return stored;
+    }
+
+    // Gson for exports that write blob references instead of the content.
+    public static Gson referencingBlobs(BlobStore blobs) {
+        return new GsonBuilder().registerTypeAdapter(MethodRecord.class, new Adapter(null, blobs)).create();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(methodIdentifier);
+    }
+
+    public static class Adapter extends TypeAdapter<MethodRecord> {
+        // Names read back from JSON go through this pool, null reads them as they are.
+        private final NamePool pool;
+        private final InstructionStream.Adapter instructionStreamAdapter;
+        // Set for the extraction cache: slices are written as "sourceRange": [begin, end] and read back as slices of
+        // this file, which has the content the entry was written for.
+        private final SourceFileTable files;
+        private final int fileId;
+        // Set to write blob references as they are, and to read them back as references into this store. Without
+        // it blobs are written inline.
+        private final BlobStore blobs;
+
+        public Adapter() {
+            this(null);
+        }
+
+        public Adapter(NamePool pool) {
+            this(pool, null, -1, null);
+        }
+
+        public Adapter(NamePool pool, BlobStore blobs) {
+            this(pool, null, -1, blobs);
+        }
+
+        Adapter(NamePool pool, SourceFileTable files, int fileId) {
+            this(pool, files, fileId, null);
+        }
+
+        private Adapter(NamePool pool, SourceFileTable files, int fileId, BlobStore blobs) {
+            this.pool = pool;
+            this.instructionStreamAdapter = new InstructionStream.Adapter(pool);
+            this.files = files;
+            this.fileId = fileId;
+            this.blobs = blobs;
+        }
+
+        @Override
+        public void write(JsonWriter out, MethodRecord record) throws IOException {
+            if (record == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            if (record.bytecodeText != null) {
+                out.name("bytecode").value(record.bytecodeText);
+            } else if (record.bytecode != null) {
+                out.name("bytecode");
+                instructionStreamAdapter.write(out, record.bytecode);
+            } else if (record.bytecodeBlob != null && blobs != null) {
+                out.name("bytecodeBlob").value(record.bytecodeBlob.getReference());
+            } else if (record.bytecodeBlob != null) {
+                Object stored = readBytecodeBlob(record.bytecodeBlob);
+                out.name("bytecode");
+                if (stored instanceof InstructionStream) {
+                    instructionStreamAdapter.write(out, (InstructionStream) stored);
+                } else {
+                    out.value((String) stored);
+                }
+            }
+            if (record.sourceBlob != null && blobs != null) {
+                out.name("sourceCodeBlob").value(record.sourceBlob.getReference());
+            } else if (files != null && record.sourceSlice != null) {
+                out.name("sourceRange").beginArray()
+                        .value(record.sourceSlice.getBegin())
+                        .value(record.sourceSlice.getEnd())
+                        .endArray();
+            } else if (record.getSourceCode() != null) {
+                out.name("sourceCode").value(record.getSourceCode());
+            }
+            if (record.methodIdentifier != null) {
+                MethodIdentifier id = record.methodIdentifier;
+                out.name("methodIdentifier").beginObject();
+                out.name("className").value(id.getClassName());
+                out.name("methodName").value(id.getMethodName());
+                out.name("parameterTypes").beginArray();
+                for (String parameterType : id.getParameterTypes()) {
+                    out.value(parameterType);
+                }
+                out.endArray();
+                out.name("returnType").value(id.getReturnType());
+                out.endObject();
+            }
+            if (record.location != null) {
+                out.name("location").beginObject();
+                out.name("file").value(record.location.getFile());
+                out.name("lines").beginArray()
+                        .value(record.location.getFirstLine())
+                        .value(record.location.getLastLine())
+                        .endArray();
+                if (record.location.isSynthetic()) {
+                    out.name("synthetic").value(true);
+                }
+                out.endObject();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public MethodRecord read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            MethodIdentifier methodIdentifier = null;
+            String sourceCode = null;
+            SourceSlice sourceSlice = null;
+            InstructionStream bytecode = null;
+            String bytecodeText = null;
+            SourceLocation location = null;
+            BlobRef sourceBlob = null;
+            BlobRef bytecodeBlob = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "methodIdentifier":
+                        methodIdentifier = readMethodIdentifier(in);
+                        break;
+                    case "sourceCode":
+                        sourceCode = in.nextString();
+                        break;
+                    case "sourceRange":
+                        in.beginArray();
+                        int begin = in.nextInt();
+                        int end = in.nextInt();
+                        in.endArray();
+                        if (files == null) {
+                            throw new IOException("Source range without a source file to slice");
+                        }
+                        sourceSlice = new SourceSlice(files, fileId, begin, end);
+                        break;
+                    case "location":
+                        location = readLocation(in);
+                        break;
+                    case "sourceCodeBlob":
+                        sourceBlob = readBlobRef(in);
+                        break;
+                    case "bytecodeBlob":
+                        bytecodeBlob = readBlobRef(in);
+                        break;
+                    case "bytecode":
+                        if (in.peek() == JsonToken.STRING) {
+                            bytecodeText = in.nextString();
+                        } else {
+                            bytecode = instructionStreamAdapter.read(in);
+                        }
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new MethodRecord(methodIdentifier, sourceCode, sourceSlice, bytecode, bytecodeText, location,
+                    sourceBlob, bytecodeBlob);
+        }
+
+        private BlobRef readBlobRef(JsonReader in) throws IOException {
+            String reference = in.nextString();
+            if (blobs == null) {
+                throw new IOException("Blob reference " + reference + " without a blob store to read it from");
+            }
+            return new BlobRef(blobs, reference);
+        }
+
+        private SourceLocation readLocation(JsonReader in) throws IOException {
+            String file = null;
+            int firstLine = 0;
+            int lastLine = 0;
+            boolean synthetic = false;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "file":
+                        file = pool == null ? in.nextString() : pool.intern(in.nextString());
+                        break;
+                    case "lines":
+                        in.beginArray();
+                        firstLine = in.nextInt();
+                        lastLine = in.nextInt();
+                        in.endArray();
+                        break;
+                    case "synthetic":
+                        synthetic = in.nextBoolean();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new SourceLocation(file, firstLine, lastLine, synthetic);
+        }
+
+        private MethodIdentifier readMethodIdentifier(JsonReader in) throws IOException {
+            String className = null;
+            String methodName = null;
+            List<String> parameterTypes = new ArrayList<>();
+            String returnType = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "className":
+                        className = in.nextString();
+                        break;
+                    case "methodName":
+                        methodName = in.nextString();
+                        break;
+                    case "parameterTypes":
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            parameterTypes.add(in.nextString());
+                        }
+                        in.endArray();
+                        break;
+                    case "returnType":
+                        returnType = in.nextString();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new MethodIdentifier(className, methodName, parameterTypes, returnType, pool);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.githubanalytics.bytecode;
+
+import com.githubanalytics.source.SourceFileTable;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Turns extracted method records into JSON and back, for the extraction cache. Records are read back through
+// the extractor's name pool, so cached entries share names with freshly extracted ones. Source code held as a
+// slice is stored as its range, and read back as a slice of the file being extracted: the cache key is the file
+// content, so the ranges still fit.
+class MethodRecordCodec {
+    static String encode(List<MethodRecord> methods, SourceFileTable files) {
+        StringWriter json = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(json)) {
+            MethodRecord.Adapter adapter = new MethodRecord.Adapter(null, files, -1);
+            writer.beginArray();
+            for (MethodRecord method : methods) {
+                adapter.write(writer, method);
+            }
+            writer.endArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return json.toString();
+    }
+
+    static List<MethodRecord> decode(String json, NamePool pool, SourceFileTable files, int fileId) {
+        List<MethodRecord> methods = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            MethodRecord.Adapter adapter = new MethodRecord.Adapter(pool, files, fileId);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                methods.add(adapter.read(reader));
+            }
+            reader.endArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return methods;
+    }
+}
@@ -0,0 +1,26 @@
+package com.githubanalytics.bytecode;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps one String instance per distinct class, package, type or member name. Hundreds of thousands of methods
+// share a few thousand names, so records built through the same pool hold references instead of copies.
+public class NamePool {
+    private final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+
+    public String intern(String name) {
+        if (name == null) {
+            return null;
+        }
+        // Plain lookup first, almost every name has been seen before.
+        String pooled = names.get(name);
+        if (pooled != null) {
+            return pooled;
+        }
+        pooled = names.putIfAbsent(name, name);
+        return pooled != null ? pooled : name;
+    }
+
+    public int size() {
+        return names.size();
+    }
+}
@@ -8,115 +8,316 @@ import com.github.javaparser.ast.stmt.BlockStmt;
 import com.github.javaparser.ast.type.*;
 import com.github.javaparser.ast.visitor.*;
 import com.github.javaparser.printer.configuration.PrettyPrinterConfiguration;
-import com.github.javaparser.resolution.UnsolvedSymbolException;
-import com.github.javaparser.symbolsolver.JavaSymbolSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.githubanalytics.blob.BlobStore;
+import com.githubanalytics.cache.ExtractionCache;
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.MetricsReport;
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+import com.githubanalytics.output.JsonStreamWriter;
+import com.githubanalytics.pipeline.FileContent;
+import com.githubanalytics.pipeline.StagedPipeline;
+import com.githubanalytics.source.SourceFileTable;
+import com.githubanalytics.source.SourceLocation;
+import com.githubanalytics.source.SourcePositions;
+import com.githubanalytics.source.SourceSlice;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Consumer;
 
 public class SourceCodeMethodExtractor {
-    private final List<Map<String, Object>> methods = new ArrayList<>();
+    private static final String TYPE_SOLVER_ROOT = "../Repos/gson";
+    // Printing only reads the configuration, one instance serves every method and thread.
+    private static final PrettyPrinterConfiguration WITHOUT_COMMENTS = new PrettyPrinterConfiguration().setPrintComments(false);
+
+    private static final Counter FILES = Metrics.counter("analyzer_files_total", "Files (classes for bytecode) processed.", "component", "source");
+    private static final Counter FILE_ERRORS = Metrics.counter("analyzer_file_errors_total", "Files that could not be read or parsed.", "component", "source");
+    private static final Counter METHODS = Metrics.counter("analyzer_methods_total", "Method records extracted.", "component", "source");
+    private static final Counter RAW_RETURN_TYPES = Metrics.counter("analyzer_resolution_fallbacks_total",
+            "Types recorded as written because they could not be resolved.", "position", "return");
+    private static final Counter RAW_PARAMETER_TYPES = Metrics.counter("analyzer_resolution_fallbacks_total",
+            "Types recorded as written because they could not be resolved.", "position", "parameter");
+
+    private final List<MethodRecord> methods = new ArrayList<>();
+    // Parser threads, and the threads reading files ahead of them.
+    private final int workers;
+    private int readers = 1;
+    // Files between the walk and the sink at most, see StagedPipeline.
+    private int queueCapacity;
+    private ExtractionCache cache;
+    private final TypeResolver typeResolver;
+    // Class and type names shared by all records.
+    private NamePool namePool = new NamePool();
+    // Files the records' source slices point into.
+    private SourceFileTable sourceFiles = new SourceFileTable();
+    // Source code as JavaParser prints it, without comments, instead of as written.
+    private boolean prettyPrintSource;
+    // Give each record its lines, see LineNumberJoiner.
+    private boolean recordLocations;
+    // Method content goes to the store and records only hold references, when set.
+    private BlobStore blobStore;
+    private boolean exportBlobReferences;
 
     public SourceCodeMethodExtractor() {
-        CombinedTypeSolver combinedTypeSolver = new CombinedTypeSolver();
-        combinedTypeSolver.add(new ReflectionTypeSolver());
+        this(1);
+    }
+
+    public SourceCodeMethodExtractor(int workers) {
+        this(workers, Collections.singletonList(TYPE_SOLVER_ROOT));
+    }
+
+    // Types are resolved against the sources under typeSolverRoots (and the JDK).
+    public SourceCodeMethodExtractor(int workers, List<String> typeSolverRoots) {
+        this.workers = Math.max(1, workers);
+        this.queueCapacity = Math.max(16, this.workers * 4);
 
-        // Add a JavaParserTypeSolver if you have the source code of the libraries you use
-        combinedTypeSolver.add(new JavaParserTypeSolver(new File("../Repos/gson")));
+        List<File> sourceRoots = new ArrayList<>();
+        for (String typeSolverRoot : typeSolverRoots) {
+            sourceRoots.add(new File(typeSolverRoot));
+        }
+        this.typeResolver = new TypeResolver(sourceRoots);
 
-        ParserConfiguration parserConfiguration = new ParserConfiguration()
-                .setSymbolResolver(new JavaSymbolSolver(combinedTypeSolver))
-                .setLanguageLevel(ParserConfiguration.LanguageLevel.JAVA_17);
+        // Other callers still rely on the static parser (e.g. CodeTestMatcher), keep it configured.
+        StaticJavaParser.setConfiguration(typeResolver.createParserConfiguration());
+    }
 
-        StaticJavaParser.setConfiguration(parserConfiguration);
+    // Everything that influences the extracted entries besides the file content itself, as far as it is cheap to
+    // tell: changes to other files of the source roots are not (see TypeResolver.configurationKey()).
+    private String cacheConfiguration() {
+        return "source-methods-v2|" + ParserConfiguration.LanguageLevel.JAVA_17 + "|" + typeResolver.configurationKey()
+                + "|pretty=" + prettyPrintSource + (recordLocations ? "|locations" : "");
     }
 
-    public List<Map<String, Object>> getMethods() {
+    public List<MethodRecord> getMethods() {
         return this.methods;
     }
 
+    // Share names with another extractor, e.g. the bytecode side of a join.
+    public void setNamePool(NamePool namePool) {
+        this.namePool = namePool;
+    }
+
+    public NamePool getNamePool() {
+        return namePool;
+    }
+
+    public void setSourceFiles(SourceFileTable sourceFiles) {
+        this.sourceFiles = sourceFiles;
+    }
+
+    public SourceFileTable getSourceFiles() {
+        return sourceFiles;
+    }
+
+    // Pretty-printing is the costly part of extraction, by default records only point at their source.
+    public void setPrettyPrintSource(boolean prettyPrintSource) {
+        this.prettyPrintSource = prettyPrintSource;
+    }
+
+    public void setRecordLocations(boolean recordLocations) {
+        this.recordLocations = recordLocations;
+    }
+
+    public TypeResolver getTypeResolver() {
+        return typeResolver;
+    }
+
+    // Also resolve against the repository's dependencies, as far as their jars are in the local Maven repository
+    // or Gradle cache.
+    public void resolveDependenciesOf(File repoRoot) throws IOException {
+        List<File> jars = new DependencyJarLocator().locate(repoRoot);
+        System.out.println("Dependency jars found locally: " + jars.size());
+        typeResolver.addJars(jars);
+        StaticJavaParser.setConfiguration(typeResolver.createParserConfiguration());
+    }
+
+    public void setCache(ExtractionCache cache) {
+        this.cache = cache;
+    }
+
+    // exportBlobReferences makes the JSON exports write blob references instead of inlining the content.
+    public void setBlobStore(BlobStore blobStore, boolean exportBlobReferences) {
+        this.blobStore = blobStore;
+        this.exportBlobReferences = exportBlobReferences;
+    }
+
+    private List<MethodRecord> withBlobs(List<MethodRecord> records) {
+        return blobStore == null ? records : MethodRecord.withBlobs(records, blobStore);
+    }
+
+    private JsonStreamWriter exportWriter(String filename, boolean prettyPrint) throws IOException {
+        JsonStreamWriter writer = JsonStreamWriter.array(filename, prettyPrint);
+        if (blobStore != null && exportBlobReferences) {
+            writer.setGson(MethodRecord.referencingBlobs(blobStore));
+        }
+        return writer;
+    }
+
+    public void setReaders(int readers) {
+        this.readers = Math.max(1, readers);
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
     public void analyzeDirectoryForMethods(String rootDir) {
-        processDirectory(new File(rootDir));
+        analyzeDirectoryForMethods(rootDir, methods::add);
     }
 
-    private void processDirectory(File dir) {
+    // Hands every extracted method to the sink as soon as its file is done, in walk order. Walking, reading and
+    // parsing run as stages of a pipeline (see StagedPipeline): reader threads read files ahead of the parser
+    // threads, and no more than queueCapacity files are between the walk and the sink.
+    public void analyzeDirectoryForMethods(String rootDir, Consumer<MethodRecord> sink) {
+        // Symbol solvers keep unsynchronized caches, so every parser thread owns its parser and solver, and a file is
+        // parsed and its methods extracted on the same thread. The memo of resolved names in typeResolver is shared.
+        ThreadLocal<JavaParser> javaParsers = ThreadLocal.withInitial(() -> new JavaParser(typeResolver.createParserConfiguration()));
+        try {
+            StagedPipeline.<File>from("source-extractor", emit -> walkJavaFiles(new File(rootDir), emit), queueCapacity)
+                    .then("read", readers, this::readJavaFile)
+                    .then("parse", workers, file -> withBlobs(processJavaFile(file, javaParsers.get())))
+                    .forEachOrdered(fileMethods -> fileMethods.forEach(sink));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void walkJavaFiles(File dir, Consumer<File> emit) {
         if (dir.exists() && dir.isDirectory()) {
             File[] files = dir.listFiles();
             if (files != null) {
                 for (File file : files) {
                     if (file.isDirectory()) {
-                        processDirectory(file);
+                        walkJavaFiles(file, emit);
                     } else if (file.getName().endsWith(".java")) {
-                        processJavaFile(file);
+                        emit.accept(file);
                     }
                 }
             }
         }
     }
 
-    private void processJavaFile(File file) {
+    private FileContent readJavaFile(File file) throws IOException {
+        StageTimer readTimer = Stage.SOURCE_READ.start();
         try {
-            CompilationUnit cu = StaticJavaParser.parse(file);
-            cu.removeComment();
-            cu.accept(new VoidVisitorAdapter<Void>() {
-                @Override
-                public void visit(MethodDeclaration n, Void arg) {
-                    // When resolving types, if error occurred when processing an entry. Simply log it out.
-                    try {
-                        n.removeComment();
-                        super.visit(n, arg);
-
-                        // Retrieve class name.
-                        String className = n.findAncestor(ClassOrInterfaceDeclaration.class)
-                                .flatMap(node -> getFullyQualifiedName(node))
-                                .orElse("");
-
-                        // Retrieve method name.
-                        String methodName = n.getNameAsString();
-
-                        // Retrieve return type.
-                        String returnType;
-                        try {
-                            returnType = getQualifiedName(n.getType());
-                        } catch (UnsolvedSymbolException | IllegalArgumentException e) {
-                            System.err.println("Failed to resolve return type for method " + methodName + ", using raw type.");
-                            returnType = n.getType().asString();
-                        }
+            return new FileContent(file.toPath(), Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            FILE_ERRORS.increment();
+            throw e;
+        } finally {
+            readTimer.stop();
+        }
+    }
 
-                        // Retrieve parameter types.
-                        List<String> paramTypes = new ArrayList<>();
-                        for (Parameter param : n.getParameters()) {
-                            try {
-                                paramTypes.add(getQualifiedName(param.getType()));
-                            } catch (UnsolvedSymbolException | IllegalArgumentException e) {
-                                System.err.println("Failed to resolve type for parameter " + param.getName() + " in method " + methodName + ", using raw type.");
-                                paramTypes.add(param.getType().asString()); // Use the raw type as a fallback.
-                            }
-                        }
+    private List<MethodRecord> processJavaFile(FileContent fileContent, JavaParser javaParser) {
+        StageTimer fileTimer = Stage.SOURCE_FILE.start();
+        File file = fileContent.getPath().toFile();
+        byte[] content = fileContent.getContent();
+        List<MethodRecord> fileMethods = new ArrayList<>();
+        FILES.increment();
+        int fileId = sourceFiles.register(file.toPath(), content.length);
+
+        // Unchanged files are served from the cache.
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.key("source-methods", cacheConfiguration(), content);
+            String cached = cache.get(cacheKey);
+            if (cached != null) {
+                List<MethodRecord> cachedMethods = MethodRecordCodec.decode(cached, namePool, sourceFiles, fileId);
+                METHODS.add(cachedMethods.size());
+                fileTimer.stop(file.getPath());
+                return cachedMethods;
+            }
+        }
+
+        StageTimer parseTimer = Stage.SOURCE_PARSE.start();
+        ParseResult<CompilationUnit> parseResult = javaParser.parse(new String(content, StandardCharsets.UTF_8));
+        parseTimer.stop();
+        if (!parseResult.isSuccessful() || !parseResult.getResult().isPresent()) {
+            System.err.println("Error parsing " + file + ": " + parseResult.getProblems());
+            FILE_ERRORS.increment();
+            fileTimer.stop(file.getPath());
+            return fileMethods;
+        }
 
-                        // Build the entry.
-                        MethodIdentifier methodIdentifier = new MethodIdentifier(className, methodName, paramTypes, returnType);
-                        String sourceCode = n.toString(new PrettyPrinterConfiguration().setPrintComments(false));
-                        Map<String, Object> methodMap = new HashMap<>();
-                        methodMap.put("methodIdentifier", methodIdentifier);
-                        methodMap.put("sourceCode", sourceCode);
+        CompilationUnit cu = parseResult.getResult().get();
+        cu.setStorage(file.toPath());
+        TypeResolver.Context resolutionContext = typeResolver.contextOf(cu);
+        SourcePositions positions = prettyPrintSource ? null : new SourcePositions(content);
+        String fileKey = recordLocations
+                ? namePool.intern(SourceLocation.fileKey(cu.getPackageDeclaration().map(PackageDeclaration::getNameAsString).orElse(""), file.getName()))
+                : null;
+        cu.accept(new VoidVisitorAdapter<Void>() {
+            @Override
+            public void visit(MethodDeclaration n, Void arg) {
+                // When resolving types, if error occurred when processing an entry. Simply log it out.
+                try {
+                    super.visit(n, arg);
 
-                        // Add the entry to the collection.
-                        methods.add(methodMap);
+                    // Retrieve class name.
+                    String className = n.findAncestor(ClassOrInterfaceDeclaration.class)
+                            .flatMap(node -> getFullyQualifiedName(node))
+                            .orElse("");
+
+                    // Retrieve method name.
+                    String methodName = n.getNameAsString();
+
+                    // Retrieve return type.
+                    String returnType = typeResolver.resolve(resolutionContext, n.getType()).orElse(null);
+                    if (returnType == null) {
+                        System.err.println("Failed to resolve return type for method " + methodName + ", using raw type.");
+                        RAW_RETURN_TYPES.increment();
+                        returnType = n.getType().asString();
+                    }
+
+                    // Retrieve parameter types.
+                    List<String> paramTypes = new ArrayList<>();
+                    for (Parameter param : n.getParameters()) {
+                        String paramType = typeResolver.resolve(resolutionContext, param.getType()).orElse(null);
+                        if (paramType == null) {
+                            System.err.println("Failed to resolve type for parameter " + param.getName() + " in method " + methodName + ", using raw type.");
+                            RAW_PARAMETER_TYPES.increment();
+                            paramType = param.getType().asString(); // Use the raw type as a fallback.
+                        }
+                        paramTypes.add(paramType);
+                    }
 
-                    } catch (IllegalArgumentException e) {
-                        System.err.println("Skipping method due to exception: " + e.getMessage());
+                    // Build the entry.
+                    MethodIdentifier methodIdentifier = new MethodIdentifier(className, methodName, paramTypes, returnType, namePool);
+                    MethodRecord record;
+                    long printStart = System.nanoTime();
+                    if (prettyPrintSource) {
+                        record = MethodRecord.ofSource(methodIdentifier, n.toString(WITHOUT_COMMENTS));
+                    } else {
+                        int[] range = positions.offsetsOf(n.getRange().get());
+                        SourceSlice sourceSlice = new SourceSlice(sourceFiles, fileId, range[0], range[1]);
+                        record = MethodRecord.ofSource(methodIdentifier, sourceSlice);
                     }
+                    Stage.SOURCE_PRINT.recordSince(printStart);
+                    if (fileKey != null) {
+                        record = record.withLocation(new SourceLocation(fileKey, n.getBegin().get().line, n.getEnd().get().line, false));
+                    }
+                    fileMethods.add(record);
+
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Skipping method due to exception: " + e.getMessage());
                 }
-            }, null);
-        } catch (IOException e) {
-            e.printStackTrace();
+            }
+        }, null);
+
+        if (cache != null) {
+            cache.put(cacheKey, MethodRecordCodec.encode(fileMethods, sourceFiles));
         }
+        METHODS.add(fileMethods.size());
+        fileTimer.stop(file.getPath());
+        return fileMethods;
     }
 
     private String getClassName(Node node) {
@@ -132,14 +333,6 @@ public class SourceCodeMethodExtractor {
         return classOrInterfaceDeclaration.getFullyQualifiedName(); // This method already returns Optional<String>
     }
 
-    private String getQualifiedName(Type type) {
-        try {
-            return type.resolve().asReferenceType().getQualifiedName();
-        } catch (UnsolvedSymbolException | UnsupportedOperationException ex) {
-            return type.toString();
-        }
-    }
-
     private String eraseGenerics(Type type) {
         if (type.isClassOrInterfaceType()) {
             // Only take the raw type of the ClassOrInterfaceType
@@ -152,17 +345,31 @@ public class SourceCodeMethodExtractor {
 
 
     public void exportMethodsToJson(String filename) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        try (Writer writer = new FileWriter(filename)) {
-            gson.toJson(methods, writer);
+        exportMethodsToJson(filename, true);
+    }
+
+    public void exportMethodsToJson(String filename, boolean prettyPrint) {
+        try (JsonStreamWriter writer = exportWriter(filename, prettyPrint)) {
+            for (MethodRecord method : methods) {
+                writer.write(method);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // Extracts and writes in one go, methods are not retained so memory does not grow with the output.
+    public void streamMethodsToJson(String rootDir, String filename, boolean prettyPrint) {
+        try (JsonStreamWriter writer = exportWriter(filename, prettyPrint)) {
+            analyzeDirectoryForMethods(rootDir, writer::writeUnchecked);
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void printAnalysisSummary() {
         long totalMethodCount = methods.size();
-        long uniqueMethodCount = methods.stream().map(Map::values).distinct().count();
+        long uniqueMethodCount = methods.stream().map(MethodRecord::getMethodIdentifier).distinct().count();
         System.out.println("Methods (total): " + totalMethodCount);
         System.out.println("Methods (unique): " + uniqueMethodCount);
     }
@@ -171,8 +378,8 @@ public class SourceCodeMethodExtractor {
         Set<MethodIdentifier> uniqueMethods = new HashSet<>();
         List<MethodIdentifier> duplicateMethods = new ArrayList<>();
 
-        for (Map<String, Object> methodDetail : methods) {
-            MethodIdentifier method = (MethodIdentifier) methodDetail.get("methodIdentifier");
+        for (MethodRecord methodDetail : methods) {
+            MethodIdentifier method = methodDetail.getMethodIdentifier();
             if (!uniqueMethods.add(method)) {
                 duplicateMethods.add(method);
             }
@@ -189,18 +396,91 @@ public class SourceCodeMethodExtractor {
     }
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: java SourceCodeMethodExtractor <root directory of Java files> <output JSON file>");
+        List<String> positional = new ArrayList<>();
+        Set<String> flags = new HashSet<>();
+        String cacheDir = null;
+        long cacheSizeMb = 1024;
+        int workers = 1;
+        int readers = 1;
+        int queueCapacity = 0;
+        List<String> typeSolverRoots = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--workers=")) {
+                workers = Integer.parseInt(arg.substring("--workers=".length()));
+            } else if (arg.startsWith("--readers=")) {
+                readers = Integer.parseInt(arg.substring("--readers=".length()));
+            } else if (arg.startsWith("--queue-capacity=")) {
+                queueCapacity = Integer.parseInt(arg.substring("--queue-capacity=".length()));
+            } else if (arg.startsWith("--type-solver-root=")) {
+                typeSolverRoots.add(arg.substring("--type-solver-root=".length()));
+            } else if (arg.startsWith("--cache-dir=")) {
+                cacheDir = arg.substring("--cache-dir=".length());
+            } else if (arg.startsWith("--cache-size-mb=")) {
+                cacheSizeMb = Long.parseLong(arg.substring("--cache-size-mb=".length()));
+            } else if (arg.startsWith("--")) {
+                flags.add(arg);
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (positional.size() < 2 || positional.size() > 3) {
+            System.err.println("Usage: java SourceCodeMethodExtractor <root directory of Java files> <output JSON file> [--workers=N] "
+                    + "[--stream] [--compact] [--pretty-print-source] [--type-solver-root=DIR]... [--resolve-dependencies] "
+                    + "[--cache-dir=DIR] [--cache-size-mb=N] [--readers=N] [--queue-capacity=N]");
             System.exit(1);
         }
 
-        String sourceCodePath = args[0];
-        String outputPath = args[1];
+        String sourceCodePath = positional.get(0);
+        String outputPath = positional.get(1);
+        // A third positional argument is the worker count from before --workers=N.
+        if (positional.size() == 3) {
+            workers = Integer.parseInt(positional.get(2));
+        }
+        boolean prettyPrint = !flags.contains("--compact");
 
-        SourceCodeMethodExtractor extractor = new SourceCodeMethodExtractor();
-        extractor.analyzeDirectoryForMethods(sourceCodePath);
-        extractor.exportMethodsToJson(outputPath);
-        extractor.printAnalysisSummary();
-        extractor.printDuplicateMethods();
+        // Without explicit roots, types are resolved against the analyzed sources themselves.
+        if (typeSolverRoots.isEmpty()) {
+            typeSolverRoots.add(sourceCodePath);
+        }
+
+        SourceCodeMethodExtractor extractor = new SourceCodeMethodExtractor(workers, typeSolverRoots);
+        extractor.setPrettyPrintSource(flags.contains("--pretty-print-source"));
+        extractor.setReaders(readers);
+        if (queueCapacity > 0) {
+            extractor.setQueueCapacity(queueCapacity);
+        }
+        if (flags.contains("--resolve-dependencies")) {
+            try {
+                extractor.resolveDependenciesOf(new File(sourceCodePath));
+            } catch (IOException e) {
+                System.err.println("Dependencies not resolved, cannot read build files: " + e.getMessage());
+            }
+        }
+        ExtractionCache cache = null;
+        if (cacheDir != null) {
+            try {
+                cache = new ExtractionCache(Paths.get(cacheDir), cacheSizeMb * 1024 * 1024);
+                extractor.setCache(cache);
+            } catch (IOException e) {
+                System.err.println("Cache disabled, cannot open " + cacheDir + ": " + e.getMessage());
+            }
+        }
+
+        if (flags.contains("--stream")) {
+            // Summaries need every method in memory, so they are skipped in streaming mode.
+            extractor.streamMethodsToJson(sourceCodePath, outputPath, prettyPrint);
+        } else {
+            extractor.analyzeDirectoryForMethods(sourceCodePath);
+            extractor.exportMethodsToJson(outputPath, prettyPrint);
+            extractor.printAnalysisSummary();
+            extractor.printDuplicateMethods();
+        }
+
+        extractor.getTypeResolver().printStatistics();
+        if (cache != null) {
+            cache.printStatistics();
+        }
+        MetricsReport.writeNextTo(Paths.get(outputPath));
     }
 }
@@ -1,129 +1,180 @@
 package com.githubanalytics.bytecode;
 
+import com.githubanalytics.blob.BlobStore;
+import com.githubanalytics.dataset.DatasetFormat;
+import com.githubanalytics.dataset.DatasetWriter;
+import com.githubanalytics.metrics.MetricsReport;
+import com.githubanalytics.output.JsonStreamWriter;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import org.checkerframework.checker.units.qual.A;
 
+import java.io.Closeable;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Consumer;
 
 public class SourceCodeToBytecodeMapper {
-    public static List<Map<String, Object>> left_join(List<Map<String, Object>> scMethods, List<Map<String, Object>> bcMethods) {
-        // TODO: Optimize this.
-
+    public static List<MethodRecord> left_join(List<MethodRecord> scMethods, List<MethodRecord> bcMethods) {
         // Methods in sc but not in bc.
-
-        List<Map<String, Object>> matches = new ArrayList<>();
-        for (Map<String, Object> scm : scMethods) {
-            // Check for not in list.
-            boolean notInBc = true;
-
-            for (Map<String, Object> bcm : bcMethods) {
-                MethodIdentifier scmId = (MethodIdentifier) scm.get("methodIdentifier");
-                MethodIdentifier bcmId = (MethodIdentifier) bcm.get("methodIdentifier");
-                if (scmId.equals(bcmId)) {
-                    notInBc = false;
-                    break;
-                }
-            }
-
-            if (notInBc) {
-                matches.add(scm);
-            }
-        }
-
+        List<MethodRecord> matches = MethodJoiner.join(scMethods, bcMethods).getScOnly();
         System.out.println("Samples in source code set, but not in bytecode set: " + matches.size());
+        return matches;
+    }
 
+    public static List<MethodRecord> right_join(List<MethodRecord> scMethods, List<MethodRecord> bcMethods) {
+        // Methods in bc but not in sc.
+        List<MethodRecord> matches = MethodJoiner.join(scMethods, bcMethods).getBcOnly();
+        System.out.println("Samples in bytecode set, but not in source code set: " + matches.size());
         return matches;
     }
 
-    public static List<Map<String, Object>> right_join(List<Map<String, Object>> scMethods, List<Map<String, Object>> bcMethods) {
-        // TODO: Optimize this.
+    public static List<MethodRecord> inner_join(List<MethodRecord> scMethods, List<MethodRecord> bcMethods) {
+        List<MethodRecord> matches = MethodJoiner.join(scMethods, bcMethods).getMatched();
+        System.out.println("Match count: " + (matches.size()));
+        return matches;
+    }
 
-        // Methods in bc but not in sc.
+    public static void writeListMapToJsonFile(List<MethodRecord> list, String filePath) {
+        writeListMapToJsonFile(list, filePath, true);
+    }
 
-        List<Map<String, Object>> matches = new ArrayList<>();
-        for (Map<String, Object> bcm : bcMethods) {
-            // Check for not in list.
-            boolean notInSc = true;
-
-            for (Map<String, Object> scm : scMethods) {
-                MethodIdentifier scmId = (MethodIdentifier) scm.get("methodIdentifier");
-                MethodIdentifier bcmId = (MethodIdentifier) bcm.get("methodIdentifier");
-                if (scmId.equals(bcmId)) {
-                    notInSc = false;
-                    break;
-                }
-            }
+    public static void writeListMapToJsonFile(List<MethodRecord> list, String filePath, boolean prettyPrint) {
+        writeListMapToJsonFile(list, filePath, prettyPrint, new Gson());
+    }
 
-            if (notInSc) {
-                matches.add(bcm);
+    public static void writeListMapToJsonFile(List<MethodRecord> list, String filePath, boolean prettyPrint, Gson gson) {
+        try (JsonStreamWriter writer = JsonStreamWriter.array(filePath, prettyPrint).setGson(gson)) {
+            for (MethodRecord entry : list) {
+                writer.write(entry);
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-
-        System.out.println("Samples in bytecode set, but not in source code set: " + matches.size());
-
-        return matches;
     }
 
-    public static List<Map<String, Object>> inner_join(List<Map<String, Object>> scMethods, List<Map<String, Object>> bcMethods) {
-        // TODO: Optimize this.
-
-        List<Map<String, Object>> matches = new ArrayList<>();
-        for (Map<String, Object> scm : scMethods) {
-            for (Map<String, Object> bcm : bcMethods) {
-                MethodIdentifier scmId = (MethodIdentifier) scm.get("methodIdentifier");
-                MethodIdentifier bcmId = (MethodIdentifier) bcm.get("methodIdentifier");
-                if (scmId.equals(bcmId)) {
-                    // Create a new entry.
-                    Map<String, Object> entry = new HashMap<>();
-                    entry.put("methodIdentifier", bcmId);
-                    entry.put("sourceCode", scm.get("sourceCode"));
-                    entry.put("bytecode", bcm.get("bytecode"));
-
-                    // Add the entry to result.
-                    matches.add(entry);
-
-                    // Break (does not need this is keys are unique).
-                    break;
+    // What a run of the mapper does, as given on the command line.
+    public static class Options {
+        String sourceCodePath = "../Repos/gson";
+        String bytecodePath = "../Repos/gson";
+        String outputPath = "./data";
+        // --join=lines pairs methods by their line numbers (LineNumberJoiner) instead of by signature.
+        // --join=external joins by signature like the default, through sorted runs on disk (ExternalMethodJoiner),
+        // holding about --memory-budget-mb of records in memory.
+        String join = "signatures";
+        long memoryBudgetMb = 256;
+        String spillDir = System.getProperty("java.io.tmpdir");
+        // --dataset-format=jsonl|jsonl-gzip|binary writes the matched methods as a sharded dataset in mapped_methods/
+        // instead of mapped_methods.json, shards of --shard-mb each.
+        DatasetFormat datasetFormat = null;
+        long shardBytes = DatasetWriter.DEFAULT_SHARD_BYTES;
+        // --blob-store=DIR keeps method source and bytecode in a content-addressed store (BlobStore) instead of in
+        // the records. --blob-export=reference makes the outputs refer to the blobs instead of inlining them.
+        String blobStoreDir = null;
+        boolean referenceBlobs = false;
+        // --pretty-print-source records source code as JavaParser prints it instead of as written.
+        boolean prettyPrintSource = false;
+
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (arg.startsWith("--join=")) {
+                    options.join = arg.substring("--join=".length());
+                } else if (arg.startsWith("--memory-budget-mb=")) {
+                    options.memoryBudgetMb = Long.parseLong(arg.substring("--memory-budget-mb=".length()));
+                } else if (arg.startsWith("--spill-dir=")) {
+                    options.spillDir = arg.substring("--spill-dir=".length());
+                } else if (arg.startsWith("--dataset-format=")) {
+                    options.datasetFormat = DatasetFormat.parse(arg.substring("--dataset-format=".length()));
+                } else if (arg.startsWith("--shard-mb=")) {
+                    options.shardBytes = Long.parseLong(arg.substring("--shard-mb=".length())) << 20;
+                } else if (arg.startsWith("--blob-store=")) {
+                    options.blobStoreDir = arg.substring("--blob-store=".length());
+                } else if (arg.startsWith("--blob-export=")) {
+                    options.referenceBlobs = arg.substring("--blob-export=".length()).equals("reference");
+                } else if (arg.equals("--pretty-print-source")) {
+                    options.prettyPrintSource = true;
                 }
             }
+            return options;
         }
 
-        System.out.println("Match count: " + (matches.size()));
+        boolean joinByLines() {
+            return join.equals("lines");
+        }
 
-        return matches;
+        boolean joinExternally() {
+            return join.equals("external");
+        }
     }
 
-    public static void writeListMapToJsonFile(List<Map<String, Object>> list, String filePath) {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        try (Writer writer = new FileWriter(filePath)) {
-            gson.toJson(list, writer);
-        } catch (IOException e) {
-            e.printStackTrace();
+    public static void main(String[] args) {
+        Options options = Options.parse(args);
+
+        BlobStore blobs = null;
+        if (options.blobStoreDir != null) {
+            try {
+                blobs = new BlobStore(Paths.get(options.blobStoreDir));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        try {
+            run(options, blobs);
+        } finally {
+            if (blobs != null) {
+                blobs.printStatistics();
+                try {
+                    blobs.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
+        MetricsReport.writeTo(Paths.get(options.outputPath));
     }
 
-    public static void main(String[] args) {
-        String sourceCodePath = "../Repos/gson";
-        String bytecodePath = "../Repos/gson";
-        String outputPath = "./data";
+    private static void run(Options options, BlobStore blobs) {
+        String outputPath = options.outputPath;
+        boolean joinByLines = options.joinByLines();
+        // Null when records are written with their content inline.
+        Gson referencing = blobs != null && options.referenceBlobs ? MethodRecord.referencingBlobs(blobs) : null;
+        Gson gson = referencing != null ? referencing : new Gson();
+
+        // Both sides share one name pool, so matched records do not hold two copies of each name.
+        NamePool namePool = new NamePool();
 
         // Analyze source code
         SourceCodeMethodExtractor sourceCodeMethodExtractor = new SourceCodeMethodExtractor();
-        sourceCodeMethodExtractor.analyzeDirectoryForMethods(sourceCodePath);
+        sourceCodeMethodExtractor.setNamePool(namePool);
+        sourceCodeMethodExtractor.setPrettyPrintSource(options.prettyPrintSource);
+        sourceCodeMethodExtractor.setRecordLocations(joinByLines);
+        sourceCodeMethodExtractor.setBlobStore(blobs, options.referenceBlobs);
+
+        BytecodeMethodExtractor bytecodeMethodExtractor = new BytecodeMethodExtractor();
+        bytecodeMethodExtractor.setNamePool(namePool);
+        bytecodeMethodExtractor.setRecordLocations(joinByLines);
+        bytecodeMethodExtractor.setBlobStore(blobs, options.referenceBlobs);
+
+        if (options.joinExternally()) {
+            joinExternally(options, sourceCodeMethodExtractor, bytecodeMethodExtractor, namePool, blobs, referencing);
+            return;
+        }
+
+        sourceCodeMethodExtractor.analyzeDirectoryForMethods(options.sourceCodePath);
         sourceCodeMethodExtractor.exportMethodsToJson(outputPath + "/methods_sc.json");
 
         // Analyze byte code
-        BytecodeMethodExtractor bytecodeMethodExtractor = new BytecodeMethodExtractor();
-        bytecodeMethodExtractor.analyzeDirectoryForMethods(bytecodePath);
+        bytecodeMethodExtractor.analyzeDirectoryForMethods(options.bytecodePath);
         bytecodeMethodExtractor.exportMethodsToJson(outputPath + "/methods_bc.json");
 
         // Get methods
-        List<Map<String, Object>> scMethods = sourceCodeMethodExtractor.getMethods();
-        List<Map<String, Object>> bcMethods = bytecodeMethodExtractor.getMethods();
+        List<MethodRecord> scMethods = sourceCodeMethodExtractor.getMethods();
+        List<MethodRecord> bcMethods = bytecodeMethodExtractor.getMethods();
 
         // DEBUG: The following lines can be used to get intermediate state of the outputs.
         // writeListMapToJsonFile(scMethods, outputPath + "/db_methods_sc.json");
@@ -137,14 +188,38 @@ public class SourceCodeToBytecodeMapper {
 
         System.out.println("\nPOST CALCULATIONS");
 
-        // Compute matching
-        List<Map<String, Object>> ij = inner_join(scMethods, bcMethods);
-        List<Map<String, Object>> lj = left_join(scMethods, bcMethods);
-        List<Map<String, Object>> rj = right_join(scMethods, bcMethods);
-        
-        writeListMapToJsonFile(ij, outputPath + "/mapped_methods.json");
-        writeListMapToJsonFile(lj, outputPath + "/in_sc____notin_bc.json____LEFT_JOIN.json");
-        writeListMapToJsonFile(rj, outputPath + "/notin_sc____in_bc.json____RIGHT_JOIN.json");
+        // Compute matching (all three sets come out of a single pass).
+        MethodJoiner.JoinResult joinResult = joinByLines
+                ? LineNumberJoiner.join(scMethods, bcMethods)
+                : MethodJoiner.join(scMethods, bcMethods);
+        List<MethodRecord> ij = joinResult.getMatched();
+        List<MethodRecord> lj = joinResult.getScOnly();
+        List<MethodRecord> rj = joinResult.getBcOnly();
+        List<MethodRecord> attributed = joinResult.getAttributed();
+        System.out.println("Match count: " + ij.size());
+        System.out.println("Samples in source code set, but not in bytecode set: " + lj.size());
+        System.out.println("Samples in bytecode set, but not in source code set: " + rj.size());
+        if (joinByLines) {
+            System.out.println("Bytecode samples attributed to an enclosing source method (lambdas, bridges, ...): " + attributed.size());
+        }
+
+
+        if (options.datasetFormat != null) {
+            try (DatasetWriter writer = datasetWriter(options, referencing)) {
+                for (MethodRecord method : ij) {
+                    writer.write(method);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            writeListMapToJsonFile(ij, outputPath + "/mapped_methods.json", true, gson);
+        }
+        writeListMapToJsonFile(lj, outputPath + "/in_sc____notin_bc.json____LEFT_JOIN.json", true, gson);
+        writeListMapToJsonFile(rj, outputPath + "/notin_sc____in_bc.json____RIGHT_JOIN.json", true, gson);
+        if (joinByLines) {
+            writeListMapToJsonFile(attributed, outputPath + "/attributed_methods.json", true, gson);
+        }
 
         System.out.println("Source code to bytecode match rate: " + (ij.size() * 100 / scMethods.size()) + "%");
 
@@ -153,7 +228,68 @@ public class SourceCodeToBytecodeMapper {
         // Checks, if there are mismatches here, the equals operator is likely not correct.
         System.out.println("\nCHECKS");
         System.out.println(scMethods.size() + bcMethods.size());
-        System.out.println(ij.size() * 2 + lj.size() + rj.size());
-        System.out.println(scMethods.size() + bcMethods.size() == ij.size() * 2 + lj.size() + rj.size());
+        System.out.println(ij.size() * 2 + lj.size() + rj.size() + attributed.size());
+        System.out.println(scMethods.size() + bcMethods.size() == ij.size() * 2 + lj.size() + rj.size() + attributed.size());
+    }
+
+    // The same outputs as the signature join, with no method list held in memory: methods are written out and handed
+    // to the joiner as they are extracted. With a blob store the joiner spills only blob references.
+    private static void joinExternally(Options options, SourceCodeMethodExtractor sourceCodeMethodExtractor,
+                                       BytecodeMethodExtractor bytecodeMethodExtractor, NamePool namePool,
+                                       BlobStore blobs, Gson referencing) {
+        String outputPath = options.outputPath;
+        Gson gson = referencing != null ? referencing : new Gson();
+        try (ExternalMethodJoiner joiner = new ExternalMethodJoiner(Paths.get(options.spillDir),
+                options.memoryBudgetMb << 20, namePool, blobs)) {
+            try (JsonStreamWriter writer = JsonStreamWriter.array(outputPath + "/methods_sc.json", true).setGson(gson)) {
+                sourceCodeMethodExtractor.analyzeDirectoryForMethods(options.sourceCodePath, method -> {
+                    writer.writeUnchecked(method);
+                    joiner.addSource(method);
+                });
+            }
+            try (JsonStreamWriter writer = JsonStreamWriter.array(outputPath + "/methods_bc.json", true).setGson(gson)) {
+                bytecodeMethodExtractor.analyzeDirectoryForMethods(options.bytecodePath, method -> {
+                    writer.writeUnchecked(method);
+                    joiner.addBytecode(method);
+                });
+            }
+
+            ExternalMethodJoiner.JoinCounts counts;
+            try (Closeable ij = options.datasetFormat != null
+                    ? datasetWriter(options, referencing)
+                    : JsonStreamWriter.array(outputPath + "/mapped_methods.json", true).setGson(gson);
+                 JsonStreamWriter lj = JsonStreamWriter.array(outputPath + "/in_sc____notin_bc.json____LEFT_JOIN.json", true).setGson(gson);
+                 JsonStreamWriter rj = JsonStreamWriter.array(outputPath + "/notin_sc____in_bc.json____RIGHT_JOIN.json", true).setGson(gson)) {
+                Consumer<MethodRecord> matchedSink = ij instanceof DatasetWriter
+                        ? ((DatasetWriter) ij)::writeUnchecked
+                        : ((JsonStreamWriter) ij)::writeUnchecked;
+                counts = joiner.join(matchedSink, lj::writeUnchecked, rj::writeUnchecked);
+            }
+
+            System.out.println("PRE CALCULATIONS");
+            System.out.println("Source code samples count: " + counts.getSourceMethods());
+            System.out.println("Bytecode samples count: " + counts.getBytecodeMethods());
+
+            System.out.println("\nPOST CALCULATIONS");
+            System.out.println("Match count: " + counts.getMatched());
+            System.out.println("Samples in source code set, but not in bytecode set: " + counts.getScOnly());
+            System.out.println("Samples in bytecode set, but not in source code set: " + counts.getBcOnly());
+            System.out.println("Source code to bytecode match rate: " + (counts.getMatched() * 100 / counts.getSourceMethods()) + "%");
+
+            System.out.println("\nCHECKS");
+            long inputs = counts.getSourceMethods() + counts.getBytecodeMethods();
+            long outputs = counts.getMatched() * 2 + counts.getScOnly() + counts.getBcOnly();
+            System.out.println(inputs);
+            System.out.println(outputs);
+            System.out.println(inputs == outputs);
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static DatasetWriter datasetWriter(Options options, Gson referencing) throws IOException {
+        DatasetWriter writer = new DatasetWriter(Paths.get(options.outputPath, "mapped_methods"), "mapped-methods",
+                options.datasetFormat, options.shardBytes);
+        return referencing != null ? writer.setGson(referencing) : writer;
     }
 }
@@ -0,0 +1,415 @@
+package com.githubanalytics.bytecode;
+
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.CallableDeclaration;
+import com.github.javaparser.ast.body.TypeDeclaration;
+import com.github.javaparser.ast.expr.ObjectCreationExpr;
+import com.github.javaparser.ast.nodeTypes.NodeWithTypeParameters;
+import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.github.javaparser.ast.type.Type;
+import com.github.javaparser.ast.type.TypeParameter;
+import com.github.javaparser.resolution.UnsolvedSymbolException;
+import com.github.javaparser.symbolsolver.JavaSymbolSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JarTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Resolves parameter and return types of one repository to qualified names. The type solver roots are
+// configurable, and results are memoized across files and worker threads: the same "List<String>" written in
+// files with the same imports resolves once, not once per occurrence.
+//
+// A resolution depends on the package, the imports, the enclosing type (nested and inherited member types,
+// class type parameters) and the method's type parameters, so all of these are part of the key. Types inside
+// anonymous or local classes are resolved without the memo.
+//
+// Names that cannot resolve are answered without asking the symbol solver, which would report them by building
+// and throwing an exception: primitives and arrays never resolve to a reference type, type variables neither,
+// and an explicitly imported class that exists in no source root, dependency jar or the JDK cannot be found.
+public class TypeResolver {
+    private static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    // Run-wide counts of every outcome, the per-instance ones below are printed by printStatistics().
+    private static final String RESOLUTIONS = "analyzer_symbol_resolutions_total";
+    private static final String RESOLUTIONS_HELP = "Type resolutions by outcome: answered without the solver (fast_path, "
+            + "hit, negative_hit) or by it (resolved, unresolved, rejected; uncached when outside the memo).";
+    private static final Counter FAST_PATH = Metrics.counter(RESOLUTIONS, RESOLUTIONS_HELP, "outcome", "fast_path");
+    private static final Counter HIT = Metrics.counter(RESOLUTIONS, RESOLUTIONS_HELP, "outcome", "hit");
+    private static final Counter NEGATIVE_HIT = Metrics.counter(RESOLUTIONS, RESOLUTIONS_HELP, "outcome", "negative_hit");
+    private static final Counter RESOLVED = Metrics.counter(RESOLUTIONS, RESOLUTIONS_HELP, "outcome", "resolved");
+    private static final Counter UNRESOLVED = Metrics.counter(RESOLUTIONS, RESOLUTIONS_HELP, "outcome", "unresolved");
+    private static final Counter REJECTED = Metrics.counter(RESOLUTIONS, RESOLUTIONS_HELP, "outcome", "rejected");
+    private static final Counter UNCACHED = Metrics.counter(RESOLUTIONS, RESOLUTIONS_HELP, "outcome", "uncached");
+
+    private final List<File> sourceRoots;
+    private final List<File> jars = new ArrayList<>();
+    // Built once, callers ask for it for every file.
+    private String configurationKey;
+
+    // Which qualified names exist at all, answered from the file system and the jars' entry lists.
+    private final Map<String, Boolean> knownTypes = new ConcurrentHashMap<>();
+    private volatile Set<String> jarEntries;
+
+    // Qualified names, and the raw text used for names that could not be resolved (the negative cache).
+    private final Map<String, String> resolved;
+    private final Map<String, String> unresolved;
+    // Names the symbol solver rejected with IllegalArgumentException, answered as empty without asking it again.
+    private final Map<String, Boolean> rejected;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong uncached = new AtomicLong();
+    private final AtomicLong fastPath = new AtomicLong();
+
+    public TypeResolver(List<File> sourceRoots) {
+        this(sourceRoots, DEFAULT_MAX_ENTRIES);
+    }
+
+    public TypeResolver(List<File> sourceRoots, int maxEntries) {
+        this.sourceRoots = new ArrayList<>(sourceRoots);
+        this.resolved = boundedMap(maxEntries);
+        this.unresolved = boundedMap(maxEntries);
+        this.rejected = boundedMap(maxEntries);
+    }
+
+    private static <V> Map<String, V> boundedMap(int maxEntries) {
+        // Access ordered, so the least recently used entry goes first.
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    public List<File> getSourceRoots() {
+        return Collections.unmodifiableList(sourceRoots);
+    }
+
+    // Dependency jars, e.g. from DependencyJarLocator. Only parser configurations created afterwards see them.
+    public synchronized void addJars(Collection<File> dependencyJars) {
+        jars.addAll(dependencyJars);
+        jarEntries = null;
+        knownTypes.clear();
+        configurationKey = null;
+        // Names that missed may resolve now, and the ones that resolved may resolve differently.
+        resolved.clear();
+        unresolved.clear();
+        rejected.clear();
+    }
+
+    public synchronized List<File> getJars() {
+        return new ArrayList<>(jars);
+    }
+
+    // Symbol solvers keep unsynchronized caches, every thread needs a configuration of its own.
+    public ParserConfiguration createParserConfiguration() {
+        CombinedTypeSolver combinedTypeSolver = new CombinedTypeSolver();
+        combinedTypeSolver.add(new ReflectionTypeSolver());
+
+        // Add a JavaParserTypeSolver if you have the source code of the libraries you use
+        for (File sourceRoot : sourceRoots) {
+            combinedTypeSolver.add(new JavaParserTypeSolver(sourceRoot));
+        }
+        for (File jar : getJars()) {
+            try {
+                combinedTypeSolver.add(new JarTypeSolver(jar));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Skipping unreadable jar " + jar + ": " + e);
+            }
+        }
+
+        return new ParserConfiguration()
+                .setSymbolResolver(new JavaSymbolSolver(combinedTypeSolver))
+                .setLanguageLevel(ParserConfiguration.LanguageLevel.JAVA_17);
+    }
+
+    // Everything about the resolver that influences its results, for cache keys of callers: the source roots, and
+    // the jars with their size and modification time, so a jar replaced in place (a SNAPSHOT) changes the key.
+    // The contents of the source roots are not part of it. A cached file whose own content did not change keeps
+    // the types resolved when it was cached, even if a type it refers to was since moved or renamed in another file.
+    public synchronized String configurationKey() {
+        if (configurationKey == null) {
+            StringBuilder key = new StringBuilder();
+            for (File sourceRoot : sourceRoots) {
+                if (key.length() > 0) {
+                    key.append(File.pathSeparatorChar);
+                }
+                key.append(sourceRoot.getAbsolutePath());
+            }
+            for (File jar : jars) {
+                key.append(File.pathSeparatorChar).append(jar.getAbsolutePath())
+                        .append('@').append(jar.length()).append('@').append(jar.lastModified());
+            }
+            configurationKey = key.toString();
+        }
+        return configurationKey;
+    }
+
+    // Package and imports of a compilation unit, computed once per file.
+    public Context contextOf(CompilationUnit cu) {
+        StringBuilder context = new StringBuilder();
+        Map<String, String> singleTypeImports = new HashMap<>();
+        cu.getPackageDeclaration().ifPresent(declaration -> context.append(declaration.getNameAsString()));
+        for (ImportDeclaration importDeclaration : cu.getImports()) {
+            if (!importDeclaration.isStatic() && !importDeclaration.isAsterisk()) {
+                singleTypeImports.put(importDeclaration.getName().getIdentifier(), importDeclaration.getNameAsString());
+            }
+            context.append(';');
+            if (importDeclaration.isStatic()) {
+                context.append("static ");
+            }
+            context.append(importDeclaration.getNameAsString());
+            if (importDeclaration.isAsterisk()) {
+                context.append(".*");
+            }
+        }
+        Set<String> declaredTypes = new HashSet<>();
+        for (TypeDeclaration<?> typeDeclaration : cu.findAll(TypeDeclaration.class)) {
+            declaredTypes.add(typeDeclaration.getNameAsString());
+        }
+        return new Context(context.toString(), singleTypeImports, declaredTypes);
+    }
+
+    // The qualified name of a reference type, or the type as written when it is not one or cannot be resolved.
+    // Empty where the symbol solver rejects the type with IllegalArgumentException, callers fall back to the raw
+    // type; a rejection met again costs a map lookup, not another exception.
+    public Optional<String> resolve(Context context, Type type) {
+        if (!type.isClassOrInterfaceType()) {
+            fastPath.incrementAndGet();
+            FAST_PATH.increment();
+            return Optional.of(type.toString());
+        }
+
+        Scope scope = scopeOf(context, type);
+        if (cannotResolve(context, scope, type.asClassOrInterfaceType())) {
+            fastPath.incrementAndGet();
+            FAST_PATH.increment();
+            return Optional.of(type.toString());
+        }
+
+        String key = scope.key;
+        if (key == null) {
+            uncached.incrementAndGet();
+            UNCACHED.increment();
+            return resolveUncached(type);
+        }
+
+        String name = resolved.get(key);
+        if (name != null) {
+            hits.incrementAndGet();
+            HIT.increment();
+            return Optional.of(name);
+        }
+        name = unresolved.get(key);
+        if (name != null) {
+            negativeHits.incrementAndGet();
+            NEGATIVE_HIT.increment();
+            return Optional.of(name);
+        }
+        if (rejected.containsKey(key)) {
+            negativeHits.incrementAndGet();
+            NEGATIVE_HIT.increment();
+            return Optional.empty();
+        }
+
+        misses.incrementAndGet();
+        StageTimer timer = Stage.SOURCE_RESOLVE.start();
+        try {
+            name = type.resolve().asReferenceType().getQualifiedName();
+            resolved.put(key, name);
+            RESOLVED.increment();
+            timer.stop("resolved");
+            return Optional.of(name);
+        } catch (UnsolvedSymbolException | UnsupportedOperationException ex) {
+            name = type.toString();
+            unresolved.put(key, name);
+            UNRESOLVED.increment();
+            timer.stop("unresolved");
+            return Optional.of(name);
+        } catch (IllegalArgumentException ex) {
+            rejected.put(key, Boolean.TRUE);
+            REJECTED.increment();
+            timer.stop("rejected");
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<String> resolveUncached(Type type) {
+        StageTimer timer = Stage.SOURCE_RESOLVE.start();
+        try {
+            String name = type.resolve().asReferenceType().getQualifiedName();
+            timer.stop("resolved");
+            return Optional.of(name);
+        } catch (UnsolvedSymbolException | UnsupportedOperationException ex) {
+            timer.stop("unresolved");
+            return Optional.of(type.toString());
+        } catch (IllegalArgumentException ex) {
+            timer.stop("rejected");
+            return Optional.empty();
+        }
+    }
+
+    // The memo key (null when the type sits somewhere the key cannot describe) and the type variables in scope.
+    private static Scope scopeOf(Context context, Type type) {
+        StringBuilder methodTypeParameters = new StringBuilder();
+        Set<String> typeVariables = new HashSet<>();
+        String key = null;
+        boolean describable = true;
+        Node node = type.getParentNode().orElse(null);
+        while (node != null) {
+            if (node instanceof ObjectCreationExpr && ((ObjectCreationExpr) node).getAnonymousClassBody().isPresent()) {
+                describable = false;
+            }
+            if (node instanceof NodeWithTypeParameters) {
+                for (TypeParameter typeParameter : ((NodeWithTypeParameters<?>) node).getTypeParameters()) {
+                    typeVariables.add(typeParameter.getNameAsString());
+                    if (key == null && node instanceof CallableDeclaration) {
+                        methodTypeParameters.append(typeParameter.getNameAsString()).append(',');
+                    }
+                }
+            }
+            if (node instanceof TypeDeclaration && key == null && describable) {
+                Optional<String> enclosingType = ((TypeDeclaration<?>) node).getFullyQualifiedName();
+                if (enclosingType.isPresent()) {
+                    key = context.imports + '\u0000' + enclosingType.get() + '\u0000' + methodTypeParameters
+                            + '\u0000' + type;
+                } else {
+                    // Local class.
+                    describable = false;
+                }
+            }
+            node = node.getParentNode().orElse(null);
+        }
+        return new Scope(key, typeVariables);
+    }
+
+    // True only when the symbol solver is certain to fail.
+    private boolean cannotResolve(Context context, Scope scope, ClassOrInterfaceType type) {
+        ClassOrInterfaceType outermost = type;
+        while (outermost.getScope().isPresent()) {
+            outermost = outermost.getScope().get();
+        }
+        String name = outermost.getNameAsString();
+
+        // A type variable resolves, but never to a reference type.
+        if (outermost == type && scope.typeVariables.contains(name)) {
+            return true;
+        }
+
+        // Declared in this file (possibly nested): leave it to the solver.
+        if (context.declaredTypes.contains(name)) {
+            return false;
+        }
+
+        String imported = context.singleTypeImports.get(name);
+        return imported != null && !typeExists(imported);
+    }
+
+    // Whether a class (top level or nested) of this name is in a source root, a dependency jar or the JDK.
+    private boolean typeExists(String qualifiedName) {
+        return knownTypes.computeIfAbsent(qualifiedName, name -> {
+            // Any split into package and (possibly nested) class names.
+            for (int split = name.lastIndexOf('.'); split > 0; split = name.lastIndexOf('.', split - 1)) {
+                String packagePath = name.substring(0, split).replace('.', '/');
+                String classNames = name.substring(split + 1);
+                String topLevelClass = classNames.contains(".") ? classNames.substring(0, classNames.indexOf('.')) : classNames;
+
+                for (File sourceRoot : sourceRoots) {
+                    if (new File(sourceRoot, packagePath + "/" + topLevelClass + ".java").isFile()) {
+                        return true;
+                    }
+                }
+
+                String classEntry = packagePath + "/" + classNames.replace('.', '$') + ".class";
+                if (jarEntries().contains(classEntry)) {
+                    return true;
+                }
+                // The reflection solver only answers for the JDK.
+                if ((name.startsWith("java.") || name.startsWith("javax.")) && ClassLoader.getSystemResource(classEntry) != null) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    private Set<String> jarEntries() {
+        Set<String> entries = jarEntries;
+        if (entries == null) {
+            synchronized (this) {
+                entries = jarEntries;
+                if (entries == null) {
+                    entries = new HashSet<>();
+                    for (File jar : jars) {
+                        try (ZipFile zipFile = new ZipFile(jar)) {
+                            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                            while (zipEntries.hasMoreElements()) {
+                                String entryName = zipEntries.nextElement().getName();
+                                if (entryName.endsWith(".class")) {
+                                    entries.add(entryName);
+                                }
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Cannot index jar " + jar + ": " + e.getMessage());
+                        }
+                    }
+                    jarEntries = entries;
+                }
+            }
+        }
+        return entries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void printStatistics() {
+        System.out.println("Type resolution hits: " + hits.get() + ", negative hits: " + negativeHits.get()
+                + ", misses: " + misses.get() + ", uncached: " + uncached.get() + ", fast path: " + fastPath.get()
+                + ", entries: " + resolved.size() + " resolved, " + (unresolved.size() + rejected.size()) + " unresolved");
+    }
+
+    public static class Context {
+        private final String imports;
+        private final Map<String, String> singleTypeImports;
+        private final Set<String> declaredTypes;
+
+        Context(String imports, Map<String, String> singleTypeImports, Set<String> declaredTypes) {
+            this.imports = imports;
+            this.singleTypeImports = singleTypeImports;
+            this.declaredTypes = declaredTypes;
+        }
+    }
+
+    private static class Scope {
+        private final String key;
+        private final Set<String> typeVariables;
+
+        Scope(String key, Set<String> typeVariables) {
+            this.key = key;
+            this.typeVariables = typeVariables;
+        }
+    }
+}
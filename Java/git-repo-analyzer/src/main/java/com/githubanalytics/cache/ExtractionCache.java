@@ -0,0 +1,189 @@
+package com.githubanalytics.cache;
+
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Persistent cache of per-file extraction results. Entries are keyed by the SHA-256 of the file content together
+// with the extractor's configuration, so an unchanged file is served from disk while any edit (or any change of
+// parser settings) misses. The directory is bounded in size, least recently used entries are evicted first.
+public class ExtractionCache {
+    private static final String ENTRY_SUFFIX = ".json.gz";
+    private static final Counter HITS = Metrics.counter("analyzer_cache_lookups_total", "Extraction cache lookups by result.", "result", "hit");
+    private static final Counter MISSES = Metrics.counter("analyzer_cache_lookups_total", "Extraction cache lookups by result.", "result", "miss");
+
+    private final Path cacheDir;
+    private final long maxBytes;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ExtractionCache(Path cacheDir, long maxBytes) throws IOException {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(cacheDir);
+
+        // Pick up what earlier runs left behind, the modification time doubles as the last access time.
+        try (Stream<Path> paths = Files.walk(cacheDir)) {
+            paths.filter(path -> path.getFileName().toString().endsWith(ENTRY_SUFFIX)).forEach(path -> {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    String key = path.getFileName().toString();
+                    key = key.substring(0, key.length() - ENTRY_SUFFIX.length());
+                    entries.put(key, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis()));
+                    totalBytes.addAndGet(attributes.size());
+                } catch (IOException e) {
+                    // Concurrently removed, nothing to account for.
+                }
+            });
+        }
+    }
+
+    // Cached value for a key from key(), or null on a miss.
+    public String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            Path path = pathOf(key);
+            try (Reader reader = new InputStreamReader(new GZIPInputStream(Files.newInputStream(path)), StandardCharsets.UTF_8)) {
+                StringBuilder value = new StringBuilder();
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    value.append(buffer, 0, read);
+                }
+
+                entry.lastAccess = System.currentTimeMillis();
+                Files.setLastModifiedTime(path, FileTime.fromMillis(entry.lastAccess));
+                hits.incrementAndGet();
+                HITS.increment();
+                return value.toString();
+            } catch (IOException e) {
+                // Evicted by another process or corrupted, treat it as a miss and let it be rewritten.
+                remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        MISSES.increment();
+        return null;
+    }
+
+    public void put(String key, String value) {
+        Path path = pathOf(key);
+        try {
+            Files.createDirectories(path.getParent());
+            Path temporary = Files.createTempFile(path.getParent(), key, ".tmp");
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(temporary)), StandardCharsets.UTF_8)) {
+                writer.write(value);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            long size = Files.size(path);
+            Entry previous = entries.put(key, new Entry(size, System.currentTimeMillis()));
+            totalBytes.addAndGet(size - (previous == null ? 0 : previous.size));
+            stores.incrementAndGet();
+        } catch (IOException e) {
+            // The cache is an optimization, a failed store only costs a re-parse next time.
+            System.err.println("Failed to store cache entry " + key + ": " + e.getMessage());
+            return;
+        }
+
+        if (totalBytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    // Drops least recently used entries until the cache is back under 90% of its budget.
+    private synchronized void evict() {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+
+        List<Map.Entry<String, Entry>> byAge = new ArrayList<>(entries.entrySet());
+        byAge.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+
+        long target = maxBytes / 10 * 9;
+        for (Map.Entry<String, Entry> entry : byAge) {
+            if (totalBytes.get() <= target) {
+                break;
+            }
+            remove(entry.getKey());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            totalBytes.addAndGet(-entry.size);
+        }
+        try {
+            Files.deleteIfExists(pathOf(key));
+        } catch (IOException e) {
+            System.err.println("Failed to remove cache entry " + key + ": " + e.getMessage());
+        }
+    }
+
+    private Path pathOf(String key) {
+        return cacheDir.resolve(key.substring(0, 2)).resolve(key + ENTRY_SUFFIX);
+    }
+
+    public String key(String namespace, String configuration, byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(namespace.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(content);
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void printStatistics() {
+        System.out.println("Cache hits: " + hits.get() + ", misses: " + misses.get() + ", stores: " + stores.get()
+                + ", evictions: " + evictions.get() + ", size: " + totalBytes.get() / 1024 + " KiB");
+    }
+
+    private static class Entry {
+        private final long size;
+        private volatile long lastAccess;
+
+        Entry(long size, long lastAccess) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.githubanalytics.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+// In-memory cache bounded by the estimated size of its values rather than by their number. When a value does
+// not fit, least recently used entries are dropped; callers recompute what they find missing.
+public class MemoryBoundedCache<K, V> {
+    private final long maxBytes;
+    private final ToLongFunction<V> sizeEstimator;
+    private final LinkedHashMap<K, Sized<V>> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public MemoryBoundedCache(long maxBytes, ToLongFunction<V> sizeEstimator) {
+        this.maxBytes = maxBytes;
+        this.sizeEstimator = sizeEstimator;
+    }
+
+    public synchronized V get(K key) {
+        Sized<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        long size = sizeEstimator.applyAsLong(value);
+        Sized<V> previous = entries.put(key, new Sized<>(value, size));
+        totalBytes += size - (previous == null ? 0 : previous.size);
+
+        Iterator<Map.Entry<K, Sized<V>>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<K, Sized<V>> entry = eldest.next();
+            if (entry.getKey().equals(key)) {
+                // Keep the value just stored even if it alone is over budget.
+                continue;
+            }
+            totalBytes -= entry.getValue().size;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private static class Sized<V> {
+        private final V value;
+        private final long size;
+
+        Sized(V value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
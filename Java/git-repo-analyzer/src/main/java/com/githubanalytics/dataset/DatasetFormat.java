@@ -0,0 +1,29 @@
+package com.githubanalytics.dataset;
+
+import java.util.Locale;
+
+// How the records of a dataset's shards are stored. Every format holds one JSON object per record, the same object
+// the JSON array outputs hold.
+public enum DatasetFormat {
+    // One record per line.
+    JSONL(".jsonl"),
+    // JSON Lines, gzip-compressed. The smallest, records of a shard can only be read front to back.
+    JSONL_GZIP(".jsonl.gz"),
+    // Length-prefixed records with an index of their offsets at the end of the shard, for random access.
+    BINARY(".bin");
+
+    private final String extension;
+
+    DatasetFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    // From command line spellings: jsonl, jsonl-gzip, binary.
+    public static DatasetFormat parse(String name) {
+        return valueOf(name.replace('-', '_').toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,78 @@
+package com.githubanalytics.dataset;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// manifest.json of a dataset directory: the format and the shards in record order. Records are numbered from 0
+// across the whole dataset, a shard holds the ids [firstRecord, firstRecord + records).
+public class DatasetManifest {
+    static final String FILE_NAME = "manifest.json";
+    static final int VERSION = 1;
+
+    private int version = VERSION;
+    private String name;
+    private DatasetFormat format;
+    private long records;
+    private List<Shard> shards = new ArrayList<>();
+
+    DatasetManifest(String name, DatasetFormat format) {
+        this.name = name;
+        this.format = format;
+    }
+
+    public static class Shard {
+        private String file;
+        private long firstRecord;
+        private long records;
+        private long bytes;
+
+        Shard(String file, long firstRecord, long records, long bytes) {
+            this.file = file;
+            this.firstRecord = firstRecord;
+            this.records = records;
+            this.bytes = bytes;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getFirstRecord() {
+            return firstRecord;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        // Size on disk.
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public DatasetFormat getFormat() {
+        return format;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    void addShard(Shard shard) {
+        shards.add(shard);
+        records += shard.records;
+    }
+}
@@ -0,0 +1,205 @@
+package com.githubanalytics.dataset;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.ObjLongConsumer;
+import java.util.zip.GZIPInputStream;
+
+// Reads a dataset written by DatasetWriter. Records come back as JSON trees, or as objects of a class through
+// Gson (MethodRecord has its own adapter). Each record is handed out with its id, its position in the dataset.
+//
+// read(id) finds the shard from the manifest. In a binary shard the record is then one seek away; a JSON Lines
+// shard has no index and is read from its start. Shards are independent, so they can be read on several threads
+// (forEachParallel) or split between the workers of a training loader (forEachInShard).
+public class DatasetReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Gson gson = new Gson();
+    private final Path directory;
+    private final DatasetManifest manifest;
+    private final long[] firstRecords;
+
+    public DatasetReader(Path directory) throws IOException {
+        this.directory = directory;
+        Path manifestPath = directory.resolve(DatasetManifest.FILE_NAME);
+        if (!Files.exists(manifestPath)) {
+            throw new NoSuchFileException(manifestPath.toString(), null, "No manifest, the dataset is incomplete");
+        }
+        try (Reader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            this.manifest = gson.fromJson(reader, DatasetManifest.class);
+        }
+        if (manifest.getVersion() != DatasetManifest.VERSION) {
+            throw new IOException("Unsupported dataset version " + manifest.getVersion() + " in " + manifestPath);
+        }
+        List<DatasetManifest.Shard> shards = manifest.getShards();
+        this.firstRecords = new long[shards.size()];
+        for (int i = 0; i < firstRecords.length; i++) {
+            firstRecords[i] = shards.get(i).getFirstRecord();
+        }
+    }
+
+    public DatasetManifest getManifest() {
+        return manifest;
+    }
+
+    public long size() {
+        return manifest.getRecords();
+    }
+
+    public int getShardCount() {
+        return manifest.getShards().size();
+    }
+
+    public JsonElement read(long id) throws IOException {
+        if (id < 0 || id >= size()) {
+            throw new IndexOutOfBoundsException("Record " + id + " of " + size());
+        }
+        int shardIndex = Arrays.binarySearch(firstRecords, id);
+        if (shardIndex < 0) {
+            shardIndex = -shardIndex - 2;
+        }
+        DatasetManifest.Shard shard = manifest.getShards().get(shardIndex);
+        long position = id - shard.getFirstRecord();
+        Path path = directory.resolve(shard.getFile());
+
+        if (manifest.getFormat() == DatasetFormat.BINARY) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                BinaryIndex index = BinaryIndex.of(channel, path);
+                long offset = readBuffer(channel, index.indexOffset + position * 8, 8).getLong();
+                int length = readBuffer(channel, offset, 4).getInt();
+                return parse(readBuffer(channel, offset + 4, length));
+            }
+        }
+        try (BufferedReader reader = openLines(path)) {
+            for (long skipped = 0; skipped < position; skipped++) {
+                reader.readLine();
+            }
+            return JsonParser.parseString(reader.readLine());
+        }
+    }
+
+    public <T> T read(long id, Class<T> type) throws IOException {
+        return gson.fromJson(read(id), type);
+    }
+
+    // The records of one shard, in order.
+    public void forEachInShard(int shardIndex, ObjLongConsumer<JsonElement> consumer) throws IOException {
+        DatasetManifest.Shard shard = manifest.getShards().get(shardIndex);
+        Path path = directory.resolve(shard.getFile());
+        long id = shard.getFirstRecord();
+
+        if (manifest.getFormat() == DatasetFormat.BINARY) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+                BinaryIndex index = BinaryIndex.of(channel, path);
+                in.readFully(new byte[DatasetWriter.MAGIC.length + 1]);
+                for (int i = 0; i < index.records; i++) {
+                    byte[] record = new byte[in.readInt()];
+                    in.readFully(record);
+                    consumer.accept(parse(ByteBuffer.wrap(record)), id++);
+                }
+            }
+            return;
+        }
+        try (BufferedReader reader = openLines(path)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                consumer.accept(JsonParser.parseString(line), id++);
+            }
+        }
+    }
+
+    public void forEach(ObjLongConsumer<JsonElement> consumer) throws IOException {
+        for (int i = 0; i < getShardCount(); i++) {
+            forEachInShard(i, consumer);
+        }
+    }
+
+    // Every shard on one of threads threads, the consumer is called concurrently. Records of a shard keep their
+    // order, shards are in no particular order.
+    public void forEachParallel(int threads, ObjLongConsumer<JsonElement> consumer) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < getShardCount(); i++) {
+                int shardIndex = i;
+                futures.add(executor.submit(() -> {
+                    forEachInShard(shardIndex, consumer);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IllegalStateException("Error reading dataset " + directory, e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private BufferedReader openLines(Path path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+        if (manifest.getFormat() == DatasetFormat.JSONL_GZIP) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private static JsonElement parse(ByteBuffer json) {
+        return JsonParser.parseString(new String(json.array(), json.arrayOffset() + json.position(), json.remaining(), StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer readBuffer(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Binary shard ends early");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // The trailer of a binary shard.
+    private static class BinaryIndex {
+        private final int records;
+        private final long indexOffset;
+
+        private BinaryIndex(int records, long indexOffset) {
+            this.records = records;
+            this.indexOffset = indexOffset;
+        }
+
+        static BinaryIndex of(FileChannel channel, Path path) throws IOException {
+            ByteBuffer trailer = readBuffer(channel, channel.size() - DatasetWriter.BINARY_TRAILER_BYTES, DatasetWriter.BINARY_TRAILER_BYTES);
+            int records = trailer.getInt();
+            long indexOffset = trailer.getLong();
+            byte[] magic = new byte[DatasetWriter.MAGIC.length];
+            trailer.get(magic);
+            if (!Arrays.equals(magic, DatasetWriter.MAGIC)) {
+                throw new IOException("Not a binary dataset shard: " + path);
+            }
+            return new BinaryIndex(records, indexOffset);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.githubanalytics.dataset;
+
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.Stage;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+// Writes records as a dataset: a directory of shards and a manifest.json listing them (see DatasetManifest), for
+// training loaders that stream, split or read shards in parallel instead of parsing one big JSON array. A shard is
+// closed once it holds maxShardBytes of records (counted before compression), so shards are about that size and
+// a record is never split. The manifest is written last, on close(); a directory without one is incomplete.
+//
+// A binary shard is "GHAD" and a version byte, then every record as a 4-byte length and its UTF-8 JSON, then the
+// index: the offset of every record (8 bytes each), the record count (4 bytes), the offset of the index (8 bytes)
+// and "GHAD" again. All numbers are big-endian.
+public class DatasetWriter implements Closeable {
+    static final byte[] MAGIC = "GHAD".getBytes(StandardCharsets.US_ASCII);
+    static final int BINARY_VERSION = 1;
+    // Record count, index offset and magic.
+    static final int BINARY_TRAILER_BYTES = 4 + 8 + 4;
+    private static final int BUFFER_SIZE = 1 << 16;
+    public static final long DEFAULT_SHARD_BYTES = 256L << 20;
+
+    private static final Counter RECORDS = Metrics.counter("analyzer_dataset_records_total", "Records written to dataset shards.");
+    private static final Counter SHARDS = Metrics.counter("analyzer_dataset_shards_total", "Dataset shards written.");
+
+    private Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private final Path directory;
+    private final DatasetFormat format;
+    private final long maxShardBytes;
+    private final DatasetManifest manifest;
+
+    private CountingOutputStream file;
+    private OutputStream out;
+    private Path shardPath;
+    private long shardFirstRecord;
+    private long shardBytes;
+    // Offsets of the current binary shard's records.
+    private final List<Long> offsets = new ArrayList<>();
+    private long nextRecord;
+
+    public DatasetWriter(Path directory, String name, DatasetFormat format, long maxShardBytes) throws IOException {
+        this.directory = directory;
+        this.format = format;
+        this.maxShardBytes = Math.max(1, maxShardBytes);
+        this.manifest = new DatasetManifest(name, format);
+        Files.createDirectories(directory);
+        // Whatever an earlier run wrote here is not part of this dataset: its manifest, and its shards of any
+        // format, which would otherwise sit next to the new ones (an earlier run may have written more of them).
+        Files.deleteIfExists(directory.resolve(DatasetManifest.FILE_NAME));
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(directory, path -> isShardOf(name, path))) {
+            for (Path shard : shards) {
+                Files.delete(shard);
+            }
+        }
+    }
+
+    // Whether the file is named like a shard of the dataset, see openShard().
+    private static boolean isShardOf(String name, Path path) {
+        String fileName = path.getFileName().toString();
+        if (!fileName.startsWith(name + "-")) {
+            return false;
+        }
+        String rest = fileName.substring(name.length() + 1);
+        for (DatasetFormat format : DatasetFormat.values()) {
+            if (rest.endsWith(format.getExtension())) {
+                String number = rest.substring(0, rest.length() - format.getExtension().length());
+                if (number.length() >= 5 && number.chars().allMatch(Character::isDigit)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Records are written through this Gson, e.g. one whose MethodRecord adapter writes blob references.
+    public DatasetWriter setGson(Gson gson) {
+        this.gson = gson;
+        return this;
+    }
+
+    // Id of the record, its position in the dataset.
+    public synchronized long write(Object record) throws IOException {
+        long start = System.nanoTime();
+        String json = record instanceof JsonElement ? gson.toJson((JsonElement) record) : gson.toJson(record, record.getClass());
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        if (out == null) {
+            openShard();
+        }
+        if (format == DatasetFormat.BINARY) {
+            offsets.add(file.count);
+            writeInt(out, bytes.length);
+            out.write(bytes);
+        } else {
+            // JSON strings escape line breaks, a record is always a single line.
+            out.write(bytes);
+            out.write('\n');
+        }
+        shardBytes += bytes.length + (format == DatasetFormat.BINARY ? 4 : 1);
+        long id = nextRecord++;
+        Stage.JSON_WRITE.recordSince(start);
+        RECORDS.increment();
+        if (shardBytes >= maxShardBytes) {
+            closeShard();
+        }
+        return id;
+    }
+
+    // Records already in memory as a dataset of their own.
+    public static void writeAll(Iterable<?> records, Path directory, String name, DatasetFormat format,
+                                long maxShardBytes) throws IOException {
+        try (DatasetWriter writer = new DatasetWriter(directory, name, format, maxShardBytes)) {
+            for (Object record : records) {
+                writer.write(record);
+            }
+        }
+    }
+
+    // For use as a sink in lambdas, where the checked exception cannot be thrown.
+    public void writeUnchecked(Object record) {
+        try {
+            write(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void openShard() throws IOException {
+        String fileName = String.format("%s-%05d%s", manifest.getName(), manifest.getShards().size(), format.getExtension());
+        shardPath = directory.resolve(fileName);
+        file = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(shardPath), BUFFER_SIZE));
+        out = format == DatasetFormat.JSONL_GZIP ? new GZIPOutputStream(file, BUFFER_SIZE) : file;
+        shardFirstRecord = nextRecord;
+        shardBytes = 0;
+        if (format == DatasetFormat.BINARY) {
+            offsets.clear();
+            out.write(MAGIC);
+            out.write(BINARY_VERSION);
+        }
+    }
+
+    private void closeShard() throws IOException {
+        if (format == DatasetFormat.BINARY) {
+            long indexOffset = file.count;
+            DataOutputStream index = new DataOutputStream(out);
+            for (long offset : offsets) {
+                index.writeLong(offset);
+            }
+            index.writeInt(offsets.size());
+            index.writeLong(indexOffset);
+            index.write(MAGIC);
+        }
+        out.close();
+        manifest.addShard(new DatasetManifest.Shard(shardPath.getFileName().toString(), shardFirstRecord,
+                nextRecord - shardFirstRecord, Files.size(shardPath)));
+        SHARDS.increment();
+        out = null;
+        file = null;
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    public synchronized long getRecordCount() {
+        return nextRecord;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            closeShard();
+        }
+        // Written next to its final name and moved into place, readers never see half a manifest.
+        Path partial = directory.resolve(DatasetManifest.FILE_NAME + ".partial");
+        try (Writer writer = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(manifest, writer);
+        }
+        Files.move(partial, directory.resolve(DatasetManifest.FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Bytes written to the shard file, compressed or not: the offsets of the binary index.
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
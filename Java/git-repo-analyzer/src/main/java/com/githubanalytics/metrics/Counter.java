@@ -0,0 +1,20 @@
+package com.githubanalytics.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// A count that only goes up. Cheap to increment from many threads at once.
+public class Counter {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,86 @@
+package com.githubanalytics.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Durations in power-of-two buckets of nanoseconds, from 1 us (2^10 ns) up to 69 s (2^36 ns) and one bucket for
+// anything longer. Recording is an array increment, so it can sit on per-method paths. Quantiles are bucket upper
+// bounds, good to a factor of two, which is what telling parsing from resolution from I/O takes.
+public class LatencyHistogram {
+    private static final int MIN_EXPONENT = 10;
+    static final int BUCKETS = 27;
+
+    // counts[BUCKETS] holds what is longer than the last bound.
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        sumNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos <= 1L << MIN_EXPONENT) {
+            return 0;
+        }
+        // Exponent of the smallest power of two at or above nanos.
+        int exponent = 64 - Long.numberOfLeadingZeros(nanos - 1);
+        return Math.min(exponent - MIN_EXPONENT, BUCKETS);
+    }
+
+    // Inclusive upper bound of a bucket, in nanoseconds.
+    static long upperBoundNanos(int bucket) {
+        return 1L << (bucket + MIN_EXPONENT);
+    }
+
+    long[] bucketCounts() {
+        long[] snapshot = new long[BUCKETS + 1];
+        for (int i = 0; i <= BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i <= BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    // Upper bound of the bucket holding the q-th quantile (0 < q <= 1), the maximum for the last bucket.
+    public long quantileNanos(double q) {
+        long[] snapshot = bucketCounts();
+        long count = 0;
+        for (long bucketCount : snapshot) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundNanos(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+}
@@ -0,0 +1,119 @@
+package com.githubanalytics.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+// The process-wide registry of counters and stage histograms that MetricsReport writes out at the end of a run.
+// Metrics are registered once, usually into static fields of the class that updates them, and then updated
+// without any lookup. Families and label sets are kept sorted, so reports of two runs line up.
+public class Metrics {
+    private static final int SLOWEST_FILES = 20;
+
+    private static final long startedAtMillis = System.currentTimeMillis();
+    private static final long startedAtNanos = System.nanoTime();
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    // Min-heap of the slowest files seen, the fastest of them on top.
+    private static final PriorityQueue<FileTiming> slowestFiles = new PriorityQueue<>(
+            Comparator.comparingLong(FileTiming::getNanos));
+
+    private Metrics() {
+    }
+
+    // labels are name, value pairs: counter("analyzer_files_total", "...", "component", "source").
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").register(labels, Counter::new);
+    }
+
+    public static LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, "histogram").register(labels, LatencyHistogram::new);
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    static void recordFile(Stage stage, String file, long nanos) {
+        synchronized (slowestFiles) {
+            if (slowestFiles.size() < SLOWEST_FILES) {
+                slowestFiles.add(new FileTiming(stage, file, nanos));
+            } else if (slowestFiles.peek().nanos < nanos) {
+                slowestFiles.poll();
+                slowestFiles.add(new FileTiming(stage, file, nanos));
+            }
+        }
+    }
+
+    static Collection<Family> families() {
+        return families.values();
+    }
+
+    // Slowest first.
+    static List<FileTiming> slowestFiles() {
+        List<FileTiming> files;
+        synchronized (slowestFiles) {
+            files = new ArrayList<>(slowestFiles);
+        }
+        files.sort(Comparator.comparingLong(FileTiming::getNanos).reversed());
+        return files;
+    }
+
+    static long getStartedAtMillis() {
+        return startedAtMillis;
+    }
+
+    static long getUptimeNanos() {
+        return System.nanoTime() - startedAtNanos;
+    }
+
+    // All metrics of one name. Each label set has its own counter or histogram.
+    static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Labeled> metrics = new ConcurrentSkipListMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        Object register(String[] labels, Supplier<Object> factory) {
+            if (labels.length % 2 != 0) {
+                throw new IllegalArgumentException("Labels of " + name + " are not name, value pairs");
+            }
+            return metrics.computeIfAbsent(String.join("\u0000", labels), k -> new Labeled(labels, factory.get())).metric;
+        }
+    }
+
+    static class Labeled {
+        final String[] labels;
+        final Object metric;
+
+        Labeled(String[] labels, Object metric) {
+            this.labels = labels.clone();
+            this.metric = metric;
+        }
+    }
+
+    static class FileTiming {
+        final Stage stage;
+        final String file;
+        final long nanos;
+
+        FileTiming(Stage stage, String file, long nanos) {
+            this.stage = stage;
+            this.file = file;
+            this.nanos = nanos;
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+    }
+}
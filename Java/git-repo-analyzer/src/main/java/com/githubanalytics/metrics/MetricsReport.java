@@ -0,0 +1,184 @@
+package com.githubanalytics.metrics;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Locale;
+
+// Writes everything in Metrics at the end of a run: metrics.json for reading and scripts, metrics.prom in the
+// Prometheus text format for a node exporter's textfile collector or a push gateway. Histograms are in seconds
+// in both. The JSON adds quantiles, symbol resolution rates and the slowest files.
+public class MetricsReport {
+    public static final String JSON_FILE = "metrics.json";
+    public static final String PROMETHEUS_FILE = "metrics.prom";
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    // Never fails the run it reports on, a report that cannot be written is only logged.
+    public static void writeTo(Path outputDir) {
+        try {
+            Files.createDirectories(outputDir);
+            try (Writer writer = Files.newBufferedWriter(outputDir.resolve(JSON_FILE), StandardCharsets.UTF_8)) {
+                Gson gson = new GsonBuilder().setPrettyPrinting().create();
+                gson.toJson(toJson(), writer);
+            }
+            try (Writer writer = Files.newBufferedWriter(outputDir.resolve(PROMETHEUS_FILE), StandardCharsets.UTF_8)) {
+                writePrometheus(writer);
+            }
+            System.out.println("Metrics written to " + outputDir.resolve(JSON_FILE) + " and " + PROMETHEUS_FILE);
+        } catch (IOException e) {
+            System.err.println("Cannot write metrics to " + outputDir + ": " + e.getMessage());
+        }
+    }
+
+    // For tools whose output is a single file: the report goes into the same directory.
+    public static void writeNextTo(Path outputFile) {
+        writeTo(outputFile.toAbsolutePath().getParent());
+    }
+
+    public static JsonObject toJson() {
+        JsonObject report = new JsonObject();
+        report.addProperty("startedAt", Instant.ofEpochMilli(Metrics.getStartedAtMillis()).toString());
+        report.addProperty("durationSeconds", Metrics.getUptimeNanos() / NANOS_PER_SECOND);
+
+        JsonArray counters = new JsonArray();
+        JsonArray histograms = new JsonArray();
+        for (Metrics.Family family : Metrics.families()) {
+            for (Metrics.Labeled labeled : family.metrics.values()) {
+                JsonObject entry = new JsonObject();
+                entry.addProperty("name", family.name);
+                entry.add("labels", labelsToJson(labeled.labels));
+                if (labeled.metric instanceof Counter) {
+                    entry.addProperty("value", ((Counter) labeled.metric).get());
+                    counters.add(entry);
+                } else {
+                    LatencyHistogram histogram = (LatencyHistogram) labeled.metric;
+                    long count = histogram.getCount();
+                    if (count == 0) {
+                        continue;
+                    }
+                    entry.addProperty("count", count);
+                    entry.addProperty("sumSeconds", histogram.getSumNanos() / NANOS_PER_SECOND);
+                    entry.addProperty("meanSeconds", histogram.getSumNanos() / NANOS_PER_SECOND / count);
+                    entry.addProperty("p50Seconds", histogram.quantileNanos(0.5) / NANOS_PER_SECOND);
+                    entry.addProperty("p90Seconds", histogram.quantileNanos(0.9) / NANOS_PER_SECOND);
+                    entry.addProperty("p99Seconds", histogram.quantileNanos(0.99) / NANOS_PER_SECOND);
+                    entry.addProperty("maxSeconds", histogram.getMaxNanos() / NANOS_PER_SECOND);
+                    histograms.add(entry);
+                }
+            }
+        }
+        report.add("counters", counters);
+        report.add("stages", histograms);
+        report.add("symbolResolution", symbolResolutionToJson());
+
+        JsonArray slowestFiles = new JsonArray();
+        for (Metrics.FileTiming timing : Metrics.slowestFiles()) {
+            JsonObject entry = new JsonObject();
+            entry.addProperty("component", timing.stage.getComponent());
+            entry.addProperty("file", timing.file);
+            entry.addProperty("seconds", timing.nanos / NANOS_PER_SECOND);
+            slowestFiles.add(entry);
+        }
+        report.add("slowestFiles", slowestFiles);
+        return report;
+    }
+
+    // Outcomes of TypeResolver.resolve (the only label of analyzer_symbol_resolutions_total) as shares of all
+    // resolutions.
+    private static JsonObject symbolResolutionToJson() {
+        JsonObject resolution = new JsonObject();
+        Metrics.Family family = null;
+        for (Metrics.Family candidate : Metrics.families()) {
+            if (candidate.name.equals("analyzer_symbol_resolutions_total")) {
+                family = candidate;
+            }
+        }
+        if (family == null) {
+            return resolution;
+        }
+        long total = 0;
+        for (Metrics.Labeled labeled : family.metrics.values()) {
+            total += ((Counter) labeled.metric).get();
+        }
+        resolution.addProperty("total", total);
+        JsonObject outcomes = new JsonObject();
+        for (Metrics.Labeled labeled : family.metrics.values()) {
+            long value = ((Counter) labeled.metric).get();
+            JsonObject outcome = new JsonObject();
+            outcome.addProperty("count", value);
+            outcome.addProperty("rate", total == 0 ? 0 : (double) value / total);
+            outcomes.add(labeled.labels[1], outcome);
+        }
+        resolution.add("outcomes", outcomes);
+        return resolution;
+    }
+
+    private static JsonObject labelsToJson(String[] labels) {
+        JsonObject object = new JsonObject();
+        for (int i = 0; i < labels.length; i += 2) {
+            object.addProperty(labels[i], labels[i + 1]);
+        }
+        return object;
+    }
+
+    public static void writePrometheus(Writer writer) throws IOException {
+        writer.write("# HELP analyzer_run_duration_seconds Time since the analyzer started.\n");
+        writer.write("# TYPE analyzer_run_duration_seconds gauge\n");
+        writer.write("analyzer_run_duration_seconds " + format(Metrics.getUptimeNanos() / NANOS_PER_SECOND) + "\n");
+
+        for (Metrics.Family family : Metrics.families()) {
+            writer.write("# HELP " + family.name + " " + family.help + "\n");
+            writer.write("# TYPE " + family.name + " " + family.type + "\n");
+            for (Metrics.Labeled labeled : family.metrics.values()) {
+                String labels = prometheusLabels(labeled.labels);
+                if (labeled.metric instanceof Counter) {
+                    writer.write(family.name + braces(labels) + " " + ((Counter) labeled.metric).get() + "\n");
+                    continue;
+                }
+                LatencyHistogram histogram = (LatencyHistogram) labeled.metric;
+                long[] counts = histogram.bucketCounts();
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                long cumulative = 0;
+                for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                    cumulative += counts[i];
+                    writer.write(family.name + "_bucket{" + prefix + "le=\""
+                            + format(LatencyHistogram.upperBoundNanos(i) / NANOS_PER_SECOND) + "\"} " + cumulative + "\n");
+                }
+                cumulative += counts[LatencyHistogram.BUCKETS];
+                writer.write(family.name + "_bucket{" + prefix + "le=\"+Inf\"} " + cumulative + "\n");
+                writer.write(family.name + "_sum" + braces(labels) + " " + format(histogram.getSumNanos() / NANOS_PER_SECOND) + "\n");
+                writer.write(family.name + "_count" + braces(labels) + " " + cumulative + "\n");
+            }
+        }
+    }
+
+    private static String prometheusLabels(String[] labels) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return text.toString();
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.9g", value);
+    }
+}
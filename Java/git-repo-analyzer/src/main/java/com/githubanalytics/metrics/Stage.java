@@ -0,0 +1,84 @@
+package com.githubanalytics.metrics;
+
+// The timed steps of the pipeline, each with a latency histogram (analyzer_stage_duration_seconds). The FILE
+// stages cover the work on a whole file (or class) from its bytes to its records, reading excluded, and also feed the
+// slowest files of the report.
+public enum Stage {
+    SOURCE_READ("source", "read"),
+    SOURCE_PARSE("source", "parse"),
+    // One symbol solver call, memo hits are not timed.
+    SOURCE_RESOLVE("source", "resolve"),
+    // Pretty-printing or slicing out one method's code, not timed as a JFR event.
+    SOURCE_PRINT("source", "print"),
+    SOURCE_FILE("source", "file", true),
+    BYTECODE_READ("bytecode", "read"),
+    BYTECODE_PARSE("bytecode", "parse"),
+    BYTECODE_FILE("bytecode", "file", true),
+    CALL_GRAPH("bytecode", "call_graph"),
+    JOIN_SIGNATURES("joiner", "signatures"),
+    JOIN_LINES("joiner", "lines"),
+    JOIN_EXTERNAL("joiner", "external"),
+    // Sorting and writing one run of the external join to disk.
+    JOIN_SPILL("joiner", "spill"),
+    MATCH_CALLED_NAMES("matcher", "called_names"),
+    MATCH_CALL_GRAPH("matcher", "call_graph"),
+    MATCH_TEST_NAMES("matcher", "test_names"),
+    TESTS_PARSE("tests", "parse"),
+    // Finding the methods under test of one test file.
+    TESTS_LOCATE("tests", "locate"),
+    TESTS_FILE("tests", "file", true),
+    REPO_PARSER_FILE("repo_parser", "file", true),
+    // One JSON record, not timed as a JFR event.
+    JSON_WRITE("output", "json_write");
+
+    private final String component;
+    private final String step;
+    private final boolean perFile;
+    private final LatencyHistogram histogram;
+
+    Stage(String component, String step) {
+        this(component, step, false);
+    }
+
+    Stage(String component, String step, boolean perFile) {
+        this.component = component;
+        this.step = step;
+        this.perFile = perFile;
+        this.histogram = Metrics.histogram("analyzer_stage_duration_seconds", "Time spent in each pipeline stage.",
+                "component", component, "stage", step);
+    }
+
+    public String getComponent() {
+        return component;
+    }
+
+    public String getStep() {
+        return step;
+    }
+
+    public boolean isPerFile() {
+        return perFile;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    // Starts timing one occurrence of the stage, and a JFR event for it when JFR is there.
+    public StageTimer start() {
+        return new StageTimer(this);
+    }
+
+    // For stages too frequent for an event each: the histogram only, with a start taken from System.nanoTime().
+    public void recordSince(long startNanos) {
+        histogram.record(System.nanoTime() - startNanos);
+    }
+
+    // For an occurrence timed in pieces, e.g. a file parsed on one thread and processed further on another. No event.
+    public void record(long nanos, String subject) {
+        histogram.record(nanos);
+        if (perFile && subject != null) {
+            Metrics.recordFile(this, subject, nanos);
+        }
+    }
+}
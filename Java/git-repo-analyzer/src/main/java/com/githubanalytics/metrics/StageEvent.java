@@ -0,0 +1,53 @@
+package com.githubanalytics.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// A pipeline stage as a JFR event, e.g. with java -XX:StartFlightRecording=filename=run.jfr. StageTimer loads Jfr
+// by name, nothing else refers to this class: it is left out of Java 8 builds, which have no jdk.jfr to compile
+// against.
+@Name("com.githubanalytics.Stage")
+@Label("Pipeline Stage")
+@Description("One stage of extraction, joining, matching or output")
+@Category("GitHub Data Analytics")
+@StackTrace(false)
+class StageEvent extends Event {
+    @Label("Component")
+    String component;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Subject")
+    @Description("The file of a per-file stage, the outcome of a symbol resolution")
+    String subject;
+
+    static class Jfr implements StageTimer.Events {
+        @Override
+        public Object begin(Stage stage) {
+            StageEvent event = new StageEvent();
+            if (event.isEnabled()) {
+                event.component = stage.getComponent();
+                event.stage = stage.getStep();
+                event.begin();
+            }
+            return event;
+        }
+
+        @Override
+        public void commit(Object started, String subject) {
+            StageEvent event = (StageEvent) started;
+            if (event.isEnabled()) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.subject = subject;
+                    event.commit();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.githubanalytics.metrics;
+
+// One running occurrence of a stage. stop() records it in the stage's histogram and commits its JFR event.
+// jdk.jfr exists from Java 11 (and late Java 8 updates), and StageEvent is only compiled where it does (see the jfr
+// profile of the pom). It is looked up by name, so without either there are no events and the histograms and
+// counters work the same.
+public class StageTimer {
+    private static final Events EVENTS = loadEvents();
+
+    // Begins and commits the events of stages, see StageEvent.Jfr.
+    interface Events {
+        Object begin(Stage stage);
+
+        void commit(Object event, String subject);
+    }
+
+    private final Stage stage;
+    private final Object event;
+    private final long start;
+
+    StageTimer(Stage stage) {
+        this.stage = stage;
+        this.event = EVENTS != null ? EVENTS.begin(stage) : null;
+        this.start = System.nanoTime();
+    }
+
+    public long stop() {
+        return stop(null);
+    }
+
+    // subject says what was processed: the file of a FILE stage, the outcome of a resolution.
+    public long stop(String subject) {
+        long nanos = System.nanoTime() - start;
+        stage.getHistogram().record(nanos);
+        if (stage.isPerFile() && subject != null) {
+            Metrics.recordFile(stage, subject, nanos);
+        }
+        if (event != null) {
+            EVENTS.commit(event, subject);
+        }
+        return nanos;
+    }
+
+    private static Events loadEvents() {
+        try {
+            // Fails to link when jdk.jfr is missing, and is not found when it was missing at build time.
+            return (Events) Class.forName(StageTimer.class.getPackage().getName() + ".StageEvent$Jfr")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.githubanalytics.output;
+
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.Stage;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Writes JSON records to a file as they are produced, instead of building the whole document in memory first.
+public class JsonStreamWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Counter RECORDS = Metrics.counter("analyzer_records_written_total", "JSON records written.");
+
+    private Gson gson = new Gson();
+    private final JsonWriter jsonWriter;
+    private final boolean topLevelArray;
+
+    private JsonStreamWriter(Path path, boolean prettyPrint, boolean topLevelArray) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null && !Files.exists(parent)) {
+            Files.createDirectories(parent);
+        }
+
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        Writer writer = new BufferedWriter(
+                Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+
+        this.jsonWriter = new JsonWriter(writer);
+        if (prettyPrint) {
+            jsonWriter.setIndent("  ");
+        }
+
+        this.topLevelArray = topLevelArray;
+        if (topLevelArray) {
+            jsonWriter.beginArray();
+        }
+    }
+
+    // A writer for a document whose top level is an array of records, the array is closed on close().
+    public static JsonStreamWriter array(Path path, boolean prettyPrint) throws IOException {
+        return new JsonStreamWriter(path, prettyPrint, true);
+    }
+
+    public static JsonStreamWriter array(String path, boolean prettyPrint) throws IOException {
+        return array(Paths.get(path), prettyPrint);
+    }
+
+    // A writer for any other document shape, built by the caller through getJsonWriter().
+    public static JsonStreamWriter document(Path path, boolean prettyPrint) throws IOException {
+        return new JsonStreamWriter(path, prettyPrint, false);
+    }
+
+    // Records are written through this Gson, e.g. one whose MethodRecord adapter writes blob references.
+    public JsonStreamWriter setGson(Gson gson) {
+        this.gson = gson;
+        return this;
+    }
+
+    public JsonWriter getJsonWriter() {
+        return jsonWriter;
+    }
+
+    public void write(Object record) throws IOException {
+        long start = System.nanoTime();
+        if (record == null) {
+            jsonWriter.nullValue();
+        } else if (record instanceof JsonElement) {
+            gson.toJson((JsonElement) record, jsonWriter);
+        } else {
+            gson.toJson(record, record.getClass(), jsonWriter);
+        }
+        Stage.JSON_WRITE.recordSince(start);
+        RECORDS.increment();
+    }
+
+    // For use as a sink in lambdas, where the checked exception cannot be thrown.
+    public void writeUnchecked(Object record) {
+        try {
+            write(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (topLevelArray) {
+                jsonWriter.endArray();
+            }
+        } finally {
+            jsonWriter.close();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.githubanalytics.pipeline;
+
+import java.nio.file.Path;
+
+// A file and the bytes read from it, as handed from a reader stage to a parser stage.
+public class FileContent {
+    private final Path path;
+    private final byte[] content;
+
+    public FileContent(Path path, byte[] content) {
+        this.path = path;
+        this.content = content;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,221 @@
+package com.githubanalytics.pipeline;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// Moves items from a source (e.g. a directory walker) through a chain of stages (read, parse, extract, ...) into a
+// sink. The source and every stage run on threads of their own, stages with as many threads as they are given, and
+// are connected by bounded queues, so reading the next files overlaps with parsing the previous ones.
+//
+// At most capacity items are between the source and the sink at any time, queued, in a stage or waiting for an
+// earlier one to be emitted. A slow sink therefore stalls the source instead of letting parsed files pile up.
+// The sink runs on the calling thread and sees the results in source order, whatever the parallelism, so the
+// output matches a serial run.
+//
+// A stage that returns null drops the item (e.g. a file without tests). One that throws drops it as well, after
+// reporting which source item failed; the pipeline carries on with the next one. An Error other than a stack
+// overflow (out of memory, a missing class) is not survivable per item: the stages skip the remaining items, which
+// still reach the sink's ordering as dropped ones so nothing waits for them, and forEachOrdered rethrows it.
+public class StagedPipeline<T> {
+    // Produces the items, e.g. by walking a directory. Runs on its own thread.
+    @FunctionalInterface
+    public interface Source<T> {
+        void forEach(Consumer<T> emit) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Step<I, O> {
+        O apply(I input) throws Exception;
+    }
+
+    private static final Envelope END = new Envelope(-1, null);
+
+    private final String name;
+    private final Source<?> source;
+    private final int capacity;
+    private final List<StageSpec<?>> stages;
+
+    private StagedPipeline(String name, Source<?> source, int capacity, List<StageSpec<?>> stages) {
+        this.name = name;
+        this.source = source;
+        this.capacity = capacity;
+        this.stages = stages;
+    }
+
+    public static <T> StagedPipeline<T> from(String name, Source<T> source, int capacity) {
+        return new StagedPipeline<>(name, source, Math.max(1, capacity), Collections.emptyList());
+    }
+
+    public <O> StagedPipeline<O> then(String stageName, int parallelism, Step<? super T, ? extends O> step) {
+        List<StageSpec<?>> extended = new ArrayList<>(stages);
+        extended.add(new StageSpec<T>(stageName, Math.max(1, parallelism), step));
+        return new StagedPipeline<>(name, source, capacity, extended);
+    }
+
+    // Runs the pipeline to the end. Fails with the source's exception if the source failed, after the items it did
+    // produce have been emitted, and with the Error a stage failed with.
+    public void forEachOrdered(Consumer<? super T> sink) throws IOException, InterruptedException {
+        List<BlockingQueue<Envelope>> queues = new ArrayList<>();
+        for (int i = 0; i <= stages.size(); i++) {
+            // Room for every item in flight and the end marker.
+            queues.add(new ArrayBlockingQueue<>(capacity + 1));
+        }
+        Semaphore window = new Semaphore(capacity);
+        // The first failure of the source or a fatal one of a stage.
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        ExecutorService threads = Executors.newCachedThreadPool(namedDaemonThreads());
+        try {
+            threads.execute(() -> produce(queues.get(0), window, failure));
+            for (int s = 0; s < stages.size(); s++) {
+                StageSpec<?> stage = stages.get(s);
+                AtomicInteger running = new AtomicInteger(stage.parallelism);
+                for (int worker = 0; worker < stage.parallelism; worker++) {
+                    BlockingQueue<Envelope> in = queues.get(s);
+                    BlockingQueue<Envelope> out = queues.get(s + 1);
+                    threads.execute(() -> work(stage, in, out, running, failure));
+                }
+            }
+            consume(queues.get(stages.size()), window, sink);
+        } finally {
+            threads.shutdownNow();
+        }
+
+        Throwable failed = failure.get();
+        if (failed instanceof IOException) {
+            throw (IOException) failed;
+        } else if (failed instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) failed).getCause();
+        } else if (failed instanceof RuntimeException) {
+            throw (RuntimeException) failed;
+        } else if (failed instanceof Error) {
+            throw (Error) failed;
+        }
+    }
+
+    private void produce(BlockingQueue<Envelope> out, Semaphore window, AtomicReference<Throwable> failure) {
+        long[] sequence = {0};
+        try {
+            source.forEach(item -> {
+                try {
+                    window.acquire();
+                    out.put(new Envelope(sequence[0]++, item));
+                } catch (InterruptedException e) {
+                    throw new CancellationException();
+                }
+            });
+        } catch (CancellationException e) {
+            // The pipeline was shut down, nobody waits for the end marker.
+            return;
+        } catch (Exception | Error e) {
+            failure.compareAndSet(null, e);
+        }
+        try {
+            out.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <I> void work(StageSpec<I> stage, BlockingQueue<Envelope> in, BlockingQueue<Envelope> out,
+                          AtomicInteger running, AtomicReference<Throwable> failure) {
+        try {
+            while (true) {
+                Envelope envelope = in.take();
+                if (envelope == END) {
+                    // Left for the other workers of the stage, the last one passes it on.
+                    in.put(END);
+                    if (running.decrementAndGet() == 0) {
+                        out.put(END);
+                    }
+                    return;
+                }
+                if (envelope.value != null && failure.get() == null) {
+                    try {
+                        // then() chains the stages, so what reaches this one is what the one before it returned.
+                        @SuppressWarnings("unchecked")
+                        I input = (I) envelope.value;
+                        envelope.value = stage.step.apply(input);
+                    } catch (Exception | StackOverflowError e) {
+                        System.err.println("Error in " + name + " stage " + stage.name + " for " + envelope.origin);
+                        e.printStackTrace();
+                        envelope.value = null;
+                    } catch (Throwable e) {
+                        System.err.println("Fatal error in " + name + " stage " + stage.name + " for " + envelope.origin);
+                        failure.compareAndSet(null, e);
+                        envelope.value = null;
+                    }
+                } else {
+                    // Dropped earlier, or skipped after a fatal error.
+                    envelope.value = null;
+                }
+                out.put(envelope);
+            }
+        } catch (InterruptedException e) {
+            // Shut down.
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void consume(BlockingQueue<Envelope> in, Semaphore window, Consumer<? super T> sink) throws InterruptedException {
+        // Items that finished ahead of an earlier one, by sequence number. Bounded by the window.
+        Map<Long, Envelope> waiting = new HashMap<>();
+        long next = 0;
+        while (true) {
+            Envelope envelope = in.take();
+            if (envelope == END) {
+                return;
+            }
+            waiting.put(envelope.sequence, envelope);
+            while ((envelope = waiting.remove(next)) != null) {
+                next++;
+                try {
+                    if (envelope.value != null) {
+                        sink.accept((T) envelope.value);
+                    }
+                } finally {
+                    window.release();
+                }
+            }
+        }
+    }
+
+    private ThreadFactory namedDaemonThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class StageSpec<I> {
+        private final String name;
+        private final int parallelism;
+        private final Step<? super I, ?> step;
+
+        StageSpec(String name, int parallelism, Step<? super I, ?> step) {
+            this.name = name;
+            this.parallelism = parallelism;
+            this.step = step;
+        }
+    }
+
+    // An item on its way through the stages. origin is what the source produced, for error messages.
+    private static class Envelope {
+        private final long sequence;
+        private final Object origin;
+        private Object value;
+
+        Envelope(long sequence, Object origin) {
+            this.sequence = sequence;
+            this.origin = origin;
+            this.value = origin;
+        }
+    }
+}
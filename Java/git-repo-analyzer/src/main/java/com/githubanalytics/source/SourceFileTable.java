@@ -0,0 +1,124 @@
+package com.githubanalytics.source;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Source files that extracted methods point into. Records keep a file id and a byte range instead of their
+// text; the text is read out of the file, with a positional read of just that range, only when something asks
+// for it. One table is shared by everything extracted in a run, so each file is registered once.
+//
+// Files are kept open between reads, methods of a file are usually read one after the other. At most
+// maxOpenFiles are open at a time, the least recently read is closed first, so exporting every method of a large
+// repository neither runs out of file handles nor holds a mapping per file.
+public class SourceFileTable {
+    private static final int DEFAULT_MAX_OPEN_FILES = 64;
+
+    private final Map<Path, Integer> ids = new HashMap<>();
+    private final List<Path> paths = new ArrayList<>();
+    // Size and modification time at registration, a file that changed since cannot be sliced with the old ranges.
+    private final List<Long> sizes = new ArrayList<>();
+    private final List<Long> modifiedTimes = new ArrayList<>();
+    private final Map<Integer, FileChannel> open;
+
+    public SourceFileTable() {
+        this(DEFAULT_MAX_OPEN_FILES);
+    }
+
+    public SourceFileTable(int maxOpenFiles) {
+        // Access ordered, so the least recently read file is closed first.
+        this.open = new LinkedHashMap<Integer, FileChannel>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+                if (size() <= Math.max(1, maxOpenFiles)) {
+                    return false;
+                }
+                close(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    // Id of the file, whose current content has the given size.
+    public synchronized int register(Path path, long size) {
+        Path normalized = path.toAbsolutePath().normalize();
+        long modifiedTime = modifiedTimeOf(normalized);
+        Integer id = ids.get(normalized);
+        if (id != null && sizes.get(id) == size && modifiedTimes.get(id) == modifiedTime) {
+            return id;
+        }
+        // New, or changed under the same path: older records keep their own id.
+        paths.add(normalized);
+        sizes.add(size);
+        modifiedTimes.add(modifiedTime);
+        ids.put(normalized, paths.size() - 1);
+        return paths.size() - 1;
+    }
+
+    public synchronized Path pathOf(int fileId) {
+        return paths.get(fileId);
+    }
+
+    public synchronized int size() {
+        return paths.size();
+    }
+
+    // Text of the UTF-8 bytes [begin, end) of the file. Reads hold the lock, a file is never closed under one.
+    public synchronized String slice(int fileId, int begin, int end) {
+        ByteBuffer text = ByteBuffer.allocate(end - begin);
+        try {
+            FileChannel channel = channelOf(fileId);
+            while (text.hasRemaining()) {
+                if (channel.read(text, begin + text.position()) < 0) {
+                    throw new EOFException(paths.get(fileId) + " ends before " + end);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(text.array(), 0, text.capacity(), StandardCharsets.UTF_8);
+    }
+
+    private FileChannel channelOf(int fileId) throws IOException {
+        FileChannel channel = open.get(fileId);
+        if (channel == null) {
+            Path path = paths.get(fileId);
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            // An edit that keeps the size still changes the modification time.
+            if (channel.size() != sizes.get(fileId) || modifiedTimeOf(path) != modifiedTimes.get(fileId)) {
+                close(channel);
+                throw new IllegalStateException(path + " changed since its methods were extracted");
+            }
+            open.put(fileId, channel);
+        }
+        return channel;
+    }
+
+    private static long modifiedTimeOf(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            // Not readable now, slicing will tell.
+            return -1;
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Read only, nothing is lost.
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.githubanalytics.source;
+
+// Lines of a method in its source file. The file is named by package path and file name, e.g.
+// com/google/gson/Gson.java, which a source file and the classes compiled from it (SourceFile attribute) agree on
+// whatever directory the source sits in. Synthetic methods (lambda bodies, bridges) carry the lines of the source
+// they were generated from.
+public class SourceLocation {
+    private final String file;
+    private final int firstLine;
+    private final int lastLine;
+    private final boolean synthetic;
+
+    public SourceLocation(String file, int firstLine, int lastLine, boolean synthetic) {
+        this.file = file;
+        this.firstLine = firstLine;
+        this.lastLine = lastLine;
+        this.synthetic = synthetic;
+    }
+
+    // packageName is dotted and empty for the default package.
+    public static String fileKey(String packageName, String fileName) {
+        return packageName.isEmpty() ? fileName : packageName.replace('.', '/') + '/' + fileName;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getFirstLine() {
+        return firstLine;
+    }
+
+    public int getLastLine() {
+        return lastLine;
+    }
+
+    public boolean isSynthetic() {
+        return synthetic;
+    }
+
+    @Override
+    public String toString() {
+        return file + ":" + firstLine + "-" + lastLine + (synthetic ? " (synthetic)" : "");
+    }
+}
@@ -0,0 +1,62 @@
+package com.githubanalytics.source;
+
+import com.github.javaparser.Position;
+import com.github.javaparser.Range;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Turns JavaParser's line and column positions into byte offsets of the UTF-8 content they were parsed from.
+// Lines end at \n, \r\n or a lone \r, columns count UTF-16 chars (a tab is one column), as JavaParser counts them.
+public class SourcePositions {
+    private final byte[] content;
+    private final int[] lineStarts;
+
+    public SourcePositions(byte[] content) {
+        this.content = content;
+        int[] starts = new int[64];
+        int lines = 1;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n' || content[i] == '\r' && (i + 1 >= content.length || content[i + 1] != '\n')) {
+                if (lines == starts.length) {
+                    starts = Arrays.copyOf(starts, lines * 2);
+                }
+                starts[lines++] = i + 1;
+            }
+        }
+        this.lineStarts = Arrays.copyOf(starts, lines);
+    }
+
+    // Offset of the first byte of the character at the position.
+    public int offsetOf(Position position) {
+        int offset = lineStarts[position.line - 1];
+        for (int column = 1; column < position.column && offset < content.length; ) {
+            int length = charLength(content[offset]);
+            // Characters outside the BMP are two chars.
+            column += length == 4 ? 2 : 1;
+            offset += length;
+        }
+        return offset;
+    }
+
+    // Byte range [begin, end) covered by the range, whose end position is inclusive.
+    public int[] offsetsOf(Range range) {
+        int begin = offsetOf(range.begin);
+        int end = offsetOf(range.end);
+        if (end < content.length) {
+            end += charLength(content[end]);
+        }
+        return new int[]{begin, end};
+    }
+
+    public String text(Range range) {
+        int[] offsets = offsetsOf(range);
+        return new String(content, offsets[0], offsets[1] - offsets[0], StandardCharsets.UTF_8);
+    }
+
+    // Bytes of the UTF-8 sequence starting with b.
+    private static int charLength(byte b) {
+        int lead = b & 0xFF;
+        return lead < 0x80 ? 1 : lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+    }
+}
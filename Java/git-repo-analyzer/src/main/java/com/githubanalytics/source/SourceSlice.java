@@ -0,0 +1,38 @@
+package com.githubanalytics.source;
+
+// A method's source as a byte range of a file in a SourceFileTable. The text is sliced on every call to text(),
+// nothing is kept.
+public class SourceSlice {
+    private final SourceFileTable files;
+    private final int fileId;
+    private final int begin;
+    private final int end;
+
+    public SourceSlice(SourceFileTable files, int fileId, int begin, int end) {
+        this.files = files;
+        this.fileId = fileId;
+        this.begin = begin;
+        this.end = end;
+    }
+
+    public String text() {
+        return files.slice(fileId, begin, end);
+    }
+
+    public int getFileId() {
+        return fileId;
+    }
+
+    public int getBegin() {
+        return begin;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return files.pathOf(fileId) + "[" + begin + ", " + end + ")";
+    }
+}
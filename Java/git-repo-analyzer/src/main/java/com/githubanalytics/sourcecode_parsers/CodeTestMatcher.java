@@ -1,32 +1,59 @@
 package com.githubanalytics.sourcecode_parsers;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.githubanalytics.cache.ExtractionCache;
+import com.githubanalytics.dataset.DatasetFormat;
+import com.githubanalytics.dataset.DatasetWriter;
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.MetricsReport;
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+import com.githubanalytics.output.JsonStreamWriter;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.function.Consumer;
 
 public class CodeTestMatcher {
+    private static final Counter PAIRS = Metrics.counter("analyzer_code_test_pairs_total",
+            "Code-test pairs found, by matcher.", "matcher", "test_names");
 
     private final RepoParser repoParser;
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    // Paths are written relative to this, so they start with the repository's directory name.
+    private final Path repoParent;
 
     public CodeTestMatcher(Path repoDir) {
-        this.repoParser = new RepoParser(repoDir);
+        this(repoDir, null);
+    }
+
+    public CodeTestMatcher(Path repoDir, ExtractionCache cache) {
+        this(repoDir, cache, RepoParser.Engine.JAVAPARSER);
+    }
+
+    public CodeTestMatcher(Path repoDir, ExtractionCache cache, RepoParser.Engine engine) {
+        this.repoParser = new RepoParser(repoDir, cache, RepoParser.DEFAULT_RESULT_CACHE_BYTES, engine);
+        this.repoParent = repoDir.toAbsolutePath().normalize().getParent();
     }
 
     public List<Map<String, String>> matchCodeToTests() throws IOException {
+        List<Map<String, String>> codeTestPairs = new ArrayList<>();
+        matchCodeToTests(codeTestPairs::add);
+        return codeTestPairs;
+    }
+
+    // Hands every pair to the sink as soon as it is found.
+    public void matchCodeToTests(Consumer<Map<String, String>> sink) throws IOException {
+        StageTimer timer = Stage.MATCH_TEST_NAMES.start();
         Map<String, Map<String, Map<String, String>>> codeMethods = repoParser.parseNonTestFiles();
         Map<String, Map<String, Map<String, String>>> testMethods = repoParser.parseTestFiles();
 
-        List<Map<String, String>> codeTestPairs = new ArrayList<>();
-
         for (String codeFile : codeMethods.keySet()) {
             Map<String, Map<String, String>> codeFileMethods = codeMethods.get(codeFile);
             Path codeFilePath = Paths.get(codeFile);
@@ -43,13 +70,14 @@ public class CodeTestMatcher {
 
                         if (testFileMethods.containsKey(potentialTestMethodName)) {
                             Map<String, String> testMethodDetails = testFileMethods.get(potentialTestMethodName);
-                            codeTestPairs.add(buildPair(codeFile, codeMethodDetails, testFile, testMethodDetails));
+                            sink.accept(buildPair(codeFile, codeMethodDetails, testFile, testMethodDetails));
+                            PAIRS.increment();
                         }
                     }
                 }
             }
         }
-        return codeTestPairs;
+        timer.stop();
     }
 
     private boolean isMatchingPair(Path codeFilePath, Path testFilePath) {
@@ -75,32 +103,90 @@ public class CodeTestMatcher {
         return pair;
     }
 
+    // Pairs carry the code as JavaParser prints it instead of as written.
+    public void setPrettyPrintDeclarations(boolean prettyPrintDeclarations) {
+        repoParser.setPrettyPrintDeclarations(prettyPrintDeclarations);
+    }
+
     private String capitalizeFirstLetter(String str) {
         if (str == null || str.isEmpty()) return str;
         return str.substring(0, 1).toUpperCase() + str.substring(1);
     }
 
     public void saveCodeTestPairsToFile(List<Map<String, String>> codeTestPairs, Path filePath) throws IOException {
-        String json = gson.toJson(codeTestPairs);
-        Files.write(filePath, json.getBytes());
+        saveCodeTestPairsToFile(codeTestPairs, filePath, true);
+    }
+
+    public void saveCodeTestPairsToFile(List<Map<String, String>> codeTestPairs, Path filePath, boolean prettyPrint) throws IOException {
+        try (JsonStreamWriter writer = JsonStreamWriter.array(filePath, prettyPrint)) {
+            for (Map<String, String> codeTestPair : codeTestPairs) {
+                writer.write(codeTestPair);
+            }
+        }
+    }
+
+    // Matches and writes in one go, pairs are not retained so memory does not grow with the output.
+    public void streamCodeTestPairsToFile(Path filePath, boolean prettyPrint) throws IOException {
+        try (JsonStreamWriter writer = JsonStreamWriter.array(filePath, prettyPrint)) {
+            matchCodeToTests(writer::writeUnchecked);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // The same pairs as a sharded dataset in directory (see DatasetWriter), the directory is named after the pairs.
+    public void streamCodeTestPairsToDataset(Path directory, DatasetFormat format, long maxShardBytes) throws IOException {
+        try (DatasetWriter writer = new DatasetWriter(directory, "code-test-pairs", format, maxShardBytes)) {
+            matchCodeToTests(writer::writeUnchecked);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     private String shortenPath(String fullPath) {
-        String unixLikePath = fullPath.replace("\\", "/");
-        int repoNameIndex = unixLikePath.indexOf("google_guava");
-        return (repoNameIndex != -1) ? unixLikePath.substring(repoNameIndex) : unixLikePath;
+        Path path = Paths.get(fullPath).toAbsolutePath().normalize();
+        if (repoParent != null && path.startsWith(repoParent)) {
+            path = repoParent.relativize(path);
+        }
+        return path.toString().replace("\\", "/");
     }
 
     public static void main(String[] args) {
         Path currentDir = Paths.get(System.getProperty("user.dir"));
         Path repoDir = currentDir.resolve("../Repos/gson");
-        CodeTestMatcher matcher = new CodeTestMatcher(repoDir);
+        RepoParser.Engine engine = RepoParser.Engine.JAVAPARSER;
+        boolean prettyPrint = false;
+        // With --dataset-format=jsonl|jsonl-gzip|binary the pairs are written as a sharded dataset instead of a
+        // JSON array, shards of --shard-mb each.
+        DatasetFormat datasetFormat = null;
+        long shardBytes = DatasetWriter.DEFAULT_SHARD_BYTES;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = RepoParser.Engine.valueOf(arg.substring("--engine=".length()).toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--pretty-print-source")) {
+                prettyPrint = true;
+            } else if (arg.startsWith("--dataset-format=")) {
+                datasetFormat = DatasetFormat.parse(arg.substring("--dataset-format=".length()));
+            } else if (arg.startsWith("--shard-mb=")) {
+                shardBytes = Long.parseLong(arg.substring("--shard-mb=".length())) << 20;
+            }
+        }
+        CodeTestMatcher matcher = new CodeTestMatcher(repoDir, null, engine);
+        matcher.setPrettyPrintDeclarations(prettyPrint);
 
         try {
-            List<Map<String, String>> codeTestPairs = matcher.matchCodeToTests();
-            Path outputPath = Paths.get("gson__code-test-pairs.json");
-            matcher.saveCodeTestPairsToFile(codeTestPairs, outputPath);
+            Path outputPath;
+            if (datasetFormat != null) {
+                outputPath = Paths.get("gson__code-test-pairs");
+                matcher.streamCodeTestPairsToDataset(outputPath, datasetFormat, shardBytes);
+            } else {
+                outputPath = Paths.get("gson__code-test-pairs.json");
+                matcher.streamCodeTestPairsToFile(outputPath, true);
+            }
             System.out.println("Results saved to " + outputPath.toAbsolutePath());
+            System.out.println("Files parsed: " + matcher.repoParser.getParseCount());
+            matcher.repoParser.getPrefilter().printStatistics();
+            MetricsReport.writeNextTo(outputPath);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,681 @@
+package com.githubanalytics.sourcecode_parsers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Finds method declarations straight from source bytes with a small lexer and a brace-context stack, no AST.
+// It reports what dataset jobs use from a MethodDeclaration: name, signature (as JavaParser's
+// getSignature().asString() renders it), annotations, and the byte range of the declaration. Methods of
+// nested, local and anonymous classes and of enum constant bodies are found too; constructors are not, the
+// same set findAll(MethodDeclaration.class) returns. The scanner never fails: on broken input it reports what
+// it could make out, which MethodBoundaryScannerValidator checks against JavaParser on a reference corpus.
+public class MethodBoundaryScanner {
+    private static final int IDENT = 0;
+    private static final int PUNCT = 1;
+    private static final int LITERAL = 2;
+
+    // Context kinds of the brace stack.
+    private static final int TYPE_BODY = 0;
+    private static final int METHOD_BODY = 1;
+    private static final int BLOCK = 2;
+
+    private static final List<String> MODIFIERS = Arrays.asList(
+            "public", "protected", "private", "static", "final", "abstract", "synchronized", "native",
+            "strictfp", "transient", "volatile", "default", "sealed");
+
+    // Token arrays, reused across files.
+    private int[] kinds = new int[1024];
+    private int[] starts = new int[1024];
+    private int[] ends = new int[1024];
+    private int count;
+
+    private byte[] source;
+
+    // Methods in declaration order, which is also the order findAll(MethodDeclaration.class) returns them in.
+    public List<ScannedMethod> scan(byte[] content) {
+        this.source = content;
+        tokenize();
+        List<ScannedMethod> methods = new ArrayList<>();
+        parse(methods);
+        this.source = null;
+        return methods;
+    }
+
+    private void tokenize() {
+        count = 0;
+        byte[] s = source;
+        int n = s.length;
+        int i = 0;
+        // A byte order mark is not part of the source.
+        if (n >= 3 && (s[0] & 0xFF) == 0xEF && (s[1] & 0xFF) == 0xBB && (s[2] & 0xFF) == 0xBF) {
+            i = 3;
+        }
+        while (i < n) {
+            int b = s[i] & 0xFF;
+            if (b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f') {
+                i++;
+            } else if (b == '/' && i + 1 < n && s[i + 1] == '/') {
+                while (i < n && s[i] != '\n' && s[i] != '\r') {
+                    i++;
+                }
+            } else if (b == '/' && i + 1 < n && s[i + 1] == '*') {
+                i += 2;
+                while (i < n && !(s[i] == '*' && i + 1 < n && s[i + 1] == '/')) {
+                    i++;
+                }
+                i = Math.min(n, i + 2);
+            } else if (isIdentifierStart(b)) {
+                int start = i;
+                while (i < n && isIdentifierPart(s[i] & 0xFF)) {
+                    i++;
+                }
+                add(IDENT, start, i);
+            } else if (b >= '0' && b <= '9' || b == '.' && i + 1 < n && s[i + 1] >= '0' && s[i + 1] <= '9') {
+                int start = i;
+                while (i < n && (isIdentifierPart(s[i] & 0xFF) || s[i] == '.'
+                        || (s[i] == '+' || s[i] == '-') && (s[i - 1] == 'e' || s[i - 1] == 'E' || s[i - 1] == 'p' || s[i - 1] == 'P'))) {
+                    i++;
+                }
+                add(LITERAL, start, i);
+            } else if (b == '"' && i + 2 < n && s[i + 1] == '"' && s[i + 2] == '"') {
+                // Text block, ends at the next unescaped triple quote.
+                int start = i;
+                i += 3;
+                while (i < n && !(s[i] == '"' && i + 2 < n && s[i + 1] == '"' && s[i + 2] == '"')) {
+                    i += s[i] == '\\' ? 2 : 1;
+                }
+                i = Math.min(n, i + 3);
+                add(LITERAL, start, i);
+            } else if (b == '"' || b == '\'') {
+                int start = i;
+                i++;
+                while (i < n && s[i] != b && s[i] != '\n') {
+                    i += s[i] == '\\' ? 2 : 1;
+                }
+                i = Math.min(n, i + 1);
+                add(LITERAL, start, i);
+            } else if (b == '.' && i + 2 < n && s[i + 1] == '.' && s[i + 2] == '.') {
+                add(PUNCT, i, i + 3);
+                i += 3;
+            } else if (b == '-' && i + 1 < n && s[i + 1] == '>' || b == ':' && i + 1 < n && s[i + 1] == ':') {
+                add(PUNCT, i, i + 2);
+                i += 2;
+            } else {
+                // Everything else one byte at a time; '>>' stays two tokens so generics close one by one.
+                add(PUNCT, i, i + 1);
+                i++;
+            }
+        }
+    }
+
+    // Bytes from 0x80 up are parts of multi-byte UTF-8 characters, taken to be letters.
+    private static boolean isIdentifierStart(int b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b == '_' || b == '$' || b >= 0x80;
+    }
+
+    private static boolean isIdentifierPart(int b) {
+        return isIdentifierStart(b) || b >= '0' && b <= '9';
+    }
+
+    private void add(int kind, int start, int end) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        kinds[count] = kind;
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    private boolean isPunct(int token, char c) {
+        return token >= 0 && token < count && kinds[token] == PUNCT && ends[token] - starts[token] == 1
+                && source[starts[token]] == c;
+    }
+
+    private boolean isIdent(int token, String word) {
+        if (token < 0 || token >= count || kinds[token] != IDENT || ends[token] - starts[token] != word.length()) {
+            return false;
+        }
+        for (int k = 0; k < word.length(); k++) {
+            if (source[starts[token] + k] != word.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String text(int token) {
+        return new String(source, starts[token], ends[token] - starts[token], StandardCharsets.UTF_8);
+    }
+
+    private void parse(List<ScannedMethod> methods) {
+        // One entry per open brace: its context kind, where the current member of a type body started, whether
+        // the type body is an enum still listing its constants or an annotation type, whether closing the
+        // brace ends the enclosing member, and the method whose body it is.
+        int[] contextKinds = new int[64];
+        int[] memberStarts = new int[64];
+        boolean[] enumConstants = new boolean[64];
+        boolean[] annotationTypes = new boolean[64];
+        boolean[] endsMember = new boolean[64];
+        ScannedMethod[] bodyOwners = new ScannedMethod[64];
+        // JavaParser lists an enum's members before its constants, so the methods of constant bodies are held
+        // back until the enum closes: where they start in methods while the constants are listed, then the
+        // methods themselves.
+        int[] constantMethodStarts = new int[64];
+        List<List<ScannedMethod>> constantMethods = new ArrayList<>(Collections.<List<ScannedMethod>>nCopies(64, null));
+        // Parentheses open inside each brace context, and the '(' tokens of all open parentheses.
+        int[] parenDepths = new int[64];
+        int[] parenStack = new int[64];
+        int parenTop = 0;
+        int lastClosedParen = -1;
+        int depth = 0;
+        // Top level behaves like a type body whose members are the type declarations.
+        contextKinds[0] = TYPE_BODY;
+        // Set by 'class', 'interface', 'enum' or 'record' in code, the next brace opens that type's body.
+        int localType = -1;
+
+        for (int i = 0; i < count; i++) {
+            if (kinds[i] != PUNCT) {
+                if ((contextKinds[depth] != TYPE_BODY || parenDepths[depth] > 0) && isTypeKeyword(i)) {
+                    localType = i;
+                }
+                continue;
+            }
+            if (ends[i] - starts[i] != 1) {
+                continue;
+            }
+            byte c = source[starts[i]];
+            if (c == '(') {
+                if (parenTop == parenStack.length) {
+                    parenStack = Arrays.copyOf(parenStack, parenTop * 2);
+                }
+                parenStack[parenTop++] = i;
+                parenDepths[depth]++;
+            } else if (c == ')') {
+                if (parenDepths[depth] > 0) {
+                    parenDepths[depth]--;
+                    lastClosedParen = parenStack[--parenTop];
+                }
+            } else if (c == ';' && parenDepths[depth] == 0) {
+                if (contextKinds[depth] == TYPE_BODY) {
+                    if (enumConstants[depth]) {
+                        enumConstants[depth] = false;
+                        constantMethods.set(depth, holdBack(methods, constantMethodStarts[depth]));
+                    } else if (!annotationTypes[depth]) {
+                        ScannedMethod method = member(memberStarts[depth], i);
+                        if (method != null) {
+                            methods.add(method);
+                        }
+                    }
+                    memberStarts[depth] = i + 1;
+                }
+                localType = -1;
+            } else if (c == '{') {
+                int kind = BLOCK;
+                boolean enumBody = false;
+                boolean annotationBody = false;
+                boolean closesMember = false;
+                ScannedMethod owner = null;
+                if (contextKinds[depth] != TYPE_BODY || parenDepths[depth] > 0) {
+                    if (localType >= 0) {
+                        kind = TYPE_BODY;
+                        enumBody = isIdent(localType, "enum");
+                        annotationBody = isPunct(localType - 1, '@');
+                    } else if (isPunct(i - 1, ')') && isConstructorCall(lastClosedParen)) {
+                        kind = TYPE_BODY;
+                    }
+                } else if (enumConstants[depth]) {
+                    // Body of an enum constant.
+                    kind = TYPE_BODY;
+                } else {
+                    int start = memberStarts[depth];
+                    int typeKeyword = typeKeyword(start, i);
+                    if (typeKeyword >= 0) {
+                        kind = TYPE_BODY;
+                        enumBody = isIdent(typeKeyword, "enum");
+                        annotationBody = isPunct(typeKeyword - 1, '@');
+                        closesMember = true;
+                    } else if (hasTopLevel(start, i, '=')) {
+                        // Field initializer, code like a method body.
+                        if (isPunct(i - 1, ')') && isConstructorCall(lastClosedParen)) {
+                            kind = TYPE_BODY;
+                        }
+                    } else if (!annotationTypes[depth]) {
+                        // A method body, or an initializer block or compact record constructor.
+                        owner = member(start, i);
+                        kind = owner != null ? METHOD_BODY : BLOCK;
+                        closesMember = true;
+                    }
+                    // Otherwise an annotation element's default value, which goes on to its ';'.
+                }
+                depth++;
+                if (depth == contextKinds.length) {
+                    int grown = depth * 2;
+                    contextKinds = Arrays.copyOf(contextKinds, grown);
+                    memberStarts = Arrays.copyOf(memberStarts, grown);
+                    enumConstants = Arrays.copyOf(enumConstants, grown);
+                    annotationTypes = Arrays.copyOf(annotationTypes, grown);
+                    constantMethodStarts = Arrays.copyOf(constantMethodStarts, grown);
+                    constantMethods.addAll(Collections.<List<ScannedMethod>>nCopies(grown - depth, null));
+                    endsMember = Arrays.copyOf(endsMember, grown);
+                    bodyOwners = Arrays.copyOf(bodyOwners, grown);
+                    parenDepths = Arrays.copyOf(parenDepths, grown);
+                }
+                contextKinds[depth] = kind;
+                memberStarts[depth] = i + 1;
+                enumConstants[depth] = enumBody;
+                constantMethodStarts[depth] = methods.size();
+                constantMethods.set(depth, null);
+                annotationTypes[depth] = annotationBody;
+                endsMember[depth] = closesMember;
+                bodyOwners[depth] = owner;
+                parenDepths[depth] = 0;
+                if (owner != null) {
+                    // Added now so declarations nested in the body follow it, as in a pre-order walk.
+                    methods.add(owner);
+                }
+                localType = -1;
+            } else if (c == '}') {
+                if (depth == 0) {
+                    continue;
+                }
+                // Parentheses left open by broken input do not leak out of their context.
+                parenTop = Math.max(0, parenTop - parenDepths[depth]);
+                if (bodyOwners[depth] != null) {
+                    bodyOwners[depth].end = ends[i];
+                    bodyOwners[depth] = null;
+                }
+                if (enumConstants[depth]) {
+                    // An enum with constants only.
+                    constantMethods.set(depth, holdBack(methods, constantMethodStarts[depth]));
+                }
+                if (constantMethods.get(depth) != null) {
+                    methods.addAll(constantMethods.get(depth));
+                    constantMethods.set(depth, null);
+                }
+                boolean closesMember = endsMember[depth];
+                depth--;
+                if (closesMember) {
+                    memberStarts[depth] = i + 1;
+                }
+                localType = -1;
+            }
+        }
+    }
+
+    // Removes and returns the methods from start on.
+    private static List<ScannedMethod> holdBack(List<ScannedMethod> methods, int start) {
+        List<ScannedMethod> tail = methods.subList(start, methods.size());
+        List<ScannedMethod> heldBack = new ArrayList<>(tail);
+        tail.clear();
+        return heldBack;
+    }
+
+    // Whether the '(' at open follows 'new Type' (type arguments and annotations allowed).
+    private boolean isConstructorCall(int open) {
+        int j = open - 1;
+        int angle = 0;
+        while (j >= 0) {
+            if (isPunct(j, '>')) {
+                angle++;
+            } else if (isPunct(j, '<')) {
+                angle--;
+            } else if (angle > 0 || kinds[j] == IDENT && !isIdent(j, "new") || isPunct(j, '.')) {
+                // Part of the type name or its arguments.
+            } else {
+                return isIdent(j, "new");
+            }
+            j--;
+        }
+        return false;
+    }
+
+    private boolean isModifier(int token) {
+        for (String modifier : MODIFIERS) {
+            if (isIdent(token, modifier)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isTypeKeyword(int token) {
+        if (isPunct(token - 1, '.')) {
+            // Foo.class
+            return false;
+        }
+        if (isIdent(token, "class") || isIdent(token, "interface") || isIdent(token, "enum")) {
+            return true;
+        }
+        // 'record' is only a keyword in front of a name and its components or type parameters.
+        return isIdent(token, "record") && token + 2 < count && kinds[token + 1] == IDENT
+                && (isPunct(token + 2, '(') || isPunct(token + 2, '<'));
+    }
+
+    // The first class/interface/enum/record keyword of a member, outside annotation arguments, or -1.
+    private int typeKeyword(int start, int end) {
+        int j = start;
+        while (j < end) {
+            if (isPunct(j, '@') && !isIdent(j + 1, "interface")) {
+                j = skipAnnotation(j);
+                continue;
+            }
+            if (kinds[j] == IDENT && isTypeKeyword(j)) {
+                return j;
+            }
+            if (isPunct(j, '(') || isPunct(j, '=')) {
+                return -1;
+            }
+            j++;
+        }
+        return -1;
+    }
+
+    private boolean hasTopLevel(int start, int end, char c) {
+        int parens = 0;
+        int j = start;
+        while (j < end) {
+            if (parens == 0 && isPunct(j, '@') && !isIdent(j + 1, "interface")) {
+                j = skipAnnotation(j);
+                continue;
+            }
+            if (isPunct(j, '(')) {
+                parens++;
+            } else if (isPunct(j, ')')) {
+                parens--;
+            } else if (parens == 0 && isPunct(j, c)) {
+                return true;
+            }
+            j++;
+        }
+        return false;
+    }
+
+    // Index just past the annotation starting with the '@' at at: its name and its parenthesized arguments.
+    private int skipAnnotation(int at) {
+        int j = annotationNameEnd(at);
+        if (isPunct(j, '(')) {
+            int nesting = 0;
+            while (j < count) {
+                if (isPunct(j, '(')) {
+                    nesting++;
+                } else if (isPunct(j, ')')) {
+                    nesting--;
+                    if (nesting == 0) {
+                        return j + 1;
+                    }
+                }
+                j++;
+            }
+        }
+        return j;
+    }
+
+    // The method declared by the member tokens [start, end), or null if it is a field, constructor or something
+    // else. end is the token of its body brace or terminating ';'.
+    private ScannedMethod member(int start, int end) {
+        List<String> annotations = new ArrayList<>();
+        int j = start;
+        while (j < end) {
+            if (isPunct(j, '@') && !isIdent(j + 1, "interface")) {
+                annotations.add(annotationName(j));
+                j = skipAnnotation(j);
+            } else if (isModifier(j)) {
+                j++;
+            } else {
+                break;
+            }
+        }
+        if (j >= end) {
+            return null;
+        }
+        // Type parameters of a generic method.
+        if (isPunct(j, '<')) {
+            j = skipTypeArguments(j);
+            // Annotations may also sit between type parameters and the return type.
+            while (j < end && isPunct(j, '@')) {
+                annotations.add(annotationName(j));
+                j = skipAnnotation(j);
+            }
+        }
+        int typeStart = j;
+        // The name is the identifier right before the first '(' outside annotations.
+        int open = -1;
+        while (j < end) {
+            if (isPunct(j, '@')) {
+                j = skipAnnotation(j);
+                continue;
+            }
+            if (isPunct(j, '(')) {
+                open = j;
+                break;
+            }
+            if (isPunct(j, '=')) {
+                return null;
+            }
+            j++;
+        }
+        if (open < 0 || open - 1 < typeStart || kinds[open - 1] != IDENT) {
+            return null;
+        }
+        if (open - 1 == typeStart) {
+            // No return type: a constructor (or, if it had type parameters, a generic one).
+            return null;
+        }
+        int nameToken = open - 1;
+        int close = -1;
+        int nesting = 0;
+        for (int k = open; k < end; k++) {
+            if (isPunct(k, '(')) {
+                nesting++;
+            } else if (isPunct(k, ')')) {
+                nesting--;
+                if (nesting == 0) {
+                    close = k;
+                    break;
+                }
+            }
+        }
+        if (close < 0) {
+            return null;
+        }
+        ScannedMethod method = new ScannedMethod();
+        method.name = text(nameToken);
+        method.annotations = annotations.isEmpty() ? Collections.<String>emptyList() : annotations;
+        method.parameterTypes = parameterTypes(open, close);
+        method.begin = starts[start];
+        method.end = ends[end];
+        return method;
+    }
+
+    // Simple name of the annotation at at, e.g. "Test" for @org.junit.Test.
+    private String annotationName(int at) {
+        int end = annotationNameEnd(at);
+        return end > at + 1 ? text(end - 1) : "";
+    }
+
+    // Index just past the dotted name of the annotation at at.
+    private int annotationNameEnd(int at) {
+        int j = at + 1;
+        if (j >= count || kinds[j] != IDENT) {
+            return j;
+        }
+        j++;
+        while (isPunct(j, '.') && j + 1 < count && kinds[j + 1] == IDENT) {
+            j += 2;
+        }
+        return j;
+    }
+
+    private int skipTypeArguments(int open) {
+        int nesting = 0;
+        int j = open;
+        while (j < count) {
+            if (isPunct(j, '<')) {
+                nesting++;
+            } else if (isPunct(j, '>')) {
+                nesting--;
+                if (nesting == 0) {
+                    return j + 1;
+                }
+            } else if (isPunct(j, '{') || isPunct(j, ';')) {
+                return j;
+            }
+            j++;
+        }
+        return j;
+    }
+
+    // Parameter types as getSignature() renders them: annotations dropped, the type arguments of a plain class
+    // type dropped but those of an array's component kept, varargs and dimensions after the name turned into [].
+    private List<String> parameterTypes(int open, int close) {
+        List<String> types = new ArrayList<>();
+        int parameterStart = open + 1;
+        int angle = 0;
+        for (int j = open + 1; j <= close; j++) {
+            if (j == close || angle == 0 && isPunct(j, ',')) {
+                String type = parameterType(parameterStart, j);
+                if (type != null) {
+                    types.add(type);
+                }
+                parameterStart = j + 1;
+            } else if (isPunct(j, '@')) {
+                j = skipAnnotation(j) - 1;
+            } else if (isPunct(j, '<')) {
+                angle++;
+            } else if (isPunct(j, '>')) {
+                angle--;
+            }
+        }
+        return types;
+    }
+
+    // Type of the parameter declared by tokens [start, end), null for a receiver parameter or an empty list.
+    private String parameterType(int start, int end) {
+        // The name is the last identifier outside type arguments, possibly followed by dimensions.
+        int name = -1;
+        int angle = 0;
+        for (int j = start; j < end; j++) {
+            if (isPunct(j, '@')) {
+                j = skipAnnotation(j) - 1;
+            } else if (isPunct(j, '<')) {
+                angle++;
+            } else if (isPunct(j, '>')) {
+                angle--;
+            } else if (angle == 0 && kinds[j] == IDENT) {
+                name = j;
+            }
+        }
+        if (name < 0 || isIdent(name, "this")) {
+            return null;
+        }
+        StringBuilder type = new StringBuilder();
+        boolean array = false;
+        angle = 0;
+        for (int j = start; j < end; j++) {
+            if (j == name) {
+                continue;
+            }
+            if (isPunct(j, '@')) {
+                j = skipAnnotation(j) - 1;
+            } else if (kinds[j] == IDENT) {
+                if (isIdent(j, "final") && type.length() == 0) {
+                    continue;
+                }
+                if (isIdent(j, "extends") || isIdent(j, "super")) {
+                    type.append(' ').append(text(j)).append(' ');
+                } else {
+                    type.append(text(j));
+                }
+            } else if (ends[j] - starts[j] == 3 && source[starts[j]] == '.') {
+                // Varargs.
+                type.append("[]");
+                array = true;
+            } else {
+                if (isPunct(j, '<')) {
+                    angle++;
+                } else if (isPunct(j, '>')) {
+                    angle--;
+                } else if (angle == 0 && isPunct(j, '[')) {
+                    array = true;
+                }
+                type.append((char) source[starts[j]]);
+            }
+        }
+        if (!array && type.length() > 0 && type.charAt(type.length() - 1) == '>') {
+            // Erase the type arguments of the last name.
+            int nesting = 0;
+            for (int k = type.length() - 1; k >= 0; k--) {
+                char ch = type.charAt(k);
+                if (ch == '>') {
+                    nesting++;
+                } else if (ch == '<' && --nesting == 0) {
+                    type.setLength(k);
+                    break;
+                }
+            }
+        }
+        return type.toString();
+    }
+
+    public static class ScannedMethod {
+        private String name;
+        private List<String> parameterTypes;
+        private List<String> annotations;
+        // Byte range of the declaration, from its first annotation or modifier to the closing brace or ';'.
+        private int begin;
+        private int end;
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getParameterTypes() {
+            return parameterTypes;
+        }
+
+        // Same form as JavaParser's getSignature().asString(), e.g. "put(String, Object[])".
+        public String getSignature() {
+            StringBuilder signature = new StringBuilder(name).append('(');
+            for (int k = 0; k < parameterTypes.size(); k++) {
+                if (k > 0) {
+                    signature.append(", ");
+                }
+                signature.append(parameterTypes.get(k));
+            }
+            return signature.append(')').toString();
+        }
+
+        // Simple names, as matched by getAnnotationByName.
+        public List<String> getAnnotations() {
+            return annotations;
+        }
+
+        public boolean hasAnnotation(String simpleName) {
+            return annotations.contains(simpleName);
+        }
+
+        public int getBegin() {
+            return begin;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        // The declaration as written in the source.
+        public String getDeclaration(byte[] content) {
+            return new String(content, begin, end - begin, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return getSignature();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.githubanalytics.sourcecode_parsers;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.AnnotationExpr;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs MethodBoundaryScanner and JavaParser over every .java file of a reference corpus and compares the
+// methods they find: name, signature, annotations, and first and last line of the declaration. Files JavaParser
+// cannot parse are skipped, the scanner has nothing to be checked against there. Prints every difference (up to
+// a limit), the totals, and the time each engine took. JavaParser runs at its default language level, the one
+// RepoParser uses, unless --language-level= asks for another (e.g. JAVA_17 for records and text blocks).
+public class MethodBoundaryScannerValidator {
+    private static final int MAX_REPORTED = 50;
+
+    private final JavaParser javaParser;
+    private final MethodBoundaryScanner scanner = new MethodBoundaryScanner();
+
+    private int filesCompared;
+    private int filesSkipped;
+    private int filesDiffering;
+    private long methodsJavaParser;
+    private long methodsScanner;
+    private long javaParserNanos;
+    private long scannerNanos;
+    private final List<String> differences = new ArrayList<>();
+
+    public MethodBoundaryScannerValidator() {
+        this(new ParserConfiguration());
+    }
+
+    public MethodBoundaryScannerValidator(ParserConfiguration configuration) {
+        this.javaParser = new JavaParser(configuration);
+    }
+
+    public boolean validate(Path corpus) throws IOException {
+        List<Path> javaFiles;
+        try (Stream<Path> paths = Files.walk(corpus)) {
+            javaFiles = paths.filter(path -> path.toString().endsWith(".java")).sorted().collect(Collectors.toList());
+        }
+        for (Path javaFile : javaFiles) {
+            compare(javaFile, Files.readAllBytes(javaFile));
+        }
+        return filesDiffering == 0;
+    }
+
+    private void compare(Path javaFile, byte[] content) {
+        long start = System.nanoTime();
+        ParseResult<CompilationUnit> parseResult = javaParser.parse(new String(content, StandardCharsets.UTF_8));
+        List<String> expected = new ArrayList<>();
+        if (parseResult.isSuccessful()) {
+            for (MethodDeclaration method : parseResult.getResult().get().findAll(MethodDeclaration.class)) {
+                List<String> annotations = new ArrayList<>();
+                for (AnnotationExpr annotation : method.getAnnotations()) {
+                    annotations.add(annotation.getName().getIdentifier());
+                }
+                expected.add(describe(method.getSignature().asString(), annotations,
+                        method.getBegin().get().line, method.getEnd().get().line));
+            }
+        }
+        javaParserNanos += System.nanoTime() - start;
+        if (!parseResult.isSuccessful()) {
+            filesSkipped++;
+            return;
+        }
+
+        start = System.nanoTime();
+        List<MethodBoundaryScanner.ScannedMethod> scanned = scanner.scan(content);
+        scannerNanos += System.nanoTime() - start;
+        int[] lineStarts = lineStarts(content);
+        List<String> actual = new ArrayList<>();
+        for (MethodBoundaryScanner.ScannedMethod method : scanned) {
+            actual.add(describe(method.getSignature(), method.getAnnotations(),
+                    lineOf(lineStarts, method.getBegin()), lineOf(lineStarts, method.getEnd() - 1)));
+        }
+
+        filesCompared++;
+        methodsJavaParser += expected.size();
+        methodsScanner += actual.size();
+        if (!expected.equals(actual)) {
+            filesDiffering++;
+            if (differences.size() < MAX_REPORTED) {
+                differences.add(javaFile + "\n    javaparser: " + expected + "\n    scanner:    " + actual);
+            }
+        }
+    }
+
+    private static String describe(String signature, List<String> annotations, int beginLine, int endLine) {
+        return annotations + " " + signature + " @" + beginLine + "-" + endLine;
+    }
+
+    // Offsets at which lines start, counted the way JavaParser does: \n, \r\n and a lone \r each end one.
+    private static int[] lineStarts(byte[] content) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n' || content[i] == '\r' && (i + 1 >= content.length || content[i + 1] != '\n')) {
+                starts.add(i + 1);
+            }
+        }
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int lineOf(int[] lineStarts, int offset) {
+        int index = Arrays.binarySearch(lineStarts, offset);
+        return (index >= 0 ? index : -index - 2) + 1;
+    }
+
+    public void printReport() {
+        for (String difference : differences) {
+            System.out.println(difference);
+        }
+        System.out.println("Files compared: " + filesCompared + ", differing: " + filesDiffering
+                + ", skipped (JavaParser failed): " + filesSkipped);
+        System.out.println("Methods found by JavaParser: " + methodsJavaParser + ", by the scanner: " + methodsScanner);
+        System.out.println("JavaParser: " + javaParserNanos / 1_000_000 + " ms, scanner: " + scannerNanos / 1_000_000 + " ms");
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path corpus = Paths.get("../Repos/gson");
+        ParserConfiguration configuration = new ParserConfiguration();
+        for (String arg : args) {
+            if (arg.startsWith("--language-level=")) {
+                configuration.setLanguageLevel(ParserConfiguration.LanguageLevel.valueOf(arg.substring("--language-level=".length())));
+            } else {
+                corpus = Paths.get(arg);
+            }
+        }
+        MethodBoundaryScannerValidator validator = new MethodBoundaryScannerValidator(configuration);
+        boolean identical = validator.validate(corpus);
+        validator.printReport();
+        if (!identical) {
+            System.exit(1);
+        }
+    }
+}
@@ -1,32 +1,91 @@
 package com.githubanalytics.sourcecode_parsers;
 
 import com.github.javaparser.JavaParser;
+import com.github.javaparser.ParseResult;
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.DataKey;
 import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.Expression;
 import com.github.javaparser.ast.expr.MethodCallExpr;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.github.javaparser.ast.expr.Name;
+import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+import com.githubanalytics.output.JsonStreamWriter;
+import com.githubanalytics.pipeline.FileContent;
+import com.githubanalytics.pipeline.StagedPipeline;
+import com.githubanalytics.source.SourcePositions;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public class RepoCodeTestRetriever {
+    // The bytes a compilation unit was parsed from, methodCode is sliced out of them.
+    private static final DataKey<byte[]> CONTENT = new DataKey<byte[]>() {
+    };
+    // How long the parse took, so the file's time can be recorded once its tests are located.
+    private static final DataKey<Long> PARSE_NANOS = new DataKey<Long>() {
+    };
+
+    private static final Counter TEST_FILES = Metrics.counter("analyzer_files_total", "Files (classes for bytecode) processed.", "component", "tests");
+    private static final Counter TEST_METHODS = Metrics.counter("analyzer_methods_total", "Method records extracted.", "component", "tests");
+    private static final Counter PARSE_ERRORS = Metrics.counter("analyzer_file_errors_total", "Files that could not be read or parsed.", "component", "tests");
 
     private final Path repoPath;
+    // Only files that can hold @Test methods are worth a parse.
+    private final TestFilePrefilter prefilter = new TestFilePrefilter();
+    private boolean prettyPrintMethods;
+    private boolean crossFileResolution = true;
+    // Methods of the whole repository by name, for calls a test file does not declare itself. Built per save.
+    private RepoMethodIndex repoIndex;
+    // Threads of the read, parse and extract stages, and files between the walk and the output at most.
+    private int readers = 1;
+    private int parsers = 1;
+    private int extractors = 1;
+    private int queueCapacity = 16;
 
     public RepoCodeTestRetriever(String repoPathString) {
         this.repoPath = Paths.get(repoPathString);
     }
 
+    public TestFilePrefilter getPrefilter() {
+        return prefilter;
+    }
+
+    // Whether calls to methods the test file does not declare are looked up in the rest of the repository.
+    public void setCrossFileResolution(boolean crossFileResolution) {
+        this.crossFileResolution = crossFileResolution;
+    }
+
+    // methodCode as JavaParser prints it, instead of as written in the file.
+    public void setPrettyPrintMethods(boolean prettyPrintMethods) {
+        this.prettyPrintMethods = prettyPrintMethods;
+    }
+
+    public void setParallelism(int readers, int parsers, int extractors) {
+        this.readers = Math.max(1, readers);
+        this.parsers = Math.max(1, parsers);
+        this.extractors = Math.max(1, extractors);
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
     private boolean isValidTest(MethodDeclaration method) {
         return method.getAnnotationByName("Test").isPresent()
                 && !method.getNameAsString().matches("test\\d+")
@@ -34,72 +93,143 @@ public class RepoCodeTestRetriever {
                 && method.getType().asString().equals("void");
     }
 
-    private Set<MethodDeclaration> locateMethodsUnderTest(MethodDeclaration testMethod, List<MethodDeclaration> allMethods) {
-
-//        System.out.println(testMethod);
-//        System.out.println(allMethods);
+    // Declarations of a compilation unit by name, built once per file and shared by all its tests. Each name's list
+    // holds structurally equal declarations once, as the per-test lookups used to.
+    private static Map<String, List<MethodDeclaration>> indexDeclarations(List<MethodDeclaration> allMethods) {
+        Map<String, Set<MethodDeclaration>> byName = new HashMap<>();
+        for (MethodDeclaration md : allMethods) {
+            byName.computeIfAbsent(md.getNameAsString(), k -> new LinkedHashSet<>()).add(md);
+        }
+        Map<String, List<MethodDeclaration>> methodMap = new HashMap<>();
+        byName.forEach((name, declarations) -> methodMap.put(name, new ArrayList<>(declarations)));
+        return methodMap;
+    }
 
+    // Names of the methods called in the test's body, in the order they are first reached: each statement of the
+    // body breadth-first.
+    private static Set<String> calledMethodNames(MethodDeclaration testMethod) {
+        Set<String> calledNames = new LinkedHashSet<>();
+        testMethod.getBody().ifPresent(body -> {
+            Deque<Node> nodes = new ArrayDeque<>();
+            for (Node childNode : body.getChildNodes()) {
+                nodes.add(childNode);
+                while (!nodes.isEmpty()) {
+                    Node currentNode = nodes.poll();
+                    if (currentNode instanceof MethodCallExpr) {
+                        calledNames.add(((MethodCallExpr) currentNode).getNameAsString());
+                    }
+                    nodes.addAll(currentNode.getChildNodes());
+                }
+            }
+        });
+        return calledNames;
+    }
 
-        List<MethodDeclaration> orderedMethods = new ArrayList<>();
+    // Simple names of the types a compilation unit mentions: type references, imports, and names used as the
+    // scope of a call (static calls such as Foo.bar()).
+    private static Set<String> referencedTypeNames(CompilationUnit compilationUnit) {
+        Set<String> typeNames = new HashSet<>();
+        compilationUnit.findAll(ClassOrInterfaceType.class).forEach(type -> typeNames.add(type.getNameAsString()));
+        compilationUnit.getImports().forEach(importDeclaration -> {
+            if (!importDeclaration.isAsterisk()) {
+                typeNames.add(importDeclaration.isStatic()
+                        ? importDeclaration.getName().getQualifier().map(Name::getIdentifier).orElse("")
+                        : importDeclaration.getName().getIdentifier());
+            }
+        });
+        compilationUnit.findAll(MethodCallExpr.class).forEach(call -> call.getScope()
+                .filter(Expression::isNameExpr)
+                .ifPresent(scope -> typeNames.add(scope.asNameExpr().getNameAsString())));
+        return typeNames;
+    }
 
-        Map<String, List<MethodDeclaration>> methodMap = new HashMap<>();
-        for (MethodDeclaration md : allMethods) {
-            methodMap
-                    .computeIfAbsent(md.getNameAsString(), k -> new ArrayList<>())
-                    .add(md);
+    // Methods called by the test: declared in the same file, or, for names the file does not declare, in other files
+    // of the repository whose type the file refers to. positions is null when methods are pretty-printed.
+    private JsonArray locateMethodsUnderTest(Set<String> calledNames, Map<String, List<MethodDeclaration>> methodMap,
+                                             Set<String> referencedTypes, Path path, SourcePositions positions) {
+        JsonArray methodsArray = new JsonArray();
+        for (String methodName : calledNames) {
+            List<MethodDeclaration> declarations = methodMap.get(methodName);
+            if (declarations != null) {
+                for (MethodDeclaration md : declarations) {
+                    JsonObject methodObject = new JsonObject();
+                    methodObject.addProperty("methodName", md.getNameAsString());
+                    methodObject.addProperty("methodCode", positions == null ? md.toString() : positions.text(md.getRange().get()));
+                    methodsArray.add(methodObject);
+                }
+            } else if (repoIndex != null) {
+                for (RepoMethodIndex.IndexedMethod indexed : repoIndex.find(methodName, referencedTypes, path)) {
+                    JsonObject methodObject = new JsonObject();
+                    methodObject.addProperty("methodName", indexed.getName());
+                    methodObject.addProperty("methodCode", positions == null
+                            ? prettyPrint(indexed.getSourceCode())
+                            : indexed.getSourceCode());
+                    methodObject.addProperty("declaringFile", repoIndex.relativize(indexed.getFile()).toString());
+                    methodsArray.add(methodObject);
+                }
+            }
         }
+        return methodsArray;
+    }
 
-        testMethod
-                .getBody()
-                .ifPresent(body -> {
-                    // Traverse all child nodes of the body, not just direct method calls
-                    for (Node childNode : body.getChildNodes()) {
-                        Queue<Node> nodes = new LinkedList<>();
-                        nodes.add(childNode);
-
-                        while (!nodes.isEmpty()) {
-                            Node currentNode = nodes.poll();
-                            if (currentNode instanceof MethodCallExpr) {
-                                MethodCallExpr methodCall = (MethodCallExpr) currentNode;
-                                String methodName = methodCall.getNameAsString();
-
-                                if (methodMap.containsKey(methodName)) {
-                                    for (MethodDeclaration methodDecl : methodMap.get(methodName)) {
-                                        if (!orderedMethods.contains(methodDecl)) {
-                                            orderedMethods.add(methodDecl);
-                                        }
-                                    }
-                                }
-                            }
-                            // Add all child nodes of the current node to the queue
-                            nodes.addAll(currentNode.getChildNodes());
-                        }
-                    }
-                });
+    private String prettyPrint(String methodDeclaration) {
+        return new JavaParser().parseMethodDeclaration(methodDeclaration).getResult()
+                .map(MethodDeclaration::toString)
+                .orElse(methodDeclaration);
+    }
+
+    void buildRepositoryIndex() throws IOException {
+        // Read and scanned with as many threads as the test files are read and parsed with.
+        repoIndex = crossFileResolution ? RepoMethodIndex.build(repoPath, readers, parsers, queueCapacity) : null;
+    }
 
-        return new LinkedHashSet<>(orderedMethods);
+    // The Java files of the repository as a pipeline: walk, read (files without tests are dropped here) and parse,
+    // each stage with its own threads, and no more than queueCapacity files in flight. Results come out in walk order.
+    private StagedPipeline<CompilationUnit> parsedTestFiles() {
+        return StagedPipeline.<Path>from("test-retriever", this::walkJavaFiles, queueCapacity)
+                .then("read", readers, this::readTestFile)
+                .then("parse", parsers, this::parseCompilationUnit);
     }
 
-    private void processFilesInRepository(FileProcessor processor) throws IOException {
+    private void walkJavaFiles(Consumer<Path> emit) throws IOException {
         try (Stream<Path> paths = Files.walk(repoPath)) {
             paths.filter(Files::isRegularFile)
                     .filter(path -> path.toString().endsWith(".java"))
-                    .forEach(path -> {
-                        try {
-                            processor.process(path);
-                        } catch (Exception e) {
-                            System.err.println("Error processing file: " + path);
-                            e.printStackTrace();
-                            // Continue with the next file
-                        }
-                    });
+                    .forEach(emit);
+        }
+    }
+
+    private FileContent readTestFile(Path path) throws IOException {
+        try {
+            byte[] content = prefilter.readIfMayContainTests(path);
+            return content == null ? null : new FileContent(path, content);
+        } catch (IOException e) {
+            PARSE_ERRORS.increment();
+            throw e;
         }
     }
 
-    private CompilationUnit parseCompilationUnit(Path path) {
+    CompilationUnit parseCompilationUnit(Path path) throws IOException {
+        FileContent file = readTestFile(path);
+        return file == null ? null : parseCompilationUnit(file);
+    }
+
+    private CompilationUnit parseCompilationUnit(FileContent file) {
+        Path path = file.getPath();
+        byte[] content = file.getContent();
         try {
-            return new JavaParser().parse(path).getResult().orElse(null);
+            TEST_FILES.increment();
+            StageTimer parseTimer = Stage.TESTS_PARSE.start();
+            ParseResult<CompilationUnit> parseResult = new JavaParser().parse(new String(content, StandardCharsets.UTF_8));
+            long parseNanos = parseTimer.stop();
+            parseResult.getResult().ifPresent(cu -> {
+                cu.setStorage(path);
+                cu.setData(CONTENT, content);
+                cu.setData(PARSE_NANOS, parseNanos);
+            });
+            return parseResult.getResult().orElse(null);
         } catch (Exception | StackOverflowError e) {  // Catching StackOverflowError is generally not recommended
+            PARSE_ERRORS.increment();
             System.err.println("Error or StackOverflowError parsing file: " + path);
             e.printStackTrace();
             return null;
@@ -108,45 +238,60 @@ public class RepoCodeTestRetriever {
 
     public int countValidTestMethods() throws IOException {
         AtomicInteger count = new AtomicInteger();
-        processFilesInRepository(path -> {
-            CompilationUnit cu = parseCompilationUnit(path);
-            if (cu != null) {
-                cu.findAll(MethodDeclaration.class).stream()
-                        .filter(this::isValidTest)
-                        .forEach(method -> count.getAndIncrement());
-            }
-        });
+        try {
+            parsedTestFiles().forEachOrdered(cu -> cu.findAll(MethodDeclaration.class).stream()
+                    .filter(this::isValidTest)
+                    .forEach(method -> count.getAndIncrement()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         return count.get();
     }
 
     public void saveTestMethodsToJSON(Path outputPath) throws IOException {
-        JsonObject rootObject = new JsonObject();
-        JsonArray filesArray = new JsonArray();
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        rootObject.addProperty("repositoryPath", repoPath.toString());
-
-        processFilesInRepository(path -> {
-            CompilationUnit cu = parseCompilationUnit(path);
-            if (cu != null) {
-                JsonObject fileDetails = createFileTestDetails(cu, path);
-                if (fileDetails != null) {
-                    filesArray.add(fileDetails);
-                }
-            }
-        });
+        saveTestMethodsToJSON(outputPath, true);
+    }
 
-        rootObject.add("files", filesArray);
+    // Each file's entry is written as soon as the file is processed, nothing else is kept in memory.
+    public void saveTestMethodsToJSON(Path outputPath, boolean prettyPrint) throws IOException {
+        buildRepositoryIndex();
+        try (JsonStreamWriter writer = JsonStreamWriter.document(outputPath, prettyPrint)) {
+            JsonWriter jsonWriter = writer.getJsonWriter();
+            jsonWriter.beginObject();
+            jsonWriter.name("repositoryPath").value(repoPath.toString());
+            jsonWriter.name("files").beginArray();
 
-        try (FileWriter file = new FileWriter(outputPath.toFile())) {
-            file.write(gson.toJson(rootObject));
-            System.out.println("Successfully saved test methods to " + outputPath);
+            // Locating the methods under test is a stage of its own, the writer only writes.
+            parsedTestFiles()
+                    .then("extract", extractors, cu -> createFileTestDetails(cu, cu.getStorage().get().getPath()))
+                    .forEachOrdered(writer::writeUnchecked);
+
+            jsonWriter.endArray();
+            jsonWriter.endObject();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving test methods to " + outputPath, e);
+        }
+        System.out.println("Successfully saved test methods to " + outputPath);
+        prefilter.printStatistics();
+        if (repoIndex != null) {
+            System.out.println("Repository index: " + repoIndex.getMethodCount() + " methods in " + repoIndex.getFileCount() + " files");
+            repoIndex = null;
         }
     }
 
-    private JsonObject createFileTestDetails(CompilationUnit compilationUnit, Path path) {
+    JsonObject createFileTestDetails(CompilationUnit compilationUnit, Path path) {
+        StageTimer timer = Stage.TESTS_LOCATE.start();
         JsonObject fileObject = new JsonObject();
         JsonArray testMethodsArray = new JsonArray();
         fileObject.addProperty("fileName", path.getFileName().toString());
+        SourcePositions positions = prettyPrintMethods ? null : new SourcePositions(compilationUnit.getData(CONTENT));
+
+        // Built once for the whole file, not once per test.
+        Map<String, List<MethodDeclaration>> methodMap = indexDeclarations(compilationUnit.findAll(MethodDeclaration.class));
+        Set<String> referencedTypes = repoIndex != null ? referencedTypeNames(compilationUnit) : Collections.emptySet();
 
         compilationUnit
                 .findAll(MethodDeclaration.class, Node.TreeTraversal.BREADTHFIRST)
@@ -155,13 +300,8 @@ public class RepoCodeTestRetriever {
                         JsonObject testMethodObject = new JsonObject();
                         testMethodObject.addProperty("testMethodName", method.getNameAsString());
 
-                        Set<MethodDeclaration> methodsUnderTest = locateMethodsUnderTest(
-                                method,
-                                compilationUnit
-                                        .findAll(MethodDeclaration.class)
-                        );
-
-                        JsonArray methodsUnderTestArray = createMethodsUnderTestArray(methodsUnderTest);
+                        JsonArray methodsUnderTestArray = locateMethodsUnderTest(
+                                calledMethodNames(method), methodMap, referencedTypes, path, positions);
 
                         if (!methodsUnderTestArray.isEmpty()) {
                             testMethodObject.add("methodsUnderTest", methodsUnderTestArray);
@@ -171,6 +311,11 @@ public class RepoCodeTestRetriever {
                         testMethodsArray.add(testMethodObject);
                     }
                 });
+        long locateNanos = timer.stop();
+        TEST_METHODS.add(testMethodsArray.size());
+        if (compilationUnit.containsData(PARSE_NANOS)) {
+            Stage.TESTS_FILE.record(compilationUnit.getData(PARSE_NANOS) + locateNanos, path.toString());
+        }
 
         if (!testMethodsArray.isEmpty()) {
             fileObject.add("testMethods", testMethodsArray);
@@ -178,20 +323,4 @@ public class RepoCodeTestRetriever {
         }
         return null;
     }
-
-    private JsonArray createMethodsUnderTestArray(Set<MethodDeclaration> methodsUnderTest) {
-        JsonArray methodsArray = new JsonArray();
-        methodsUnderTest.forEach(md -> {
-            JsonObject methodObject = new JsonObject();
-            methodObject.addProperty("methodName", md.getNameAsString());
-            methodObject.addProperty("methodCode", md.toString());
-            methodsArray.add(methodObject);
-        });
-        return methodsArray;
-    }
-
-    @FunctionalInterface
-    private interface FileProcessor {
-        void process(Path path);
-    }
 }
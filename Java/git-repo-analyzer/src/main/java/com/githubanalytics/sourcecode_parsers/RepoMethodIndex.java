@@ -0,0 +1,175 @@
+package com.githubanalytics.sourcecode_parsers;
+
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.pipeline.FileContent;
+import com.githubanalytics.pipeline.StagedPipeline;
+import com.githubanalytics.source.SourceFileTable;
+import com.githubanalytics.source.SourceSlice;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Every method declared in a repository, by name, found with MethodBoundaryScanner instead of full parses.
+// Methods are attributed to the primary type of their file (the file name), which is what lookups filter on.
+//
+// Files are read and scanned on the stages of a StagedPipeline and added in walk order, so the index is the same
+// whatever the parallelism. A file that cannot be read is reported, counted and left out.
+public class RepoMethodIndex {
+    private static final Counter INDEX_ERRORS = Metrics.counter("analyzer_file_errors_total", "Files that could not be read or parsed.", "component", "method_index");
+
+    private final Path repoPath;
+    private final SourceFileTable sourceFiles = new SourceFileTable();
+    private final Map<String, List<IndexedMethod>> methodsByName = new HashMap<>();
+    private int fileCount;
+    private int methodCount;
+
+    private RepoMethodIndex(Path repoPath) {
+        this.repoPath = repoPath;
+    }
+
+    public static RepoMethodIndex build(Path repoPath) throws IOException {
+        return build(repoPath, 1, 1, 16);
+    }
+
+    // readers threads read the files, scanners threads find their methods, queueCapacity files are in flight.
+    public static RepoMethodIndex build(Path repoPath, int readers, int scanners, int queueCapacity) throws IOException {
+        RepoMethodIndex index = new RepoMethodIndex(repoPath);
+        // The scanner reuses its buffers, one per thread.
+        ThreadLocal<MethodBoundaryScanner> scanner = ThreadLocal.withInitial(MethodBoundaryScanner::new);
+        try {
+            StagedPipeline.<Path>from("method-index", emit -> walkJavaFiles(repoPath, emit), queueCapacity)
+                    .then("read", readers, RepoMethodIndex::readFile)
+                    .then("scan", scanners, file -> new ScannedFile(file, scanner.get().scan(file.getContent())))
+                    .forEachOrdered(index::add);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing " + repoPath, e);
+        }
+        return index;
+    }
+
+    private static void walkJavaFiles(Path repoPath, Consumer<Path> emit) throws IOException {
+        Files.walkFileTree(repoPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.toString().endsWith(".java")) {
+                    emit.accept(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // An unreadable directory or a broken link, the rest of the repository is still indexed.
+                System.err.println("Skipping " + file + " in the method index: " + e);
+                INDEX_ERRORS.increment();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static FileContent readFile(Path path) {
+        try {
+            return new FileContent(path, Files.readAllBytes(path));
+        } catch (IOException e) {
+            System.err.println("Skipping " + path + " in the method index: " + e);
+            INDEX_ERRORS.increment();
+            return null;
+        }
+    }
+
+    private void add(ScannedFile scanned) {
+        Path javaFile = scanned.file.getPath();
+        int fileId = sourceFiles.register(javaFile, scanned.file.getContent().length);
+        String fileName = javaFile.getFileName().toString();
+        String typeName = fileName.substring(0, fileName.length() - ".java".length());
+        for (MethodBoundaryScanner.ScannedMethod method : scanned.methods) {
+            SourceSlice source = new SourceSlice(sourceFiles, fileId, method.getBegin(), method.getEnd());
+            methodsByName
+                    .computeIfAbsent(method.getName(), name -> new ArrayList<>())
+                    .add(new IndexedMethod(method.getName(), typeName, javaFile, source));
+            methodCount++;
+        }
+        fileCount++;
+    }
+
+    private static class ScannedFile {
+        private final FileContent file;
+        private final List<MethodBoundaryScanner.ScannedMethod> methods;
+
+        ScannedFile(FileContent file, List<MethodBoundaryScanner.ScannedMethod> methods) {
+            this.file = file;
+            this.methods = methods;
+        }
+    }
+
+    // Methods with the name declared in files whose primary type is one of types, except those in excludedFile.
+    public List<IndexedMethod> find(String methodName, Collection<String> types, Path excludedFile) {
+        List<IndexedMethod> candidates = methodsByName.get(methodName);
+        if (candidates == null) {
+            return Collections.emptyList();
+        }
+        List<IndexedMethod> found = new ArrayList<>();
+        for (IndexedMethod candidate : candidates) {
+            if (types.contains(candidate.typeName) && !candidate.file.equals(excludedFile)) {
+                found.add(candidate);
+            }
+        }
+        return found;
+    }
+
+    public Path relativize(Path file) {
+        return repoPath.relativize(file);
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    public static class IndexedMethod {
+        private final String name;
+        private final String typeName;
+        private final Path file;
+        private final SourceSlice source;
+
+        IndexedMethod(String name, String typeName, Path file, SourceSlice source) {
+            this.name = name;
+            this.typeName = typeName;
+            this.file = file;
+            this.source = source;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getTypeName() {
+            return typeName;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        // The declaration as written in the file.
+        public String getSourceCode() {
+            return source.text();
+        }
+    }
+}
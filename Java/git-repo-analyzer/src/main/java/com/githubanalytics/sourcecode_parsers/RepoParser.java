@@ -1,9 +1,9 @@
 package com.githubanalytics.sourcecode_parsers;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -15,99 +15,213 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
 import com.github.javaparser.JavaParser;
 import com.github.javaparser.ParseResult;
 import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.body.MethodDeclaration;
 
+import com.githubanalytics.cache.ExtractionCache;
+import com.githubanalytics.cache.MemoryBoundedCache;
+import com.githubanalytics.metrics.Counter;
+import com.githubanalytics.metrics.Metrics;
+import com.githubanalytics.metrics.Stage;
+import com.githubanalytics.metrics.StageTimer;
+import com.githubanalytics.output.JsonStreamWriter;
+import com.githubanalytics.source.SourcePositions;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
 
 
 public class RepoParser {
+    // Both engines give method_declaration as written in the file, see setPrettyPrintDeclarations for printed code.
+    public enum Engine {
+        // Full JavaParser AST.
+        JAVAPARSER("default-parser"),
+        // MethodBoundaryScanner, no AST.
+        SCANNER("boundary-scanner");
+
+        private final String cacheName;
+
+        Engine(String cacheName) {
+            this.cacheName = cacheName;
+        }
+    }
+
+    private static final String CACHE_CONFIGURATION = "repo-parser-v2|%s|@Test|pretty=%b";
+    private static final Counter FILES = Metrics.counter("analyzer_files_total", "Files (classes for bytecode) processed.", "component", "repo_parser");
+    private static final Type FILE_METHODS_TYPE = new TypeToken<Map<String, Map<String, String>>>() {}.getType();
+    // A quarter of the heap for parse results, beyond that evicted files are parsed again when asked for.
+    static final long DEFAULT_RESULT_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
     private final Path repoDir;
-    private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private final ExtractionCache cache;
+    private final Gson cacheGson = new Gson();
+
+    // Filled by a single walk-and-parse pass on the first query, shared by all query methods.
+    private final MemoryBoundedCache<Path, Map<String, Map<String, String>>> parsedFiles;
+    private final Engine engine;
+    private boolean prettyPrintDeclarations;
+    private final JavaParser javaParser = new JavaParser();
+    private final MethodBoundaryScanner scanner = new MethodBoundaryScanner();
+    private final TestFilePrefilter prefilter = new TestFilePrefilter();
+    private List<Path> javaFiles;
+    private long parseCount;
 
     public RepoParser(Path repoDir) {
+        this(repoDir, null);
+    }
+
+    public RepoParser(Path repoDir, ExtractionCache cache) {
+        this(repoDir, cache, DEFAULT_RESULT_CACHE_BYTES);
+    }
+
+    public RepoParser(Path repoDir, ExtractionCache cache, long resultCacheBytes) {
+        this(repoDir, cache, resultCacheBytes, Engine.JAVAPARSER);
+    }
+
+    public RepoParser(Path repoDir, ExtractionCache cache, long resultCacheBytes, Engine engine) {
         this.repoDir = repoDir;
+        this.cache = cache;
+        this.engine = engine;
+        this.parsedFiles = new MemoryBoundedCache<>(resultCacheBytes, RepoParser::estimateSize);
     }
 
     public Map<String, Map<String, Map<String, String>>> parseAllFiles() throws IOException {
-        List<Path> javaFiles = getFilesMatchingRegex(".*\\.java$");
-        return parseMethodsInFiles(javaFiles);
+        return parseMethodsInFiles(javaFiles());
     }
 
     public Map<String, Map<String, Map<String, String>>> parseTestFiles() throws IOException {
-        List<Path> javaTestFiles = getFilesMatchingRegex(".*\\.java$");
-        return parseMethodsInFiles(javaTestFiles);
+        return parseMethodsInFiles(javaFiles());
     }
 
     public Map<String, Map<String, Map<String, String>>> parseNonTestFiles() throws IOException {
-        List<Path> javaNonTestFiles = getFilesMatchingRegex(".*\\.java$");
+        List<Path> javaNonTestFiles = new ArrayList<>(javaFiles());
         javaNonTestFiles.removeIf(file -> file.toString().matches(".*Test.*\\.java$"));
         return parseMethodsInFiles(javaNonTestFiles);
     }
 
-    public void saveParsingResult(Map<String, Map<String, String>> analysisResult, Path outputPath) throws IOException {
-        Map<String, Map<String, String>> modifiedFileMethodsMap = new HashMap<>();
-        analysisResult.forEach((filePath, methods) -> {
-            Path relativePath = repoDir.relativize(Paths.get(filePath));
-            modifiedFileMethodsMap.put("google_json" + "\\" + relativePath.toString(), methods);
-        });
-
-        String jsonOutput = gson.toJson(modifiedFileMethodsMap);
-        Path outputDir = outputPath.getParent();
-        if (!Files.exists(outputDir)) {
-            Files.createDirectories(outputDir);
-        }
+    // method_declaration as JavaParser prints it (with the scanner engine, from a parse of the method alone),
+    // instead of sliced from the file. Takes effect for files not parsed yet, so set it before the first query.
+    public synchronized void setPrettyPrintDeclarations(boolean prettyPrintDeclarations) {
+        this.prettyPrintDeclarations = prettyPrintDeclarations;
+    }
 
-        try (FileWriter writer = new FileWriter(outputPath.toFile())) {
-            writer.write(jsonOutput);
-        }
+    // Number of files actually parsed (not served from either cache) so far.
+    public synchronized long getParseCount() {
+        return parseCount;
     }
 
-    private List<Path> getFilesMatchingRegex(String regex) throws IOException {
-        final List<Path> matchingFiles = new ArrayList<>();
-        final Pattern pattern = Pattern.compile(regex);
+    // Only @Test methods are kept, so files the prefilter rules out are never parsed.
+    public TestFilePrefilter getPrefilter() {
+        return prefilter;
+    }
 
-        FileVisitor<Path> fileVisitor = new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                Matcher matcher = pattern.matcher(file.toString());
-                if (matcher.find()) {
-                    matchingFiles.add(file);
+    private synchronized List<Path> javaFiles() throws IOException {
+        if (javaFiles == null) {
+            // Walk and parse in one pass, the queries then only read parsedFiles.
+            List<Path> walked = new ArrayList<>();
+            final Pattern pattern = Pattern.compile(".*\\.java$");
+            Files.walkFileTree(repoDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (pattern.matcher(file.toString()).find()) {
+                        walked.add(file);
+                        parsedFiles.put(file, parseMethodsInFile(file));
+                    }
+                    return FileVisitResult.CONTINUE;
                 }
-                return FileVisitResult.CONTINUE;
-            }
-        };
-
-        Files.walkFileTree(repoDir, fileVisitor);
+            });
+            javaFiles = walked;
+        }
+        return javaFiles;
+    }
 
-        return matchingFiles;
+    public void saveParsingResult(Map<String, Map<String, String>> analysisResult, Path outputPath) throws IOException {
+        try (JsonStreamWriter writer = JsonStreamWriter.document(outputPath, true)) {
+            writer.getJsonWriter().beginObject();
+            for (Map.Entry<String, Map<String, String>> entry : analysisResult.entrySet()) {
+                Path relativePath = repoDir.relativize(Paths.get(entry.getKey()));
+                writer.getJsonWriter().name("google_json" + "\\" + relativePath.toString());
+                writer.write(entry.getValue());
+            }
+            writer.getJsonWriter().endObject();
+        }
     }
 
-    private Map<String, Map<String, Map<String, String>>> parseMethodsInFiles(List<Path> javaFiles) throws IOException {
+    private synchronized Map<String, Map<String, Map<String, String>>> parseMethodsInFiles(List<Path> javaFiles) throws IOException {
         Map<String, Map<String, Map<String, String>>> fileMethodsMap = new HashMap<>();
-        JavaParser javaParser = new JavaParser();
 
         for (Path javaFile : javaFiles) {
-            Map<String, Map<String, String>> methodsMap = parseMethodsInFile(javaFile, javaParser);
+            Map<String, Map<String, String>> methodsMap = parsedFiles.get(javaFile);
+            if (methodsMap == null) {
+                // Evicted to stay within the memory budget.
+                methodsMap = parseMethodsInFile(javaFile);
+                parsedFiles.put(javaFile, methodsMap);
+            }
             fileMethodsMap.put(javaFile.toString(), methodsMap);
         }
 
         return fileMethodsMap;
     }
 
-    private Map<String, Map<String, String>> parseMethodsInFile(Path javaFile, JavaParser javaParser) throws IOException {
+    // Rough heap footprint of one file's methods: two bytes per char plus per-object overhead.
+    private static long estimateSize(Map<String, Map<String, String>> methodsMap) {
+        long size = 64;
+        for (Map.Entry<String, Map<String, String>> method : methodsMap.entrySet()) {
+            size += 64 + 2L * method.getKey().length();
+            for (Map.Entry<String, String> detail : method.getValue().entrySet()) {
+                size += 96 + 2L * (detail.getKey().length() + detail.getValue().length());
+            }
+        }
+        return size;
+    }
+
+    private Map<String, Map<String, String>> parseMethodsInFile(Path javaFile) throws IOException {
         // TODO: Add more logic here to capture more information.
 
-        Map<String, Map<String, String>> methodsMap = new HashMap<>();
-        ParseResult<CompilationUnit> parseResult = javaParser.parse(javaFile);
+        StageTimer timer = Stage.REPO_PARSER_FILE.start();
+        try {
+            return parseMethodsInFile(javaFile, new HashMap<>());
+        } finally {
+            timer.stop(javaFile.toString());
+        }
+    }
+
+    private Map<String, Map<String, String>> parseMethodsInFile(Path javaFile, Map<String, Map<String, String>> methodsMap) throws IOException {
+        byte[] content = prefilter.readIfMayContainTests(javaFile);
+        if (content == null) {
+            return methodsMap;
+        }
+        FILES.increment();
+
+        // Unchanged files are served from the cache.
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.key("repo-parser-methods", String.format(CACHE_CONFIGURATION, engine.cacheName, prettyPrintDeclarations), content);
+            String cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cacheGson.fromJson(cached, FILE_METHODS_TYPE);
+            }
+        }
+
+        parseCount++;
+        if (engine == Engine.SCANNER) {
+            scanMethodsInFile(javaFile, content, methodsMap);
+            if (cache != null) {
+                cache.put(cacheKey, cacheGson.toJson(methodsMap, FILE_METHODS_TYPE));
+            }
+            return methodsMap;
+        }
+
+        ParseResult<CompilationUnit> parseResult = javaParser.parse(new String(content, StandardCharsets.UTF_8));
 
         if (parseResult.isSuccessful()) {
             CompilationUnit compilationUnit = parseResult.getResult().get();
+            // The primary type name is derived from the file name.
+            compilationUnit.setStorage(javaFile);
+            SourcePositions positions = new SourcePositions(content);
             compilationUnit
                     .findAll(MethodDeclaration.class)
                     .stream()
@@ -116,13 +230,19 @@ public class RepoParser {
                         Map<String, String> methodDetails = new HashMap<>();
                         methodDetails.put("method_name", method.getNameAsString());
                         methodDetails.put("method_signature", method.getSignature().asString());
-                        methodDetails.put("method_declaration", method.toString());
+                        methodDetails.put("method_declaration", prettyPrintDeclarations
+                                ? method.toString()
+                                : positions.text(method.getRange().get()));
 
                         // If method is inside a class, capture class name
                         methodDetails.put("class_name", method.findAncestor(CompilationUnit.class).flatMap(CompilationUnit::getPrimaryTypeName).orElse("UnknownClass"));
 
                         methodsMap.put(method.getNameAsString(), methodDetails);
                     });
+
+            if (cache != null) {
+                cache.put(cacheKey, cacheGson.toJson(methodsMap, FILE_METHODS_TYPE));
+            }
         } else {
             System.err.println("Error parsing " + repoDir + "/" + repoDir.relativize(javaFile) + ": " + parseResult.getProblems());
         }
@@ -130,6 +250,31 @@ public class RepoParser {
         return methodsMap;
     }
 
+    // Same entries as the JavaParser path, see MethodBoundaryScannerValidator.
+    private void scanMethodsInFile(Path javaFile, byte[] content, Map<String, Map<String, String>> methodsMap) {
+        // What CompilationUnit.getPrimaryTypeName() derives from the storage.
+        String fileName = javaFile.getFileName().toString();
+        String className = fileName.lastIndexOf('.') > 0 ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
+        for (MethodBoundaryScanner.ScannedMethod method : scanner.scan(content)) {
+            if (method.hasAnnotation("Test")) {
+                Map<String, String> methodDetails = new HashMap<>();
+                methodDetails.put("method_name", method.getName());
+                methodDetails.put("method_signature", method.getSignature());
+                methodDetails.put("method_declaration", prettyPrintDeclarations
+                        ? prettyPrint(method.getDeclaration(content))
+                        : method.getDeclaration(content));
+                methodDetails.put("class_name", className);
+
+                methodsMap.put(method.getName(), methodDetails);
+            }
+        }
+    }
+
+    private String prettyPrint(String methodDeclaration) {
+        ParseResult<MethodDeclaration> parseResult = javaParser.parseMethodDeclaration(methodDeclaration);
+        return parseResult.getResult().map(MethodDeclaration::toString).orElse(methodDeclaration);
+    }
+
     public static void main(String[] args) throws IOException {
         Path repoPath = Paths.get("Data/github-cloned-repos/google_guava");
         RepoParser repoParser = new RepoParser(repoPath);
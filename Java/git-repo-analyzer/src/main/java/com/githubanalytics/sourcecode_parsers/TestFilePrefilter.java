@@ -0,0 +1,120 @@
+package com.githubanalytics.sourcecode_parsers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Cheap scan of a file's memory-mapped bytes that tells whether it can contain test methods at all: an "@Test"
+// or "@org.junit" annotation (whitespace after the '@' allowed), a TestCase superclass, or a unicode escape of
+// '@' (backslash, one or more 'u', 0040) that the scan cannot see through. Most files of a repository have none
+// of these, so test-only queries skip their full parse. The scan errs on the side of parsing: a mention in a
+// comment or string still counts.
+public class TestFilePrefilter {
+    private static final byte[] TEST = ascii("Test");
+    private static final byte[] ORG_JUNIT = ascii("org.junit");
+    private static final byte[] TEST_CASE = ascii("TestCase");
+    private static final byte[] ESCAPED_AT = ascii("0040");
+    private static final byte[] EMPTY = new byte[0];
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong parsesAvoided = new AtomicLong();
+
+    // Content of the file when it may contain tests, null when its parse can be skipped.
+    public byte[] readIfMayContainTests(Path file) throws IOException {
+        return scan(file, true);
+    }
+
+    public boolean mayContainTests(Path file) throws IOException {
+        return scan(file, false) != null;
+    }
+
+    private byte[] scan(Path file, boolean copyContent) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            scanned.incrementAndGet();
+            if (size == 0) {
+                parsesAvoided.incrementAndGet();
+                return null;
+            }
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (!mayContainTests(bytes)) {
+                parsesAvoided.incrementAndGet();
+                return null;
+            }
+            if (!copyContent) {
+                return EMPTY;
+            }
+            // Copied out of the mapping, so the file is not read a second time for the parse.
+            byte[] content = new byte[(int) size];
+            bytes.get(content);
+            return content;
+        }
+    }
+
+    static boolean mayContainTests(ByteBuffer bytes) {
+        int limit = bytes.limit();
+        for (int i = bytes.position(); i < limit; i++) {
+            byte b = bytes.get(i);
+            if (b == '@') {
+                int j = i + 1;
+                while (j < limit && isWhitespace(bytes.get(j))) {
+                    j++;
+                }
+                if (startsWith(bytes, j, TEST) || startsWith(bytes, j, ORG_JUNIT)) {
+                    return true;
+                }
+            } else if (b == 'T') {
+                if (startsWith(bytes, i, TEST_CASE)) {
+                    return true;
+                }
+            } else if (b == '\\') {
+                // Unicode escapes may repeat the 'u'.
+                int j = i + 1;
+                while (j < limit && bytes.get(j) == 'u') {
+                    j++;
+                }
+                if (j > i + 1 && startsWith(bytes, j, ESCAPED_AT)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, int offset, byte[] prefix) {
+        if (offset + prefix.length > bytes.limit()) {
+            return false;
+        }
+        for (int k = 0; k < prefix.length; k++) {
+            if (bytes.get(offset + k) != prefix[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    public long getParsesAvoided() {
+        return parsesAvoided.get();
+    }
+
+    public void printStatistics() {
+        System.out.println("Files pre-scanned: " + scanned.get() + ", parses avoided: " + parsesAvoided.get());
+    }
+}